@@ -0,0 +1,109 @@
+/*
+ * Copyright (©) 2017 Jeff Harris <jefftharris@gmail.com>
+ * All rights reserved. Use of the code is allowed under the
+ * Artistic License 2.0 terms, as specified in the LICENSE file
+ * distributed with this code, or available from
+ * http://www.opensource.org/licenses/artistic-license-2.0.php
+ */
+package com.jefftharris.passwdsafe.test.file;
+
+import org.junit.Test;
+import org.pwsafe.lib.Util;
+import org.pwsafe.lib.crypto.BlowfishPws;
+import org.pwsafe.lib.crypto.BlowfishPwsECB;
+
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Known-answer tests for the Blowfish cipher of V1 and V2 files
+ */
+@SuppressWarnings("unused")
+public class BlowfishPwsTest
+{
+    /** Test ECB mode against the published Blowfish test vectors */
+    @Test
+    public void testEcb() throws Exception
+    {
+        String[][] vectors = new String[][] {
+                // key, plaintext, ciphertext
+                { "0000000000000000", "0000000000000000", "4EF997456198DD78" },
+                { "FFFFFFFFFFFFFFFF", "FFFFFFFFFFFFFFFF", "51866FD5B85ECB8A" },
+                { "3000000000000000", "1000000000000001", "7D856F9A613063F2" },
+                { "0123456789ABCDEF", "1111111111111111", "61F9C3802281B096" },
+                { "FEDCBA9876543210", "0123456789ABCDEF", "0ACEAB0FC6A0A28D" }
+        };
+        for (String[] vector: vectors) {
+            BlowfishPwsECB ecb = new BlowfishPwsECB(unhex(vector[0]));
+            byte[] data = unhex(vector[1]);
+            ecb.encrypt(data);
+            assertBytes(vector[2], data);
+            ecb.decrypt(data);
+            assertBytes(vector[1], data);
+        }
+    }
+
+    /**
+     * Test CBC mode against the published Blowfish CBC test vector.  The
+     * words of the data and IV are stored little-endian.
+     */
+    @Test
+    public void testCbc() throws Exception
+    {
+        byte[] key = unhex("0123456789ABCDEFF0E1D2C3B4A59687");
+        byte[] iv = toLittleEndian("FEDCBA9876543210");
+        // "7654321 Now is the time for " padded with zeros
+        String plain = "37363534333231204E6F77206973207468652074696D6520" +
+                       "666F722000000000";
+        String cipher = "6B77B4D63006DEE605B156E27403979358DEB9E7154616D9" +
+                        "59F1652BD5FF92CC";
+
+        // Whole buffer in place
+        byte[] data = toLittleEndian(plain);
+        new BlowfishPws(key, iv).encrypt(data);
+        assertTrue(Arrays.equals(toLittleEndian(cipher), data));
+        new BlowfishPws(key, iv).decrypt(data);
+        assertTrue(Arrays.equals(toLittleEndian(plain), data));
+
+        // Blocks split across calls into a separate buffer, which continue
+        // the chaining
+        byte[] in = toLittleEndian(plain);
+        byte[] out = new byte[in.length + 8];
+        BlowfishPws bf = new BlowfishPws(key, iv);
+        bf.encrypt(in, 0, 8, out, 8);
+        bf.encrypt(in, 8, 24, out, 16);
+        assertTrue(Arrays.equals(toLittleEndian(cipher),
+                                 Arrays.copyOfRange(out, 8, out.length)));
+
+        bf = new BlowfishPws(key, iv);
+        bf.decrypt(out, 8, 16, in, 0);
+        bf.decrypt(out, 24, 16, in, 16);
+        assertTrue(Arrays.equals(toLittleEndian(plain), in));
+    }
+
+    /** Convert a hex string of big-endian words to little-endian bytes */
+    private static byte[] toLittleEndian(String hex)
+    {
+        byte[] bytes = unhex(hex);
+        Util.bytesToLittleEndian(bytes);
+        return bytes;
+    }
+
+    /** Convert a hex string to bytes */
+    private static byte[] unhex(String hex)
+    {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte)Integer.parseInt(hex.substring(2 * i, 2 * i + 2),
+                                              16);
+        }
+        return bytes;
+    }
+
+    /** Assert the bytes match a hex string */
+    private static void assertBytes(String expected, byte[] actual)
+    {
+        assertTrue(Arrays.equals(unhex(expected), actual));
+    }
+}
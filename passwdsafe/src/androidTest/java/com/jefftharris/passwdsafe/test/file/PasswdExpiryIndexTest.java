@@ -0,0 +1,191 @@
+/*
+ * Copyright (©) 2017 Jeff Harris <jefftharris@gmail.com>
+ * All rights reserved. Use of the code is allowed under the
+ * Artistic License 2.0 terms, as specified in the LICENSE file
+ * distributed with this code, or available from
+ * http://www.opensource.org/licenses/artistic-license-2.0.php
+ */
+package com.jefftharris.passwdsafe.test.file;
+
+import com.jefftharris.passwdsafe.file.PasswdExpiryIndex;
+
+import org.junit.Test;
+import org.pwsafe.lib.file.PwsFile;
+import org.pwsafe.lib.file.PwsFileFactory;
+import org.pwsafe.lib.file.PwsRecord;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Unit tests for the index of password expirations
+ */
+@SuppressWarnings("unused")
+public class PasswdExpiryIndexTest
+{
+    /** The number of distinct expiration times, so many records share
+     * the same time */
+    private static final int NUM_TIMES = 20;
+
+    /** Test the queries at and around records with equal expirations */
+    @Test
+    public void testEqualExpiries()
+    {
+        PwsFile pwsFile = PwsFileFactory.newFile();
+        PasswdExpiryIndex index = new PasswdExpiryIndex();
+        PwsRecord rec1 = pwsFile.newRecord();
+        PwsRecord rec2 = pwsFile.newRecord();
+        PwsRecord rec3 = pwsFile.newRecord();
+        index.put(rec1, 2000L);
+        index.put(rec2, 1000L);
+        index.put(rec3, 2000L);
+        index.put(pwsFile.newRecord(), null);
+
+        assertEquals(0, index.getNumExpiring(999));
+        assertEquals(1, index.getNumExpiring(1000));
+        assertEquals(1, index.getNumExpiring(1999));
+        assertEquals(3, index.getNumExpiring(2000));
+
+        assertEquals(0, index.getExpiringBefore(1000).size());
+        assertEquals(1, index.getExpiringBefore(2000).size());
+        assertTrue(index.getExpiringBefore(2000).contains(rec2));
+        List<PwsRecord> recs = index.getExpiringBefore(2001);
+        assertEquals(3, recs.size());
+        assertTrue(recs.get(0) == rec2);
+
+        assertEquals(1000, index.getNextExpiry(999));
+        assertEquals(2000, index.getNextExpiry(1000));
+        assertEquals(Long.MAX_VALUE, index.getNextExpiry(2000));
+
+        // Removing one of the records with an equal time keeps the other
+        index.remove(rec1);
+        assertEquals(2, index.getNumExpiring(2000));
+        recs = index.getExpiringBefore(2001);
+        assertEquals(2, recs.size());
+        assertTrue(recs.contains(rec3));
+
+        // Clearing an expiration removes the record
+        index.put(rec3, null);
+        assertEquals(1, index.getNumExpiring(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, index.getNextExpiry(1000));
+    }
+
+    /**
+     * Test random additions, changes, and removals against a brute force
+     * search of the expirations, both while loading and after
+     */
+    @Test
+    public void testBruteForce()
+    {
+        PwsFile pwsFile = PwsFileFactory.newFile();
+        Random random = new Random(1);
+        PasswdExpiryIndex index = new PasswdExpiryIndex();
+        Map<PwsRecord, Long> expiries = new IdentityHashMap<>();
+        List<PwsRecord> recs = new ArrayList<>();
+        for (int i = 0; i < 200; ++i) {
+            recs.add(pwsFile.newRecord());
+        }
+
+        for (int round = 0; round < 20; ++round) {
+            // Load the records, appending their expirations
+            index.clear();
+            expiries.clear();
+            for (PwsRecord rec: recs) {
+                Long expiry = createExpiry(random);
+                index.append(rec, expiry);
+                setExpiry(expiries, rec, expiry);
+            }
+            checkQueries(index, expiries, random);
+
+            for (int op = 0; op < 200; ++op) {
+                PwsRecord rec = recs.get(random.nextInt(recs.size()));
+                if (random.nextInt(4) == 0) {
+                    index.remove(rec);
+                    expiries.remove(rec);
+                } else {
+                    Long expiry = createExpiry(random);
+                    index.put(rec, expiry);
+                    setExpiry(expiries, rec, expiry);
+                }
+                checkQueries(index, expiries, random);
+            }
+        }
+    }
+
+    /** Check the queries of the index at random times and at the
+     * expirations */
+    private static void checkQueries(PasswdExpiryIndex index,
+                                     Map<PwsRecord, Long> expiries,
+                                     Random random)
+    {
+        for (int i = 0; i < 5; ++i) {
+            long time = random.nextInt(NUM_TIMES + 2) * 1000L - 1000L +
+                        random.nextInt(3) - 1;
+            checkQueries(index, expiries, time);
+        }
+        checkQueries(index, expiries, Long.MIN_VALUE);
+        checkQueries(index, expiries, Long.MAX_VALUE);
+    }
+
+    /** Check the queries of the index at a time against a brute force
+     * search */
+    private static void checkQueries(PasswdExpiryIndex index,
+                                     Map<PwsRecord, Long> expiries,
+                                     long time)
+    {
+        int numAtOrBefore = 0;
+        int numBefore = 0;
+        long next = Long.MAX_VALUE;
+        for (long expiry: expiries.values()) {
+            if (expiry <= time) {
+                ++numAtOrBefore;
+            }
+            if (expiry < time) {
+                ++numBefore;
+            }
+            if ((expiry > time) && (expiry < next)) {
+                next = expiry;
+            }
+        }
+
+        assertEquals(numAtOrBefore, index.getNumExpiring(time));
+        assertEquals(next, index.getNextExpiry(time));
+
+        List<PwsRecord> before = index.getExpiringBefore(time);
+        assertEquals(numBefore, before.size());
+        IdentityHashMap<PwsRecord, Boolean> seen = new IdentityHashMap<>();
+        long prev = Long.MIN_VALUE;
+        for (PwsRecord rec: before) {
+            Long expiry = expiries.get(rec);
+            assertTrue(expiry != null);
+            assertTrue(expiry < time);
+            assertTrue(expiry >= prev);
+            assertTrue(seen.put(rec, true) == null);
+            prev = expiry;
+        }
+    }
+
+    /** Create a random expiration, or none */
+    private static Long createExpiry(Random random)
+    {
+        int time = random.nextInt(NUM_TIMES + 1);
+        return (time == NUM_TIMES) ? null : (time * 1000L);
+    }
+
+    /** Set the expected expiration of a record */
+    private static void setExpiry(Map<PwsRecord, Long> expiries,
+                                  PwsRecord rec, Long expiry)
+    {
+        if (expiry != null) {
+            expiries.put(rec, expiry);
+        } else {
+            expiries.remove(rec);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (©) 2017 Jeff Harris <jefftharris@gmail.com>
+ * All rights reserved. Use of the code is allowed under the
+ * Artistic License 2.0 terms, as specified in the LICENSE file
+ * distributed with this code, or available from
+ * http://www.opensource.org/licenses/artistic-license-2.0.php
+ */
+package com.jefftharris.passwdsafe.test.file;
+
+import android.util.Log;
+
+import com.jefftharris.passwdsafe.file.PasswdSearchIndex;
+
+import org.junit.Test;
+import org.pwsafe.lib.file.PwsFile;
+import org.pwsafe.lib.file.PwsFileFactory;
+import org.pwsafe.lib.file.PwsRecord;
+
+import java.util.regex.Pattern;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Unit tests and a query latency benchmark for the search index
+ */
+@SuppressWarnings("unused")
+public class PasswdSearchIndexTest
+{
+    private static final String TAG = "PasswdSearchIndexTest";
+
+    private static final int[] NUM_RECORDS = new int[] { 1000, 5000, 20000 };
+
+    private static final String[] QUERIES = new String[] {
+            "title12", "user999", "example.com/42", "zzz" };
+
+    /** The flags of a query for the default, non-regex, search options */
+    private static final int QUERY_FLAGS =
+            Pattern.CASE_INSENSITIVE | Pattern.LITERAL;
+
+    /** Test the candidates for queries as records are added and removed */
+    @Test
+    public void testCandidates()
+    {
+        PwsFile pwsFile = PwsFileFactory.newFile();
+        PasswdSearchIndex index = new PasswdSearchIndex();
+        PwsRecord rec1 = pwsFile.newRecord();
+        PwsRecord rec2 = pwsFile.newRecord();
+        PwsRecord unindexed = pwsFile.newRecord();
+        index.add(rec1, "Bank Account", "jsmith", null, null, "PIN notes");
+        index.add(rec2, "Email", "john", "mail.example.com", null, null);
+
+        Pattern query = Pattern.compile("bank", Pattern.CASE_INSENSITIVE);
+        assertTrue(index.isCandidate(rec1, query));
+        assertFalse(index.isCandidate(rec2, query));
+        assertTrue(index.isCandidate(unindexed, query));
+
+        query = Pattern.compile("example.com", Pattern.LITERAL);
+        assertFalse(index.isCandidate(rec1, query));
+        assertTrue(index.isCandidate(rec2, query));
+
+        // Regexes and short queries can not use the index
+        query = Pattern.compile("ba.k");
+        assertTrue(index.isCandidate(rec2, query));
+        query = Pattern.compile("pi");
+        assertTrue(index.isCandidate(rec2, query));
+
+        // Trigrams do not span fields
+        query = Pattern.compile("smithpin", Pattern.CASE_INSENSITIVE);
+        assertFalse(index.isCandidate(rec1, query));
+
+        // Updating a record replaces its trigrams
+        query = Pattern.compile("bank", Pattern.CASE_INSENSITIVE);
+        index.add(rec1, "Savings", "jsmith", null, null, null);
+        assertFalse(index.isCandidate(rec1, query));
+        index.add(rec2, "Bank email", "john", null, null, null);
+        assertTrue(index.isCandidate(rec2, query));
+
+        index.remove(rec2);
+        assertEquals(1, index.size());
+        assertTrue(index.isCandidate(rec2, query));
+    }
+
+    /** Test the candidates after enough removals to compact the index */
+    @Test
+    public void testCompact()
+    {
+        PwsFile pwsFile = PwsFileFactory.newFile();
+        PasswdSearchIndex index = new PasswdSearchIndex();
+        PwsRecord[] recs = new PwsRecord[5000];
+        for (int i = 0; i < recs.length; ++i) {
+            recs[i] = pwsFile.newRecord();
+            index.add(recs[i], "title" + i);
+        }
+        for (int i = 0; i < recs.length; ++i) {
+            if ((i % 5) != 0) {
+                index.remove(recs[i]);
+            }
+        }
+        assertEquals(recs.length / 5, index.size());
+
+        Pattern query = Pattern.compile("title12");
+        for (int i = 0; i < recs.length; ++i) {
+            boolean expected = ((i % 5) != 0) ||
+                               Integer.toString(i).startsWith("12");
+            assertEquals("title" + i, expected,
+                         index.isCandidate(recs[i], query));
+        }
+    }
+
+    /** Benchmark query latency against a scan of all records */
+    @Test
+    public void testQueryLatency()
+    {
+        PwsFile pwsFile = PwsFileFactory.newFile();
+        for (int numRecords: NUM_RECORDS) {
+            PwsRecord[] recs = new PwsRecord[numRecords];
+            String[][] fields = new String[numRecords][];
+            PasswdSearchIndex index = new PasswdSearchIndex();
+            for (int i = 0; i < numRecords; ++i) {
+                recs[i] = pwsFile.newRecord();
+                fields[i] = new String[] {
+                        "title" + i, "user" + i, "https://example.com/" + i,
+                        "user" + i + "@example.com",
+                        "Notes for record " + i + " with some more text" };
+                index.add(recs[i], fields[i]);
+            }
+
+            for (String queryStr: QUERIES) {
+                Pattern query = Pattern.compile(queryStr, QUERY_FLAGS);
+                long start = System.nanoTime();
+                int scanMatches = 0;
+                for (String[] recFields: fields) {
+                    if (matches(query, recFields)) {
+                        ++scanMatches;
+                    }
+                }
+                long scanNanos = System.nanoTime() - start;
+
+                query = Pattern.compile(queryStr, QUERY_FLAGS);
+                start = System.nanoTime();
+                int indexMatches = 0;
+                for (int i = 0; i < numRecords; ++i) {
+                    if (index.isCandidate(recs[i], query) &&
+                        matches(query, fields[i])) {
+                        ++indexMatches;
+                    }
+                }
+                long indexNanos = System.nanoTime() - start;
+
+                assertEquals(queryStr, scanMatches, indexMatches);
+                Log.i(TAG, "Query '" + queryStr + "', " + numRecords +
+                           " records: scan " + (scanNanos / 1000) +
+                           "us, index " + (indexNanos / 1000) + "us, " +
+                           indexMatches + " matches");
+            }
+        }
+    }
+
+    /** Match a query against the fields of a record */
+    private static boolean matches(Pattern query, String[] fields)
+    {
+        for (String field: fields) {
+            if (query.matcher(field).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
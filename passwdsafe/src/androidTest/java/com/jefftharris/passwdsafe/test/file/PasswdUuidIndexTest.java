@@ -0,0 +1,176 @@
+/*
+ * Copyright (©) 2017 Jeff Harris <jefftharris@gmail.com>
+ * All rights reserved. Use of the code is allowed under the
+ * Artistic License 2.0 terms, as specified in the LICENSE file
+ * distributed with this code, or available from
+ * http://www.opensource.org/licenses/artistic-license-2.0.php
+ */
+package com.jefftharris.passwdsafe.test.file;
+
+import com.jefftharris.passwdsafe.file.PasswdUuidIndex;
+
+import org.junit.Test;
+import org.pwsafe.lib.UUID;
+import org.pwsafe.lib.file.PwsFile;
+import org.pwsafe.lib.file.PwsFileFactory;
+import org.pwsafe.lib.file.PwsRecord;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+
+/**
+ * Unit tests for the index of records by UUID
+ */
+@SuppressWarnings("unused")
+public class PasswdUuidIndexTest
+{
+    /** Test getting a record by the forms of its UUID and removing it */
+    @Test
+    public void testPutGet()
+    {
+        PwsFile pwsFile = PwsFileFactory.newFile();
+        PasswdUuidIndex index = new PasswdUuidIndex();
+        UUID uuid = new UUID();
+        String uuidStr = uuid.toString();
+        PwsRecord rec = pwsFile.newRecord();
+        index.put(uuid, uuidStr, rec);
+
+        assertSame(rec, index.get(uuidStr));
+        assertSame(rec, index.get(uuidStr.toUpperCase()));
+        assertSame(rec, index.get(uuid.getBytes()));
+        String hex = uuidStr.replaceAll("[{}-]", "");
+        assertSame(rec, index.getHex("[[" + hex + "]]", 2));
+        assertSame(uuidStr, index.getUuidStr(uuid, rec));
+        assertNull(index.getUuidStr(uuid, pwsFile.newRecord()));
+
+        assertNull(index.get(new UUID().toString()));
+        assertNull(index.get(new UUID().getBytes()));
+        assertNull(index.get(new byte[15]));
+        assertNull(index.get(uuidStr.substring(1)));
+        assertNull(index.getHex(hex, 1));
+
+        // Only the indexed record is removed
+        index.remove(uuid, pwsFile.newRecord());
+        assertSame(rec, index.get(uuidStr));
+        index.remove(uuid, rec);
+        assertNull(index.get(uuidStr));
+        assertNull(index.get(uuid.getBytes()));
+
+        // Identifiers which are not UUIDs
+        PwsRecord otherRec = pwsFile.newRecord();
+        index.put("phantom", otherRec);
+        assertSame(otherRec, index.get("phantom"));
+        index.remove("phantom", rec);
+        assertSame(otherRec, index.get("phantom"));
+        index.remove("phantom", otherRec);
+        assertNull(index.get("phantom"));
+    }
+
+    /** Test that the last record added with a UUID is indexed */
+    @Test
+    public void testReplace()
+    {
+        PwsFile pwsFile = PwsFileFactory.newFile();
+        PasswdUuidIndex index = new PasswdUuidIndex();
+        UUID uuid = new UUID();
+        PwsRecord rec1 = pwsFile.newRecord();
+        PwsRecord rec2 = pwsFile.newRecord();
+        index.put(uuid, uuid.toString(), rec1);
+        index.put(uuid, uuid.toString(), rec2);
+        assertSame(rec2, index.get(uuid.getBytes()));
+
+        index.remove(uuid, rec1);
+        assertSame(rec2, index.get(uuid.getBytes()));
+        index.remove(uuid, rec2);
+        assertNull(index.get(uuid.getBytes()));
+    }
+
+    /**
+     * Test adding and removing records against a map.  The table is kept at
+     * its smallest size so the records form probe chains which wrap around
+     * the end of the table, and removals shift back the following entries.
+     */
+    @Test
+    public void testRemoveChains()
+    {
+        PwsFile pwsFile = PwsFileFactory.newFile();
+        Random random = new Random(1);
+        PasswdUuidIndex index = new PasswdUuidIndex();
+        for (int round = 0; round < 1000; ++round) {
+            index.clear(0);
+            List<UUID> uuids = new ArrayList<>();
+            HashMap<String, PwsRecord> expected = new HashMap<>();
+            for (int op = 0; op < 64; ++op) {
+                if (uuids.isEmpty() ||
+                    ((uuids.size() < 7) && random.nextBoolean())) {
+                    UUID uuid = createUuid(random);
+                    PwsRecord rec = pwsFile.newRecord();
+                    index.put(uuid, uuid.toString(), rec);
+                    uuids.add(uuid);
+                    expected.put(uuid.toString(), rec);
+                } else {
+                    UUID uuid = uuids.remove(random.nextInt(uuids.size()));
+                    index.remove(uuid, expected.remove(uuid.toString()));
+                    assertNull(index.get(uuid.getBytes()));
+                }
+
+                for (UUID uuid: uuids) {
+                    assertSame(expected.get(uuid.toString()),
+                               index.get(uuid.getBytes()));
+                }
+            }
+        }
+    }
+
+    /** Test growing the table as records are added and clearing it */
+    @Test
+    public void testResize()
+    {
+        PwsFile pwsFile = PwsFileFactory.newFile();
+        final int numRecs = 20000;
+        Random random = new Random(2);
+        PasswdUuidIndex index = new PasswdUuidIndex();
+        UUID[] uuids = new UUID[numRecs];
+        PwsRecord[] recs = new PwsRecord[numRecs];
+        for (int i = 0; i < numRecs; ++i) {
+            uuids[i] = createUuid(random);
+            recs[i] = pwsFile.newRecord();
+            index.put(uuids[i], uuids[i].toString(), recs[i]);
+        }
+        for (int i = 0; i < numRecs; ++i) {
+            assertSame(recs[i], index.get(uuids[i].toString()));
+        }
+
+        for (int i = 0; i < numRecs; i += 2) {
+            index.remove(uuids[i], recs[i]);
+        }
+        for (int i = 0; i < numRecs; ++i) {
+            assertSame(((i % 2) == 0) ? null : recs[i],
+                       index.get(uuids[i].getBytes()));
+        }
+
+        index.clear(numRecs);
+        for (int i = 0; i < numRecs; ++i) {
+            assertNull(index.get(uuids[i].getBytes()));
+        }
+        for (int i = 0; i < numRecs; ++i) {
+            index.put(uuids[i], uuids[i].toString(), recs[i]);
+        }
+        for (int i = 0; i < numRecs; ++i) {
+            assertSame(recs[i], index.get(uuids[i].getBytes()));
+        }
+    }
+
+    /** Create a random UUID from a seeded generator */
+    private static UUID createUuid(Random random)
+    {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        return new UUID(bytes);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (©) 2017 Jeff Harris <jefftharris@gmail.com>
+ * All rights reserved. Use of the code is allowed under the
+ * Artistic License 2.0 terms, as specified in the LICENSE file
+ * distributed with this code, or available from
+ * http://www.opensource.org/licenses/artistic-license-2.0.php
+ */
+package com.jefftharris.passwdsafe.test.file;
+
+import android.support.test.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pwsafe.lib.file.Owner;
+import org.pwsafe.lib.file.PwsField;
+import org.pwsafe.lib.file.PwsFile;
+import org.pwsafe.lib.file.PwsFileFactory;
+import org.pwsafe.lib.file.PwsFileStorage;
+import org.pwsafe.lib.file.PwsPasswdField;
+import org.pwsafe.lib.file.PwsPassword;
+import org.pwsafe.lib.file.PwsRecord;
+import org.pwsafe.lib.file.PwsRecordV1;
+import org.pwsafe.lib.file.PwsRecordV2;
+import org.pwsafe.lib.file.PwsStringField;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Unit tests for reading and writing V1 and V2 files
+ */
+@SuppressWarnings("unused")
+public class PwsFileV1V2Test
+{
+    private static final String PASSWORD = "test123";
+
+    private static final int[] V1_FIELDS = {
+            PwsRecordV1.TITLE, PwsRecordV1.USERNAME,
+            PwsRecordV1.PASSWORD, PwsRecordV1.NOTES };
+
+    private static final int[] V2_FIELDS = {
+            PwsRecordV2.UUID, PwsRecordV2.GROUP, PwsRecordV2.TITLE,
+            PwsRecordV2.USERNAME, PwsRecordV2.PASSWORD, PwsRecordV2.NOTES };
+
+    private File itsFile;
+
+    @Before
+    public void createFile() throws Exception
+    {
+        itsFile = File.createTempFile("pwsfilev1v2test", ".dat");
+        assertTrue(itsFile.delete());
+    }
+
+    @After
+    public void deleteFile()
+    {
+        //noinspection ResultOfMethodCallIgnored
+        itsFile.delete();
+        //noinspection ResultOfMethodCallIgnored
+        new File(itsFile.getParentFile(), itsFile.getName() + "~").delete();
+    }
+
+    /** Test reading, writing, and reading back a V1 file */
+    @Test
+    public void testV1RoundTrip() throws Exception
+    {
+        copyAsset("test-v1.dat");
+        PwsFile file = loadFile();
+        assertEquals(1, file.getFileVersionMajor());
+        List<String> recs = getRecords(file, V1_FIELDS);
+        assertEquals(3, recs.size());
+        assertEquals("Personal.foo|jeffh|harris|\r\nwww.sdf.com|", recs.get(0));
+        assertEquals("Business.foo||sdf||", recs.get(1));
+
+        PwsRecord rec = file.newRecord();
+        rec.setField(new PwsStringField(PwsRecordV1.TITLE, "Personal.new"));
+        rec.setField(new PwsStringField(PwsRecordV1.USERNAME, "user"));
+        rec.setField(new PwsPasswdField(PwsRecordV1.PASSWORD, "passwd", file));
+        rec.setField(new PwsStringField(PwsRecordV1.NOTES, "notes"));
+        file.add(rec);
+        recs.add("Personal.new|user|passwd|notes|");
+        saveFile(file);
+
+        file = loadFile();
+        assertEquals(1, file.getFileVersionMajor());
+        assertEquals(recs, getRecords(file, V1_FIELDS));
+        file.dispose();
+    }
+
+    /** Test reading, writing, and reading back a V2 file */
+    @Test
+    public void testV2RoundTrip() throws Exception
+    {
+        copyAsset("test-v2.dat");
+        PwsFile file = loadFile();
+        assertEquals(2, file.getFileVersionMajor());
+        List<String> recs = getRecords(file, V2_FIELDS);
+        assertEquals(3, recs.size());
+        assertEquals("{8ec93574-8b1e-4697-99b3-aeb9db4f68e7}|Personal|foo|" +
+                     "jeffh|harris|\r\nwww.sdf.com|",
+                     recs.get(0));
+        assertEquals("{c7b6d08e-2779-4508-bce9-af81eba25fdf}|Business|foo||" +
+                     "sdf||",
+                     recs.get(1));
+
+        PwsRecord rec = file.newRecord();
+        rec.setField(new PwsStringField(PwsRecordV2.GROUP, "Personal"));
+        rec.setField(new PwsStringField(PwsRecordV2.TITLE, "new"));
+        rec.setField(new PwsStringField(PwsRecordV2.USERNAME, "user"));
+        rec.setField(new PwsPasswdField(PwsRecordV2.PASSWORD, "passwd", file));
+        rec.setField(new PwsStringField(PwsRecordV2.NOTES, "notes"));
+        file.add(rec);
+        recs.add(getRecord(rec, V2_FIELDS));
+        saveFile(file);
+
+        file = loadFile();
+        assertEquals(2, file.getFileVersionMajor());
+        assertEquals(recs, getRecords(file, V2_FIELDS));
+        file.dispose();
+    }
+
+    /** Copy a test asset to the file */
+    private void copyAsset(String name) throws Exception
+    {
+        InputStream is =
+                InstrumentationRegistry.getContext().getAssets().open(name);
+        try {
+            OutputStream os = new FileOutputStream(itsFile);
+            try {
+                byte[] buf = new byte[4096];
+                int len;
+                while ((len = is.read(buf)) > 0) {
+                    os.write(buf, 0, len);
+                }
+            } finally {
+                os.close();
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    /** Save the file and close it */
+    private static void saveFile(PwsFile file) throws Exception
+    {
+        assertTrue(file.isModified());
+        file.save();
+        file.dispose();
+    }
+
+    /** Load the file */
+    private PwsFile loadFile() throws Exception
+    {
+        Owner<PwsPassword> passwd = new Owner<>(new PwsPassword(PASSWORD));
+        try {
+            return PwsFileFactory.loadFromStorage(
+                    new PwsFileStorage(itsFile.getPath(), itsFile.getPath()),
+                    passwd.pass());
+        } finally {
+            passwd.close();
+        }
+    }
+
+    /** Get the fields of the file's records */
+    private static List<String> getRecords(PwsFile file, int[] fields)
+    {
+        List<String> recs = new ArrayList<>();
+        Iterator<PwsRecord> iter = file.getRecords();
+        while (iter.hasNext()) {
+            recs.add(getRecord(iter.next(), fields));
+        }
+        return recs;
+    }
+
+    /** Get the fields of a record, separated by '|' */
+    private static String getRecord(PwsRecord rec, int[] fields)
+    {
+        StringBuilder str = new StringBuilder();
+        for (int type: fields) {
+            PwsField field = rec.getField(type);
+            if (field != null) {
+                str.append(field.toString());
+            }
+            str.append('|');
+        }
+        return str.toString();
+    }
+}
@@ -0,0 +1,681 @@
+/*
+ * Copyright (©) 2017 Jeff Harris <jefftharris@gmail.com>
+ * All rights reserved. Use of the code is allowed under the
+ * Artistic License 2.0 terms, as specified in the LICENSE file
+ * distributed with this code, or available from
+ * http://www.opensource.org/licenses/artistic-license-2.0.php
+ */
+package com.jefftharris.passwdsafe.test.file;
+
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pwsafe.lib.Util;
+import org.pwsafe.lib.exception.InvalidPassphraseException;
+import org.pwsafe.lib.file.Owner;
+import org.pwsafe.lib.file.PwsChannelStorage;
+import org.pwsafe.lib.file.PwsField;
+import org.pwsafe.lib.file.PwsFile;
+import org.pwsafe.lib.file.PwsFileFactory;
+import org.pwsafe.lib.file.PwsFileInfo;
+import org.pwsafe.lib.file.PwsFileStorage;
+import org.pwsafe.lib.file.PwsFileV3;
+import org.pwsafe.lib.file.PwsPassword;
+import org.pwsafe.lib.file.PwsPasswdUnicodeField;
+import org.pwsafe.lib.file.PwsRecord;
+import org.pwsafe.lib.file.PwsRecordV3;
+import org.pwsafe.lib.file.PwsStretchCalibration;
+import org.pwsafe.lib.file.PwsStringUnicodeField;
+import org.pwsafe.lib.file.PwsUnknownField;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Unit tests and timings for reading and writing V3 files
+ */
+@SuppressWarnings("unused")
+public class PwsFileV3Test
+{
+    private static final String TAG = "PwsFileV3Test";
+
+    private static final String PASSWORD = "test123";
+
+    private File itsFile;
+
+    @Before
+    public void createFile() throws Exception
+    {
+        itsFile = File.createTempFile("pwsfilev3test", ".psafe3");
+        assertTrue(itsFile.delete());
+    }
+
+    @After
+    public void deleteFile()
+    {
+        //noinspection ResultOfMethodCallIgnored
+        itsFile.delete();
+        //noinspection ResultOfMethodCallIgnored
+        new File(itsFile.getParentFile(), itsFile.getName() + "~").delete();
+    }
+
+    /** Test saving and opening a file with large notes fields */
+    @Test
+    public void testLargeNotes() throws Exception
+    {
+        final int numRecs = 20;
+        final int notesLen = 1024 * 1024;
+        saveFile(numRecs, notesLen);
+
+        long start = System.currentTimeMillis();
+        PwsFile file = loadFile();
+        Log.i(TAG, "Large notes open: " +
+                   (System.currentTimeMillis() - start) + "ms");
+
+        verifyFile(file, numRecs, notesLen);
+    }
+
+    /** Test saving and opening a file with many small records */
+    @Test
+    public void testManyRecords() throws Exception
+    {
+        final int numRecs = 5000;
+        saveFile(numRecs, 100);
+
+        long start = System.currentTimeMillis();
+        PwsFile file = loadFile();
+        Log.i(TAG, "Many records open: " +
+                   (System.currentTimeMillis() - start) + "ms");
+
+        verifyFile(file, numRecs, 100);
+    }
+
+    /** Test decrypting a file with multiple threads */
+    @Test
+    public void testParallelDecrypt() throws Exception
+    {
+        final int numRecs = 100000;
+        saveFile(numRecs, 20);
+
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        try {
+            for (int threads = 1; threads <= maxThreads; ++threads) {
+                PwsFileV3.setDecryptThreads(threads);
+                long start = System.currentTimeMillis();
+                PwsFile file = loadFile();
+                Log.i(TAG, "Parallel open " + threads + " threads: " +
+                           (System.currentTimeMillis() - start) + "ms");
+                verifyFile(file, numRecs, 20);
+            }
+        } finally {
+            PwsFileV3.setDecryptThreads(1);
+        }
+    }
+
+    /** Test reading a file with the pipelined reader */
+    @Test
+    public void testPipelinedRead() throws Exception
+    {
+        final int numRecs = 20000;
+        saveFile(numRecs, 200);
+
+        try {
+            for (boolean pipelined: new boolean[] { false, true }) {
+                PwsFileV3.setPipelinedRead(pipelined);
+                long start = System.currentTimeMillis();
+                PwsFile file = loadFile();
+                Log.i(TAG, "Open pipelined " + pipelined + ": " +
+                           (System.currentTimeMillis() - start) + "ms");
+                verifyFile(file, numRecs, 200);
+            }
+        } finally {
+            PwsFileV3.setPipelinedRead(false);
+        }
+    }
+
+    /**
+     * Test that a pipelined read of a file with a changed record fails the
+     * HMAC check the same as a sequential read
+     */
+    @Test
+    public void testPipelinedReadChanged() throws Exception
+    {
+        // With an odd number of records, the middle of the file is in the
+        // middle of the notes of the center record
+        saveFile(11, 20000);
+
+        // Change a block in the middle of a notes field
+        RandomAccessFile raf = new RandomAccessFile(itsFile, "rw");
+        try {
+            long pos = raf.length() / 2;
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0x01);
+        } finally {
+            raf.close();
+        }
+
+        String seqError = null;
+        try {
+            for (boolean pipelined: new boolean[] { false, true }) {
+                PwsFileV3.setPipelinedRead(pipelined);
+                try {
+                    loadFile();
+                    fail("Changed file loaded, pipelined " + pipelined);
+                } catch (IOException e) {
+                    assertEquals(IOException.class, e.getClass());
+                    if (seqError == null) {
+                        seqError = e.getMessage();
+                    } else {
+                        assertEquals(seqError, e.getMessage());
+                    }
+                }
+            }
+        } finally {
+            PwsFileV3.setPipelinedRead(false);
+        }
+        assertTrue(seqError.startsWith("HMAC record did not match"));
+    }
+
+    /** Test saving a file multiple times with and without key rotation */
+    @Test
+    public void testRepeatedSave() throws Exception
+    {
+        final int numRecs = 100;
+        saveFile(numRecs, 100);
+
+        PwsFileV3 file = (PwsFileV3)loadFile();
+        for (int i = 0; i < 3; ++i) {
+            long start = System.currentTimeMillis();
+            file.save();
+            Log.i(TAG, "Save with cached key: " +
+                       (System.currentTimeMillis() - start) + "ms");
+        }
+        file.setKeyRotation();
+        long start = System.currentTimeMillis();
+        file.save();
+        Log.i(TAG, "Save with key rotation: " +
+                   (System.currentTimeMillis() - start) + "ms");
+        file.dispose();
+
+        verifyFile(loadFile(), numRecs, 100);
+    }
+
+    /** Test opening a file while probing the password encodings in parallel */
+    @Test
+    public void testPasswordProbe() throws Exception
+    {
+        final int numRecs = 10;
+        saveFile(numRecs, 100);
+
+        try {
+            for (int threads = 1; threads <= 2; ++threads) {
+                PwsFile.setPasswordProbeThreads(threads);
+                long start = System.currentTimeMillis();
+                PwsFile file = loadFile();
+                Log.i(TAG, "Open probe " + threads + " threads: " +
+                           (System.currentTimeMillis() - start) + "ms");
+                verifyFile(file, numRecs, 100);
+            }
+        } finally {
+            PwsFile.setPasswordProbeThreads(1);
+        }
+    }
+
+    /**
+     * Test opening a file whose non-ASCII password was saved in the legacy
+     * default charset rather than the configured encoding
+     */
+    @Test
+    public void testPasswordProbeLegacyEncoding() throws Exception
+    {
+        final int numRecs = 10;
+        final String password = "t\u00e9st\u20ac123";
+        String legacyEncoding = Charset.defaultCharset().name();
+        String encoding = PwsFile.getUpdatePasswordEncoding();
+        assertFalse(Arrays.equals(password.getBytes(encoding),
+                                  password.getBytes(legacyEncoding)));
+
+        PwsFile.setPasswordEncoding(legacyEncoding);
+        try {
+            saveFile(numRecs, 100, password);
+        } finally {
+            PwsFile.setPasswordEncoding(encoding);
+        }
+
+        try {
+            for (int threads = 1; threads <= 2; ++threads) {
+                PwsFile.setPasswordProbeThreads(threads);
+                PwsFile file = loadFile(password);
+                assertEquals(legacyEncoding, file.getOpenPasswordEncoding());
+                verifyFile(file, numRecs, 100);
+            }
+        } finally {
+            PwsFile.setPasswordProbeThreads(1);
+        }
+    }
+
+    /** Test that an interrupted password check is not an invalid password */
+    @Test
+    public void testInterruptedPasswordCheck() throws Exception
+    {
+        final int numRecs = 10;
+        saveFile(numRecs, 100);
+
+        try {
+            for (int threads = 1; threads <= 2; ++threads) {
+                PwsFile.setPasswordProbeThreads(threads);
+                Thread.currentThread().interrupt();
+                try {
+                    loadFile();
+                    fail("Open not interrupted");
+                } catch (InterruptedIOException e) {
+                    assertTrue(Thread.interrupted());
+                }
+            }
+        } finally {
+            Thread.interrupted();
+            PwsFile.setPasswordProbeThreads(1);
+        }
+        verifyFile(loadFile(), numRecs, 100);
+    }
+
+    /** Test opening and saving a file through a mapped channel storage */
+    @Test
+    public void testChannelStorage() throws Exception
+    {
+        final int numRecs = 5000;
+        saveFile(numRecs, 100);
+
+        for (int i = 0; i < 2; ++i) {
+            long start = System.currentTimeMillis();
+            Owner<PwsPassword> passwd =
+                    new Owner<>(new PwsPassword(PASSWORD));
+            PwsFile file;
+            try {
+                file = PwsFileFactory.loadFile(itsFile.getPath(),
+                                               passwd.pass());
+            } finally {
+                passwd.close();
+            }
+            Log.i(TAG, "Channel open: " +
+                       (System.currentTimeMillis() - start) + "ms");
+            assertTrue(file.getStorage() instanceof PwsChannelStorage);
+
+            file.save();
+            verifyFile(file, numRecs, 100);
+        }
+    }
+
+    /** Test saving a file incrementally after adding and changing records */
+    @Test
+    public void testIncrementalSave() throws Exception
+    {
+        final int numRecs = 5000;
+        saveFile(numRecs, 100);
+
+        try {
+            PwsFileV3.setIncrementalSave(true);
+            PwsFile file = loadFile();
+            file.save();
+
+            for (int i = numRecs; i < 2 * numRecs; ++i) {
+                file.add(createRecord(file, i, 100));
+            }
+            long start = System.currentTimeMillis();
+            file.save();
+            Log.i(TAG, "Incremental save added records: " +
+                       (System.currentTimeMillis() - start) + "ms");
+
+            int changeIdx = (3 * numRecs) / 2;
+            file.set(changeIdx, createRecord(file, changeIdx, 100));
+            start = System.currentTimeMillis();
+            file.save();
+            Log.i(TAG, "Incremental save changed record: " +
+                       (System.currentTimeMillis() - start) + "ms");
+
+            // Fields set in place on an added and then a loaded record, each
+            // saved on its own
+            int addedIdx = numRecs + 10;
+            int loadedIdx = numRecs / 2;
+            file.getRecord(addedIdx).setField(
+                    new PwsStringUnicodeField(PwsRecordV3.URL,
+                                              "url" + addedIdx));
+            file.save();
+            PwsFile savedFile = loadFile();
+            assertEquals("url" + addedIdx,
+                         savedFile.getRecord(addedIdx).getField(
+                                 PwsRecordV3.URL).toString());
+            savedFile.dispose();
+
+            file.getRecord(loadedIdx).setField(
+                    new PwsStringUnicodeField(PwsRecordV3.URL,
+                                              "url" + loadedIdx));
+            file.save();
+
+            // A changed header field writes the whole file
+            ((PwsFileV3)file).getHeaderRecord().setField(
+                    new PwsStringUnicodeField(
+                            PwsRecordV3.HEADER_LAST_SAVE_USER, "user"));
+            file.save();
+            file.dispose();
+
+            file = loadFile();
+            assertEquals("user", ((PwsFileV3)file).getHeaderRecord().getField(
+                    PwsRecordV3.HEADER_LAST_SAVE_USER).toString());
+            for (int i = 0; i < 2 * numRecs; ++i) {
+                PwsField url = file.getRecord(i).getField(PwsRecordV3.URL);
+                if ((i == loadedIdx) || (i == addedIdx)) {
+                    assertEquals("url" + i, url.toString());
+                } else {
+                    assertNull(url);
+                }
+            }
+            file.dispose();
+        } finally {
+            PwsFileV3.setIncrementalSave(false);
+        }
+
+        verifyFile(loadFile(), 2 * numRecs, 100);
+        assertTrue(verifyFile());
+    }
+
+    /** Test the iterations chosen by the calibration when saving */
+    @Test
+    public void testStretchCalibration() throws Exception
+    {
+        final int numRecs = 10;
+        try {
+            PwsStretchCalibration.setTimeBudget(250);
+            PwsStretchCalibration.setThroughput(100000);
+            saveFile(numRecs, 100);
+            assertEquals(25000, readIter());
+
+            // The iterations are not lowered or changed by a small amount
+            PwsFile file = loadFile();
+            PwsStretchCalibration.setThroughput(20000);
+            file.save();
+            assertEquals(25000, readIter());
+            PwsStretchCalibration.setThroughput(110000);
+            file.save();
+            assertEquals(25000, readIter());
+
+            PwsStretchCalibration.setThroughput(200000);
+            file.save();
+            assertEquals(50000, readIter());
+            file.dispose();
+            verifyFile(loadFile(), numRecs, 100);
+
+            int iter = PwsStretchCalibration.getCalibratedIter();
+            Log.i(TAG, "Calibrated iterations: " + iter + ", throughput " +
+                       PwsStretchCalibration.getThroughput() + "/s");
+            assertTrue(iter >= PwsStretchCalibration.MIN_ITER);
+        } finally {
+            PwsStretchCalibration.setTimeBudget(0);
+            PwsStretchCalibration.setThroughput(0);
+        }
+    }
+
+    /** Test peeking at the header of a file without loading the records */
+    @Test
+    public void testPeekHeader() throws Exception
+    {
+        final int numRecs = 5000;
+        saveFile(numRecs, 100);
+
+        PwsFileV3 file = (PwsFileV3)loadFile();
+        byte[] saveTime = new byte[4];
+        Util.putMillisToByteArray(saveTime, 1500000000000L, 0);
+        PwsRecord hdr = file.getHeaderRecord();
+        hdr.setField(new PwsUnknownField(PwsRecordV3.HEADER_LAST_SAVE_TIME,
+                                         saveTime));
+        hdr.setField(new PwsUnknownField(PwsRecordV3.HEADER_LAST_SAVE_WHO,
+                                         "0004userhost".getBytes("UTF-8")));
+        hdr.setField(new PwsUnknownField(PwsRecordV3.HEADER_LAST_SAVE_WHAT,
+                                         "PwsFileV3Test".getBytes("UTF-8")));
+        file.save();
+        file.dispose();
+
+        long start = System.currentTimeMillis();
+        PwsFileInfo info = PwsFileFactory.peekHeader(itsFile.getPath(), null);
+        Log.i(TAG, "Peek header: " +
+                   (System.currentTimeMillis() - start) + "ms");
+        assertEquals(PwsFileV3.VERSION, info.itsVersion);
+        assertEquals(PwsStretchCalibration.MIN_ITER, info.itsIter);
+        assertEquals(itsFile.length(), info.itsFileSize);
+        assertFalse(info.itsIsHeaderRecordRead);
+        assertNull(info.itsLastSaveTime);
+
+        Owner<PwsPassword> passwd = new Owner<>(new PwsPassword(PASSWORD));
+        try {
+            start = System.currentTimeMillis();
+            info = PwsFileFactory.peekHeader(itsFile.getPath(),
+                                             passwd.pass());
+            Log.i(TAG, "Peek header with password: " +
+                       (System.currentTimeMillis() - start) + "ms");
+        } finally {
+            passwd.close();
+        }
+        assertEquals(PwsFileV3.VERSION, info.itsVersion);
+        assertTrue(info.itsIsHeaderRecordRead);
+        assertEquals(1500000000000L, info.itsLastSaveTime.getTime());
+        assertEquals("user", info.itsLastSaveUser);
+        assertEquals("host", info.itsLastSaveHost);
+        assertEquals("PwsFileV3Test", info.itsLastSaveApp);
+
+        passwd = new Owner<>(new PwsPassword("wrong"));
+        try {
+            PwsFileFactory.peekHeader(itsFile.getPath(), passwd.pass());
+            fail("Peeked with wrong password");
+        } catch (InvalidPassphraseException e) {
+            // Expected
+        } finally {
+            passwd.close();
+        }
+    }
+
+    /** Test verifying the HMAC of a file without loading the records */
+    @Test
+    public void testVerify() throws Exception
+    {
+        final int numRecs = 5000;
+        saveFile(numRecs, 100);
+
+        long start = System.currentTimeMillis();
+        loadFile().dispose();
+        Log.i(TAG, "Load: " + (System.currentTimeMillis() - start) + "ms");
+        start = System.currentTimeMillis();
+        assertTrue(verifyFile());
+        Log.i(TAG, "Verify: " + (System.currentTimeMillis() - start) + "ms");
+
+        // Fields larger than the chunks decrypted at a time
+        saveFile(10, 100000);
+        assertTrue(verifyFile());
+
+        // Changes to the middle of a notes field and to the HMAC
+        RandomAccessFile raf = new RandomAccessFile(itsFile, "rw");
+        try {
+            long pos = raf.length() / 2;
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0x01);
+            assertFalse(verifyFile());
+            raf.seek(pos);
+            raf.write(b);
+            assertTrue(verifyFile());
+
+            pos = raf.length() - 1;
+            raf.seek(pos);
+            b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0x01);
+            assertFalse(verifyFile());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Test that a change to the length of the first field fails the
+     * verification instead of throwing
+     */
+    @Test
+    public void testVerifyFieldLength() throws Exception
+    {
+        saveFile(10, 100);
+        assertTrue(verifyFile());
+
+        // With CBC, a bit flipped in the IV flips the same bit in the first
+        // decrypted block, whose first four bytes are the field length.  The
+        // high bits of the length make it negative or run past the data.
+        long pos = PwsFileV3.ID_STRING.length + 32 + 4 + 32 + (4 * 16) + 3;
+        RandomAccessFile raf = new RandomAccessFile(itsFile, "rw");
+        try {
+            raf.seek(pos);
+            int b = raf.read();
+            for (int bit: new int[] { 0x80, 0x40 }) {
+                raf.seek(pos);
+                raf.write(b ^ bit);
+                assertFalse(verifyFile());
+            }
+            raf.seek(pos);
+            raf.write(b);
+            assertTrue(verifyFile());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** Read the iterations from the header of the saved file */
+    private int readIter() throws Exception
+    {
+        RandomAccessFile raf = new RandomAccessFile(itsFile, "r");
+        try {
+            byte[] iterBytes = new byte[4];
+            raf.seek(PwsFileV3.ID_STRING.length + 32);
+            raf.readFully(iterBytes);
+            return Util.getIntFromByteArray(iterBytes, 0);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** Save a generated file */
+    private void saveFile(int numRecs, int notesLen) throws Exception
+    {
+        saveFile(numRecs, notesLen, PASSWORD);
+    }
+
+    /** Save a generated file with a password */
+    private void saveFile(int numRecs, int notesLen, String password)
+            throws Exception
+    {
+        PwsFile file = PwsFileFactory.newFile();
+        Owner<PwsPassword> passwd = new Owner<>(new PwsPassword(password));
+        try {
+            file.setPassphrase(passwd.pass());
+        } finally {
+            passwd.close();
+        }
+        file.setStorage(new PwsFileStorage(itsFile.getPath(), null));
+
+        for (int i = 0; i < numRecs; ++i) {
+            file.add(createRecord(file, i, notesLen));
+        }
+
+        long start = System.currentTimeMillis();
+        file.save();
+        Log.i(TAG, "Save " + numRecs + " records: " +
+                   (System.currentTimeMillis() - start) + "ms");
+        file.dispose();
+    }
+
+    /** Create a generated record */
+    private static PwsRecord createRecord(PwsFile file, int idx, int notesLen)
+    {
+        PwsRecord rec = file.newRecord();
+        rec.setField(new PwsStringUnicodeField(PwsRecordV3.TITLE,
+                                               "title" + idx));
+        rec.setField(new PwsStringUnicodeField(PwsRecordV3.NOTES,
+                                               createNotes(idx, notesLen)));
+        rec.setField(new PwsPasswdUnicodeField(PwsRecordV3.PASSWORD,
+                                               "passwd" + idx, file));
+        return rec;
+    }
+
+    /** Load the saved file */
+    private PwsFile loadFile() throws Exception
+    {
+        return loadFile(PASSWORD);
+    }
+
+    /** Load the saved file with a password */
+    private PwsFile loadFile(String password) throws Exception
+    {
+        Owner<PwsPassword> passwd = new Owner<>(new PwsPassword(password));
+        try {
+            return PwsFileFactory.loadFromStorage(
+                    new PwsFileStorage(itsFile.getPath(), itsFile.getPath()),
+                    passwd.pass());
+        } finally {
+            passwd.close();
+        }
+    }
+
+    /** Verify the HMAC of the saved file */
+    private boolean verifyFile() throws Exception
+    {
+        Owner<PwsPassword> passwd = new Owner<>(new PwsPassword(PASSWORD));
+        try {
+            return PwsFileFactory.verify(
+                    new PwsChannelStorage(itsFile.getPath(),
+                                          itsFile.getPath()),
+                    passwd.pass());
+        } finally {
+            passwd.close();
+        }
+    }
+
+    /** Verify the contents of a loaded file */
+    private static void verifyFile(PwsFile file, int numRecs, int notesLen)
+    {
+        assertEquals(numRecs, file.getRecordCount());
+        int idx = 0;
+        for (Iterator<PwsRecord> iter = file.getRecords(); iter.hasNext();) {
+            PwsRecord rec = iter.next();
+            assertEquals("title" + idx,
+                         rec.getField(PwsRecordV3.TITLE).toString());
+            assertEquals(createNotes(idx, notesLen),
+                         rec.getField(PwsRecordV3.NOTES).toString());
+            assertEquals("passwd" + idx,
+                         rec.getField(PwsRecordV3.PASSWORD).toString());
+            ++idx;
+        }
+        file.dispose();
+    }
+
+    /** Create the notes for a record */
+    private static String createNotes(int idx, int len)
+    {
+        StringBuilder notes = new StringBuilder(len);
+        for (int i = 0; i < len; ++i) {
+            notes.append((char)('a' + ((idx + i) % 26)));
+        }
+        return notes.toString();
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (©) 2017 Jeff Harris <jefftharris@gmail.com>
+ * All rights reserved. Use of the code is allowed under the
+ * Artistic License 2.0 terms, as specified in the LICENSE file
+ * distributed with this code, or available from
+ * http://www.opensource.org/licenses/artistic-license-2.0.php
+ */
+package com.jefftharris.passwdsafe.test.file;
+
+import android.util.Log;
+
+import com.jefftharris.passwdsafe.test.util.HeapUsage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pwsafe.lib.file.AbstractPwsPasswdField;
+import org.pwsafe.lib.file.PwsFieldTypeV3;
+import org.pwsafe.lib.file.PwsFile;
+import org.pwsafe.lib.file.PwsFileFactory;
+import org.pwsafe.lib.file.PwsPasswdField;
+import org.pwsafe.lib.file.PwsPasswdUnicodeField;
+import org.pwsafe.lib.file.PwsRecordV3;
+
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SealedObject;
+import javax.crypto.SecretKey;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Unit tests and a microbenchmark for the sealed password fields
+ */
+@SuppressWarnings("unused")
+public class PwsPasswdFieldTest
+{
+    private static final String TAG = "PwsPasswdFieldTest";
+
+    private static final int NUM_FIELDS = 10000;
+
+    private static final int NUM_HEAP_FIELDS = 50000;
+    private static final int NUM_HEAP_RUNS = 5;
+
+    private PwsFile itsFile;
+
+    @Before
+    public void createFile()
+    {
+        itsFile = PwsFileFactory.newFile();
+    }
+
+    @After
+    public void disposeFile()
+    {
+        itsFile.dispose();
+    }
+
+    /** Test sealing and unsealing field values */
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        for (String value: new String[] {
+                "", "a", "passwd", "0123456789abcdef", "0123456789abcdefg",
+                "éèê", "中文密码",
+                createValue(5000)}) {
+            PwsPasswdUnicodeField field =
+                    new PwsPasswdUnicodeField(PwsRecordV3.PASSWORD, value,
+                                              itsFile);
+            assertEquals(value, field.toString());
+            assertEquals(value, field.toString());
+            assertTrue(Arrays.equals(value.getBytes("UTF-8"),
+                                     field.getBytes()));
+
+            PwsPasswdUnicodeField bytesField =
+                    new PwsPasswdUnicodeField(PwsRecordV3.PASSWORD,
+                                              value.getBytes("UTF-8"),
+                                              itsFile);
+            assertEquals(value, bytesField.toString());
+            assertEquals(field, bytesField);
+        }
+
+        PwsPasswdField latinField = new PwsPasswdField(
+                PwsRecordV3.PASSWORD, "été", itsFile);
+        assertEquals("été", latinField.toString());
+        assertTrue(Arrays.equals("été".getBytes("ISO-8859-1"),
+                                 latinField.getBytes()));
+    }
+
+    /** Test classifying passwords which may reference another record */
+    @Test
+    public void testRefType() throws Exception
+    {
+        String uuid = "0123456789abcdef0123456789ABCDEF";
+        String[] values = new String[] {
+                "[[" + uuid + "]]", "[~" + uuid + "~]",
+                "[[" + uuid + "~]", "[~" + uuid + "]]",
+                "[[" + uuid + "0]]", "[[]]", uuid + "0000", "" };
+        byte[] refTypes = new byte[] {
+                AbstractPwsPasswdField.REF_ALIAS,
+                AbstractPwsPasswdField.REF_SHORTCUT,
+                AbstractPwsPasswdField.REF_NONE,
+                AbstractPwsPasswdField.REF_NONE,
+                AbstractPwsPasswdField.REF_NONE,
+                AbstractPwsPasswdField.REF_NONE,
+                AbstractPwsPasswdField.REF_NONE,
+                AbstractPwsPasswdField.REF_NONE };
+        for (int i = 0; i < values.length; ++i) {
+            PwsPasswdUnicodeField field =
+                    new PwsPasswdUnicodeField(PwsRecordV3.PASSWORD, values[i],
+                                              itsFile);
+            assertEquals(refTypes[i], field.getRefType());
+            PwsPasswdUnicodeField bytesField =
+                    new PwsPasswdUnicodeField(PwsRecordV3.PASSWORD,
+                                              values[i].getBytes("UTF-8"),
+                                              itsFile);
+            assertEquals(refTypes[i], bytesField.getRefType());
+            assertEquals(values[i], bytesField.toString());
+        }
+    }
+
+    /** Benchmark sealing and unsealing fields */
+    @Test
+    public void testSealPerformance() throws Exception
+    {
+        String[] values = new String[NUM_FIELDS];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = "passwd" + i;
+        }
+
+        long start = System.nanoTime();
+        PwsPasswdUnicodeField[] fields = new PwsPasswdUnicodeField[NUM_FIELDS];
+        for (int i = 0; i < fields.length; ++i) {
+            fields[i] = new PwsPasswdUnicodeField(PwsRecordV3.PASSWORD,
+                                                  values[i], itsFile);
+        }
+        logRate("Field seal", start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < fields.length; ++i) {
+            assertEquals(values[i], fields[i].toString());
+        }
+        logRate("Field unseal", start);
+
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(128);
+        SecretKey key = keyGen.generateKey();
+        Cipher writeCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        writeCipher.init(Cipher.ENCRYPT_MODE, key);
+        Cipher readCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        readCipher.init(Cipher.DECRYPT_MODE, key, writeCipher.getParameters());
+
+        start = System.nanoTime();
+        SealedObject[] objs = new SealedObject[NUM_FIELDS];
+        for (int i = 0; i < objs.length; ++i) {
+            objs[i] = new SealedObject(values[i], writeCipher);
+        }
+        logRate("SealedObject seal", start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < objs.length; ++i) {
+            assertEquals(values[i], objs[i].getObject(readCipher));
+        }
+        logRate("SealedObject unseal", start);
+    }
+
+    /**
+     * Measure the heap used to seal each field value compared to a
+     * SealedObject of the value
+     */
+    @Test
+    public void testSealHeapOverhead() throws Exception
+    {
+        // Create the file's sealer before measuring
+        new PwsPasswdUnicodeField(PwsRecordV3.PASSWORD, "", itsFile);
+        long emptyHeap = HeapUsage.measure(
+                NUM_HEAP_FIELDS, NUM_HEAP_RUNS, new HeapUsage.Allocator()
+                {
+                    @Override
+                    public Object allocate(int idx)
+                    {
+                        return new PwsPasswdUnicodeField(
+                                PwsFieldTypeV3.PASSWORD);
+                    }
+                });
+        long fieldHeap = HeapUsage.measure(
+                NUM_HEAP_FIELDS, NUM_HEAP_RUNS, new HeapUsage.Allocator()
+                {
+                    @Override
+                    public Object allocate(int idx)
+                    {
+                        return new PwsPasswdUnicodeField(
+                                PwsRecordV3.PASSWORD, "passwd" + idx,
+                                itsFile);
+                    }
+                });
+
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(128);
+        final Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, keyGen.generateKey());
+        long sealedObjHeap = HeapUsage.measure(
+                NUM_HEAP_FIELDS, NUM_HEAP_RUNS, new HeapUsage.Allocator()
+                {
+                    @Override
+                    public Object allocate(int idx) throws Exception
+                    {
+                        return new SealedObject("passwd" + idx, cipher);
+                    }
+                });
+
+        Log.i(TAG, "Field heap: " + fieldHeap + " bytes/field, envelope: " +
+                   (fieldHeap - emptyHeap) + " bytes/field, SealedObject: " +
+                   sealedObjHeap + " bytes/field");
+    }
+
+    /** Log the rate of operations on the fields */
+    private static void logRate(String op, long startNanos)
+    {
+        long elapsed = System.nanoTime() - startNanos;
+        Log.i(TAG, op + ": " + (elapsed / NUM_FIELDS) + "ns/field, " +
+                   (NUM_FIELDS * 1000000000L / Math.max(elapsed, 1)) +
+                   " fields/s");
+    }
+
+    /** Create a value of the given length */
+    private static String createValue(int len)
+    {
+        StringBuilder value = new StringBuilder(len);
+        for (int i = 0; i < len; ++i) {
+            value.append((char)('a' + (i % 26)));
+        }
+        return value.toString();
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (©) 2017 Jeff Harris <jefftharris@gmail.com>
+ * All rights reserved. Use of the code is allowed under the
+ * Artistic License 2.0 terms, as specified in the LICENSE file
+ * distributed with this code, or available from
+ * http://www.opensource.org/licenses/artistic-license-2.0.php
+ */
+package com.jefftharris.passwdsafe.test.file;
+
+import android.util.Log;
+
+import com.jefftharris.passwdsafe.test.util.HeapUsage;
+
+import org.junit.Test;
+import org.pwsafe.lib.UUID;
+import org.pwsafe.lib.file.Owner;
+import org.pwsafe.lib.file.PwsField;
+import org.pwsafe.lib.file.PwsFieldTypeV3;
+import org.pwsafe.lib.file.PwsFile;
+import org.pwsafe.lib.file.PwsFileFactory;
+import org.pwsafe.lib.file.PwsFileStorage;
+import org.pwsafe.lib.file.PwsPasswdUnicodeField;
+import org.pwsafe.lib.file.PwsPassword;
+import org.pwsafe.lib.file.PwsRecord;
+import org.pwsafe.lib.file.PwsRecordV3;
+import org.pwsafe.lib.file.PwsStringUnicodeField;
+import org.pwsafe.lib.file.PwsTimeField;
+import org.pwsafe.lib.file.PwsUUIDField;
+import org.pwsafe.lib.file.PwsUnknownField;
+
+import java.io.File;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Unit tests and microbenchmarks for the fields of a record
+ */
+@SuppressWarnings("unused")
+public class PwsRecordTest
+{
+    private static final String TAG = "PwsRecordTest";
+
+    private static final int NUM_RECORDS = 20000;
+
+    private static final int NUM_HEAP_RUNS = 5;
+
+    private static final int[] FIELD_TYPES = new int[] {
+            PwsRecordV3.GROUP, PwsRecordV3.TITLE, PwsRecordV3.USERNAME,
+            PwsRecordV3.NOTES, PwsRecordV3.URL, PwsRecordV3.EMAIL };
+
+    /** Test setting, replacing and removing known and unknown fields */
+    @Test
+    public void testFields() throws Exception
+    {
+        PwsFile pwsFile = PwsFileFactory.newFile();
+        PwsRecord rec = createRecord(pwsFile, 0);
+        for (int type: FIELD_TYPES) {
+            assertEquals(type + "0", rec.getField(type).toString());
+        }
+        assertNull(rec.getField(PwsRecordV3.AUTOTYPE));
+
+        rec.setField(new PwsStringUnicodeField(PwsRecordV3.TITLE, "new"));
+        assertEquals("new", rec.getField(PwsRecordV3.TITLE).toString());
+        rec.removeField(PwsRecordV3.TITLE);
+        assertNull(rec.getField(PwsRecordV3.TITLE));
+
+        for (int type: new int[] { 0xfe, 0x40, 0x80 }) {
+            rec.setField(new PwsUnknownField(type, new byte[] { (byte)type }));
+        }
+        rec.removeField(0x80);
+        assertNull(rec.getField(0x80));
+        assertEquals(0x40, rec.getField(0x40).getBytes()[0]);
+        assertEquals((byte)0xfe, rec.getField(0xfe).getBytes()[0]);
+
+        File tmpFile = File.createTempFile("pwsrecordtest", ".psafe3");
+        try {
+            Owner<PwsPassword> passwd =
+                    new Owner<>(new PwsPassword("test123"));
+            try {
+                pwsFile.setPassphrase(passwd.pass());
+                pwsFile.setStorage(new PwsFileStorage(tmpFile.getPath(),
+                                                      null));
+                pwsFile.add(rec);
+                pwsFile.save();
+
+                PwsFile file = PwsFileFactory.loadFromStorage(
+                        new PwsFileStorage(tmpFile.getPath(),
+                                           tmpFile.getPath()),
+                        passwd.pass());
+                PwsRecord loaded = file.getRecord(0);
+                assertEquals(rec, loaded);
+                assertNull(loaded.getField(PwsRecordV3.TITLE));
+                assertNull(loaded.getField(0x80));
+                assertEquals(0x40, loaded.getField(0x40).getBytes()[0]);
+                assertEquals((byte)0xfe,
+                             loaded.getField(0xfe).getBytes()[0]);
+                file.dispose();
+            } finally {
+                passwd.close();
+                pwsFile.dispose();
+            }
+        } finally {
+            assertTrue(tmpFile.delete());
+        }
+    }
+
+    /**
+     * Measure the heap used by the fields of records compared to a tree map
+     * of fields.  Both hold the same field objects, so only the heap of the
+     * containers is measured.
+     */
+    @Test
+    public void testHeapFootprint() throws Exception
+    {
+        final PwsFile pwsFile = PwsFileFactory.newFile();
+        final PwsField[][] fields = new PwsField[NUM_RECORDS][];
+        for (int i = 0; i < fields.length; ++i) {
+            fields[i] = createFields(i);
+        }
+
+        long recHeap = HeapUsage.measure(
+                NUM_RECORDS, NUM_HEAP_RUNS, new HeapUsage.Allocator()
+                {
+                    @Override
+                    public Object allocate(int idx)
+                    {
+                        PwsRecord rec = pwsFile.newRecord();
+                        for (PwsField field: fields[idx]) {
+                            rec.setField(field);
+                        }
+                        return rec;
+                    }
+                });
+        long mapHeap = HeapUsage.measure(
+                NUM_RECORDS, NUM_HEAP_RUNS, new HeapUsage.Allocator()
+                {
+                    @Override
+                    public Object allocate(int idx)
+                    {
+                        Map<Integer, PwsField> map = new TreeMap<>();
+                        for (PwsField field: fields[idx]) {
+                            map.put(field.getType(), field);
+                        }
+                        return map;
+                    }
+                });
+        Log.i(TAG, "Record heap: " + recHeap + " bytes/record, " +
+                   "tree map heap: " + mapHeap + " bytes/record");
+    }
+
+    /** Benchmark looking up the fields of records */
+    @Test
+    public void testLookupThroughput()
+    {
+        PwsFile pwsFile = PwsFileFactory.newFile();
+        PwsRecord[] recs = new PwsRecord[NUM_RECORDS];
+        for (int i = 0; i < recs.length; ++i) {
+            recs[i] = createRecord(pwsFile, i);
+        }
+
+        int found = 0;
+        long start = System.nanoTime();
+        for (int pass = 0; pass < 10; ++pass) {
+            for (PwsRecord rec: recs) {
+                for (int type: FIELD_TYPES) {
+                    if (rec.getField(type) != null) {
+                        ++found;
+                    }
+                }
+                if (rec.getField(PwsRecordV3.AUTOTYPE) != null) {
+                    ++found;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        int lookups = 10 * NUM_RECORDS * (FIELD_TYPES.length + 1);
+        Log.i(TAG, "Field lookup: " +
+                   (lookups * 1000000000L / Math.max(elapsed, 1)) +
+                   " lookups/s");
+        assertEquals(10 * NUM_RECORDS * FIELD_TYPES.length, found);
+    }
+
+    /** Create a record with generated fields */
+    private static PwsRecord createRecord(PwsFile pwsFile, int idx)
+    {
+        PwsRecord rec = pwsFile.newRecord();
+        for (int type: FIELD_TYPES) {
+            rec.setField(new PwsStringUnicodeField(type, type + "" + idx));
+        }
+        return rec;
+    }
+
+    /**
+     * Create the generated fields of a record along with the fields set on
+     * a new record
+     */
+    private static PwsField[] createFields(int idx)
+    {
+        PwsField[] fields = new PwsField[FIELD_TYPES.length + 3];
+        int pos = 0;
+        fields[pos++] = new PwsUUIDField(PwsFieldTypeV3.UUID, new UUID());
+        fields[pos++] = new PwsPasswdUnicodeField(PwsFieldTypeV3.PASSWORD);
+        fields[pos++] = new PwsTimeField(PwsFieldTypeV3.CREATION_TIME,
+                                         new Date());
+        for (int type: FIELD_TYPES) {
+            fields[pos++] = new PwsStringUnicodeField(type, type + "" + idx);
+        }
+        return fields;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (©) 2017 Jeff Harris <jefftharris@gmail.com>
+ * All rights reserved. Use of the code is allowed under the
+ * Artistic License 2.0 terms, as specified in the LICENSE file
+ * distributed with this code, or available from
+ * http://www.opensource.org/licenses/artistic-license-2.0.php
+ */
+package com.jefftharris.passwdsafe.test.file;
+
+import android.util.Log;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.junit.Test;
+import org.pwsafe.lib.crypto.SHA256Pws;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Unit tests and a benchmark for the iterated digest used to stretch a
+ * passphrase
+ */
+@SuppressWarnings("unused")
+public class SHA256PwsTest
+{
+    private static final String TAG = "SHA256PwsTest";
+
+    private static final int[] ITERS = new int[] { 2048, 65536, 262144 };
+
+    /** Test the Java and native digests against a digest of each iteration */
+    @Test
+    public void testDigestN()
+    {
+        Random rand = new Random(0);
+        for (int i = 0; i < 50; ++i) {
+            byte[] p = new byte[rand.nextInt(100)];
+            rand.nextBytes(p);
+            int iter = rand.nextInt(3000);
+            byte[] expected = digestNDigest(p, iter);
+            assertTrue(Arrays.equals(
+                    expected, SHA256Pws.JAVA_DIGESTN.digestN(p, iter)));
+            assertTrue(Arrays.equals(
+                    expected, SHA256Pws.NATIVE_DIGESTN.digestN(p, iter)));
+        }
+    }
+
+    /**
+     * Benchmark the Java and native digests against a digest of each
+     * iteration
+     */
+    @Test
+    public void testDigestNLatency()
+    {
+        byte[] p = new byte[40];
+        for (int iter: ITERS) {
+            long start = System.nanoTime();
+            digestNDigest(p, iter);
+            long digestNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            SHA256Pws.JAVA_DIGESTN.digestN(p, iter);
+            long javaNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            SHA256Pws.NATIVE_DIGESTN.digestN(p, iter);
+            long nativeNanos = System.nanoTime() - start;
+
+            Log.i(TAG, "Iterations " + iter + ": digest " +
+                       (digestNanos / 1000) + "us, java " +
+                       (javaNanos / 1000) + "us, native " +
+                       (nativeNanos / 1000) + "us");
+        }
+    }
+
+    /**
+     * Iterated digest using a SHA256Digest for each iteration
+     */
+    private static byte[] digestNDigest(byte[] p, int iter)
+    {
+        SHA256Digest digest = new SHA256Digest();
+        byte[] output = new byte[digest.getDigestSize()];
+        digest.update(p, 0, p.length);
+        digest.doFinal(output, 0);
+        for (int i = 0; i < iter; ++i) {
+            digest.reset();
+            digest.update(output, 0, output.length);
+            digest.doFinal(output, 0);
+        }
+        return output;
+    }
+}
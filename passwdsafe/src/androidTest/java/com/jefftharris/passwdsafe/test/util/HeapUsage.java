@@ -0,0 +1,62 @@
+/*
+ * Copyright (©) 2017 Jeff Harris <jefftharris@gmail.com>
+ * All rights reserved. Use of the code is allowed under the
+ * Artistic License 2.0 terms, as specified in the LICENSE file
+ * distributed with this code, or available from
+ * http://www.opensource.org/licenses/artistic-license-2.0.php
+ */
+package com.jefftharris.passwdsafe.test.util;
+
+import java.util.Arrays;
+
+/**
+ * Measurement of the heap retained by objects for microbenchmarks
+ */
+public final class HeapUsage
+{
+    /** Allocator of the objects to measure */
+    public interface Allocator
+    {
+        /** Allocate the object with the given index */
+        Object allocate(int idx) throws Exception;
+    }
+
+    /**
+     * Measure the heap retained by allocated objects.  The objects are
+     * allocated in several runs, and the median of the runs is used so a
+     * collection of unrelated garbage during one run does not skew the
+     * result.
+     *
+     * @param numObjs The number of objects to allocate in each run
+     * @param numRuns The number of runs
+     * @param alloc The allocator of the objects
+     * @return The heap in bytes per object
+     */
+    public static long measure(int numObjs, int numRuns, Allocator alloc)
+            throws Exception
+    {
+        long[] runSizes = new long[numRuns];
+        for (int run = 0; run < numRuns; ++run) {
+            Object[] objs = new Object[numObjs];
+            long before = usedMemory();
+            for (int i = 0; i < numObjs; ++i) {
+                objs[i] = alloc.allocate(i);
+            }
+            runSizes[run] = usedMemory() - before;
+            Arrays.fill(objs, null);
+        }
+        Arrays.sort(runSizes);
+        return runSizes[numRuns / 2] / numObjs;
+    }
+
+    /** Get the heap in use after a garbage collection */
+    public static long usedMemory()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+            System.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
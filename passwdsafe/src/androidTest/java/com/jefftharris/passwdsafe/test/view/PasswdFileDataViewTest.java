@@ -0,0 +1,378 @@
+/*
+ * Copyright (©) 2017 Jeff Harris <jefftharris@gmail.com>
+ * All rights reserved. Use of the code is allowed under the
+ * Artistic License 2.0 terms, as specified in the LICENSE file
+ * distributed with this code, or available from
+ * http://www.opensource.org/licenses/artistic-license-2.0.php
+ */
+package com.jefftharris.passwdsafe.test.view;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.jefftharris.passwdsafe.file.PasswdFileData;
+import com.jefftharris.passwdsafe.file.PasswdFileUri;
+import com.jefftharris.passwdsafe.view.PasswdFileDataView;
+import com.jefftharris.passwdsafe.view.PasswdRecordListData;
+import com.jefftharris.passwdsafe.view.PasswdRecordListPage;
+
+import org.pwsafe.lib.file.Owner;
+import org.pwsafe.lib.file.PwsPassword;
+import org.pwsafe.lib.file.PwsRecord;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for patching the group tree of the PasswdFileDataView as records
+ * change.  After each change, the patched view is compared against a view
+ * whose tree is built from scratch.
+ */
+@SuppressWarnings("unused")
+public class PasswdFileDataViewTest extends AndroidTestCase
+{
+    private static final String[] GROUPS = {
+            "", "Alpha", "Alpha.One", "Alpha.One.X", "Beta", "Beta.Two",
+            "Gamma" };
+
+    private File itsFile;
+    private SharedPreferences itsPrefs;
+    private PasswdFileData itsFileData;
+    private PasswdFileDataView itsView;
+    private int itsNextTitle = 0;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        Context ctx = getContext();
+        itsFile = File.createTempFile("passwdfiledataviewtest", ".psafe3",
+                                      ctx.getCacheDir());
+        assertTrue(itsFile.delete());
+
+        // Use the default display options
+        itsPrefs = ctx.getSharedPreferences("PasswdFileDataViewTest",
+                                            Context.MODE_PRIVATE);
+        itsPrefs.edit().clear().commit();
+
+        PasswdFileUri uri =
+                new PasswdFileUri.Creator(Uri.fromFile(itsFile), ctx)
+                        .finishCreate();
+        itsFileData = new PasswdFileData(uri);
+        Owner<PwsPassword> passwd = new Owner<>(new PwsPassword("test123"));
+        try {
+            itsFileData.createNewFile(passwd.pass(), ctx);
+        } finally {
+            passwd.close();
+        }
+
+        for (int i = 0; i < 40; ++i) {
+            addRecord(GROUPS[i % GROUPS.length]);
+        }
+        itsView = createView();
+
+        // Show every group so their sorted items are patched too
+        checkView();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        itsFileData.close();
+        //noinspection ResultOfMethodCallIgnored
+        itsFile.delete();
+        //noinspection ResultOfMethodCallIgnored
+        new File(itsFile.getParentFile(), itsFile.getName() + "~").delete();
+        super.tearDown();
+    }
+
+    /** Test adding records to existing and new groups */
+    public void testAddRecord()
+    {
+        addRecord("Alpha.One");
+        refreshAndCheck();
+
+        PwsRecord rec = addRecord("Delta.Three.Y");
+        assertFalse(itsView.hasGroup("Delta"));
+        refreshAndCheck();
+        assertTrue(itsView.hasGroup("Delta.Three.Y"));
+        assertEquals(1, getItems("Delta", "Three", "Y").size());
+        assertEquals(itsFileData.getUUID(rec),
+                     getItems("Delta", "Three", "Y").get(0).itsUuid);
+
+        addRecord("");
+        addRecord("Delta.Three");
+        refreshAndCheck();
+    }
+
+    /** Test removing records, including the last records of a group */
+    public void testRemoveRecord()
+    {
+        PwsRecord rec = addRecord("Delta.Three");
+        refreshAndCheck();
+        assertTrue(itsView.hasGroup("Delta.Three"));
+
+        assertTrue(itsFileData.removeRecord(rec, getContext()));
+        refreshAndCheck();
+        assertFalse(itsView.hasGroup("Delta"));
+
+        for (PwsRecord groupRec: getRecords("Beta.Two")) {
+            assertTrue(itsFileData.removeRecord(groupRec, getContext()));
+            refreshAndCheck();
+        }
+        assertFalse(itsView.hasGroup("Beta.Two"));
+        assertTrue(itsView.hasGroup("Beta"));
+    }
+
+    /** Test moving records between groups */
+    public void testRegroupRecord()
+    {
+        List<PwsRecord> recs = getRecords("Beta.Two");
+        assertFalse(recs.isEmpty());
+
+        itsFileData.setGroup("Alpha.One.X", recs.get(0));
+        refreshAndCheck();
+
+        itsFileData.setGroup("Delta", recs.get(0));
+        refreshAndCheck();
+        assertTrue(itsView.hasGroup("Delta"));
+
+        for (PwsRecord rec: recs) {
+            itsFileData.setGroup(null, rec);
+            refreshAndCheck();
+        }
+        assertFalse(itsView.hasGroup("Beta.Two"));
+        assertFalse(itsView.hasGroup("Delta"));
+    }
+
+    /** Test renaming records, which moves them within the sorted items */
+    public void testRenameRecord()
+    {
+        List<PwsRecord> recs = getRecords("Gamma");
+        assertFalse(recs.isEmpty());
+
+        // Titles which sort before and after the other records
+        itsFileData.setTitle("AAA", recs.get(0));
+        refreshAndCheck();
+        itsFileData.setTitle("zzz", recs.get(0));
+        refreshAndCheck();
+
+        itsFileData.setTitle(createTitle(), recs.get(0));
+        itsFileData.setUsername("user", recs.get(0));
+        refreshAndCheck();
+
+        // Renaming and regrouping together
+        itsFileData.setTitle(createTitle(), recs.get(0));
+        itsFileData.setGroup("Alpha", recs.get(0));
+        refreshAndCheck();
+    }
+
+    /** Test a random series of changes */
+    public void testRandomChanges()
+    {
+        Random random = new Random(1);
+        for (int i = 0; i < 200; ++i) {
+            List<PwsRecord> recs = itsFileData.getRecords();
+            PwsRecord rec = recs.isEmpty() ? null :
+                            recs.get(random.nextInt(recs.size()));
+            int op = (rec == null) ? 0 : random.nextInt(4);
+            switch (op) {
+            case 0: {
+                addRecord(GROUPS[random.nextInt(GROUPS.length)]);
+                break;
+            }
+            case 1: {
+                assertTrue(itsFileData.removeRecord(rec, getContext()));
+                break;
+            }
+            case 2: {
+                itsFileData.setGroup(GROUPS[random.nextInt(GROUPS.length)],
+                                     rec);
+                break;
+            }
+            case 3: {
+                itsFileData.setTitle(createTitle(), rec);
+                break;
+            }
+            }
+            refreshAndCheck();
+        }
+    }
+
+    /** Create a view of the file data with its tree built from scratch */
+    private PasswdFileDataView createView()
+    {
+        PasswdFileDataView view = new PasswdFileDataView();
+        view.onAttach(getContext(), itsPrefs);
+        view.setFileData(itsFileData);
+        return view;
+    }
+
+    /** Refresh the view, patching its tree, and check it */
+    private void refreshAndCheck()
+    {
+        itsView.refreshFileData(itsFileData);
+        checkView();
+    }
+
+    /** Check the view against a view whose tree is built from scratch */
+    private void checkView()
+    {
+        PasswdFileDataView builtView = createView();
+        assertEquals(dumpView(builtView), dumpView(itsView));
+
+        List<String> uuids = new ArrayList<>();
+        for (PwsRecord rec: itsFileData.getRecords()) {
+            uuids.add(itsFileData.getUUID(rec));
+        }
+        Collections.sort(uuids);
+        assertEquals(uuids, walkRecords(itsView));
+        builtView.onDetach();
+    }
+
+    /** Dump the sorted items of all of the groups of a view */
+    private static List<String> dumpView(PasswdFileDataView view)
+    {
+        List<String> dump = new ArrayList<>();
+        dumpGroup(view, new ArrayList<String>(), dump);
+        view.setCurrGroups(null);
+        return dump;
+    }
+
+    /** Dump the sorted items of a group and its child groups */
+    private static void dumpGroup(PasswdFileDataView view,
+                                  List<String> groups,
+                                  List<String> dump)
+    {
+        for (PasswdRecordListData item: getItems(view, groups)) {
+            dump.add(groups + " " + item.itsTitle + " " + item.itsUser + " " +
+                     item.itsUuid + " " + item.itsIsRecord);
+            if (!item.itsIsRecord) {
+                List<String> childGroups = new ArrayList<>(groups);
+                childGroups.add(item.itsTitle);
+                dumpGroup(view, childGroups, dump);
+            }
+        }
+    }
+
+    /** Get the sorted UUIDs of all of the records in a view */
+    private static List<String> walkRecords(PasswdFileDataView view)
+    {
+        final List<String> uuids = new ArrayList<>();
+        view.setCurrGroups(null);
+        view.walkGroupRecords(new PasswdFileDataView.RecordVisitor()
+        {
+            @Override
+            public void visitRecord(String recordUuid)
+            {
+                uuids.add(recordUuid);
+            }
+        });
+        Collections.sort(uuids);
+        return uuids;
+    }
+
+    /** Get the sorted items of a group in the view */
+    private List<PasswdRecordListData> getItems(String... groups)
+    {
+        List<String> groupList = new ArrayList<>();
+        Collections.addAll(groupList, groups);
+        List<PasswdRecordListData> items = getItems(itsView, groupList);
+        itsView.setCurrGroups(null);
+        return items;
+    }
+
+    /** Get the sorted items of a group in a view */
+    private static List<PasswdRecordListData> getItems(
+            PasswdFileDataView view, List<String> groups)
+    {
+        view.setCurrGroups(groups);
+        PasswdRecordListPage page =
+                view.getRecords(true, true, 0, Integer.MAX_VALUE, null);
+        assertEquals(0, page.itsOffset);
+        assertEquals(page.itsNumItems, page.itsItems.size());
+        checkTypePages(view, page.itsItems, true);
+        checkTypePages(view, page.itsItems, false);
+        return page.itsItems;
+    }
+
+    /**
+     * Check the pages of the records or groups alone of the current group
+     * against its sorted items
+     */
+    private static void checkTypePages(PasswdFileDataView view,
+                                       List<PasswdRecordListData> items,
+                                       boolean isRecord)
+    {
+        final int limit = 3;
+        List<String> expected = new ArrayList<>();
+        for (PasswdRecordListData item: items) {
+            if (item.itsIsRecord == isRecord) {
+                expected.add(item.itsTitle + " " + item.itsUuid);
+            }
+        }
+
+        List<String> actual = new ArrayList<>();
+        for (int offset = 0; offset < expected.size(); offset += limit) {
+            PasswdRecordListPage page =
+                    view.getRecords(isRecord, !isRecord, offset, limit, null);
+            assertEquals(offset, page.itsOffset);
+            assertEquals(expected.size(), page.itsNumItems);
+            for (PasswdRecordListData item: page.itsItems) {
+                actual.add(item.itsTitle + " " + item.itsUuid);
+            }
+        }
+        assertEquals(expected, actual);
+
+        // The page of a selected record is returned in place of the offset
+        if (isRecord && !expected.isEmpty()) {
+            PasswdRecordListData last = null;
+            for (PasswdRecordListData item: items) {
+                if (item.itsIsRecord) {
+                    last = item;
+                }
+            }
+            assertNotNull(last);
+            PasswdRecordListPage page =
+                    view.getRecords(true, false, 0, limit, last.itsUuid);
+            assertEquals(expected.size() - 1, page.itsSelectedPos);
+            assertEquals(last.itsUuid,
+                         page.itsItems.get(page.itsSelectedPos -
+                                           page.itsOffset).itsUuid);
+        }
+    }
+
+    /** Get the records in a group */
+    private List<PwsRecord> getRecords(String group)
+    {
+        List<PwsRecord> recs = new ArrayList<>();
+        for (PwsRecord rec: itsFileData.getRecords()) {
+            if (group.equals(itsFileData.getGroup(rec))) {
+                recs.add(rec);
+            }
+        }
+        return recs;
+    }
+
+    /** Add a record with a unique title to a group */
+    private PwsRecord addRecord(String group)
+    {
+        PwsRecord rec = itsFileData.createRecord();
+        itsFileData.setTitle(createTitle(), rec);
+        itsFileData.setUsername("user" + itsNextTitle, rec);
+        itsFileData.setGroup(group, rec);
+        itsFileData.addRecord(rec);
+        return rec;
+    }
+
+    /** Create a unique title so the records sort the same in any view */
+    private String createTitle()
+    {
+        return "Record " + itsNextTitle++;
+    }
+}
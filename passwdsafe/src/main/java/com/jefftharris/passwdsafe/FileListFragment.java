@@ -9,6 +9,7 @@ package com.jefftharris.passwdsafe;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -28,6 +29,7 @@ import android.support.v4.app.LoaderManager;
 import android.support.v4.app.LoaderManager.LoaderCallbacks;
 import android.support.v4.content.AsyncTaskLoader;
 import android.support.v4.content.Loader;
+import android.text.format.Formatter;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -45,6 +47,11 @@ import com.jefftharris.passwdsafe.lib.Utils;
 import com.jefftharris.passwdsafe.lib.view.GuiUtils;
 import com.jefftharris.passwdsafe.util.FileComparator;
 
+import org.pwsafe.lib.exception.EndOfFileException;
+import org.pwsafe.lib.exception.InvalidPassphraseException;
+import org.pwsafe.lib.file.PwsFileFactory;
+import org.pwsafe.lib.file.PwsFileInfo;
+
 /**
  * The FileListFragment allows the user to choose which file to open
  */
@@ -591,11 +598,36 @@ public final class FileListFragment extends ListFragment
                 icon = itsFolderIcon;
             } else {
                 icon = itsFileIcon;
-                item.put(MOD_DATE, Utils.formatDate(file.itsFile.lastModified(),
-                                                    getContext()));
+                item.put(MOD_DATE, getFileDetails(file.itsFile));
             }
             item.put(ICON, icon);
             return item;
         }
+
+        /**
+         * Get the details of a file from its modification time and the
+         * unencrypted start of the file
+         */
+        private String getFileDetails(File file)
+        {
+            Context ctx = getContext();
+            String modDate = Utils.formatDate(file.lastModified(), ctx);
+            PwsFileInfo info;
+            try {
+                info = PwsFileFactory.peekHeader(file.getPath(), null);
+            } catch (EndOfFileException | InvalidPassphraseException |
+                    IOException e) {
+                PasswdSafeUtil.dbginfo(TAG, e, "Error peeking at %s", file);
+                return modDate;
+            }
+
+            String size = Formatter.formatShortFileSize(ctx, info.itsFileSize);
+            if (info.itsVersion == 0) {
+                return ctx.getString(R.string.file_details, modDate, size);
+            }
+            return ctx.getResources().getQuantityString(
+                    R.plurals.file_details_v3, info.itsIter,
+                    modDate, size, info.itsIter);
+        }
     }
 }
@@ -28,12 +28,10 @@ import com.jefftharris.passwdsafe.util.Pair;
 import com.jefftharris.passwdsafe.view.CopyField;
 import com.jefftharris.passwdsafe.view.PasswdFileDataView;
 import com.jefftharris.passwdsafe.view.PasswdLocation;
-import com.jefftharris.passwdsafe.view.PasswdRecordListData;
+import com.jefftharris.passwdsafe.view.PasswdRecordListPage;
 
 import org.pwsafe.lib.file.PwsRecord;
 
-import java.util.List;
-
 public class LauncherRecordShortcuts extends AppCompatActivity
         implements PasswdSafeListFragment.Listener,
                    SharedPreferences.OnSharedPreferenceChangeListener
@@ -204,10 +202,12 @@ public class LauncherRecordShortcuts extends AppCompatActivity
     }
 
     @Override
-    public List<PasswdRecordListData> getBackgroundRecordItems(
-            boolean incRecords, boolean incGroups)
+    public PasswdRecordListPage getBackgroundRecordItems(
+            boolean incRecords, boolean incGroups, int offset, int limit,
+            String selectedRecord)
     {
-        return itsFileDataView.getRecords(incRecords, incGroups);
+        return itsFileDataView.getRecords(incRecords, incGroups, offset, limit,
+                                          selectedRecord);
     }
 
     @Override
@@ -7,6 +7,7 @@
  */
 package com.jefftharris.passwdsafe;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -69,6 +70,8 @@ public class NotificationMgr implements PasswdFileDataObserver
     private static final String DB_COL_EXPIRYS_EXPIRE = "rec_expire";
     private static final String DB_MATCH_EXPIRYS_URI =
         DB_COL_EXPIRYS_URI + " = ?";
+    private static final String DB_MATCH_EXPIRYS_URI_EXPIRED =
+        DB_MATCH_EXPIRYS_URI + " AND " + DB_COL_EXPIRYS_EXPIRE + " <= ?";
     private static final String DB_MATCH_EXPIRYS_ID =
         DB_COL_EXPIRYS_ID + " = ?";
 
@@ -81,6 +84,10 @@ public class NotificationMgr implements PasswdFileDataObserver
     private int itsNextNotifId = 1;
     private PasswdRecordFilter.ExpiryFilter itsExpiryFilter = null;
     private PendingIntent itsTimerIntent;
+    /** The open file with notifications whose expiration index finds the
+     * next alarm without reading all of its entries */
+    private WeakReference<PasswdFileData> itsOpenFileData = null;
+    private long itsOpenFileUriId = -1;
 
     /** Constructor */
     public NotificationMgr(Context ctx,
@@ -271,6 +278,8 @@ public class NotificationMgr implements PasswdFileDataObserver
     {
         PasswdSafeUtil.dbginfo(TAG, "Update %s, id: %d",
                                fileData.getUri(), uriId);
+        itsOpenFileData = new WeakReference<>(fileData);
+        itsOpenFileUriId = uriId;
 
         TreeMap<ExpiryEntry, Long> entries = new TreeMap<>();
         Cursor cursor =
@@ -293,16 +302,15 @@ public class NotificationMgr implements PasswdFileDataObserver
 
         boolean dbchanged = false;
         ContentValues values = null;
-        for (PasswdRecord rec: fileData.getPasswdRecords()) {
-            PasswdExpiration expiry = rec.getPasswdExpiry();
+        for (PwsRecord rec: fileData.getPasswdExpiryRecords(Long.MAX_VALUE)) {
+            PasswdExpiration expiry = fileData.getPasswdExpiry(rec);
             if (expiry == null) {
                 continue;
             }
 
-            PwsRecord pwsrec = rec.getRecord();
-            ExpiryEntry entry = new ExpiryEntry(rec.getUUID(),
-                                                fileData.getTitle(pwsrec),
-                                                fileData.getGroup(pwsrec),
+            ExpiryEntry entry = new ExpiryEntry(fileData.getUUID(rec),
+                                                fileData.getTitle(rec),
+                                                fileData.getGroup(rec),
                                                 expiry.itsExpiration.getTime());
             if (entries.remove(entry) == null) {
                 if (values == null) {
@@ -437,8 +445,17 @@ public class NotificationMgr implements PasswdFileDataObserver
         itsNotifUris.add(uri);
         PasswdSafeUtil.dbginfo(TAG, "Load %s", uri);
 
-        TreeSet<ExpiryEntry> expired =
-            loadUriEntries(uriId, expiration, nextExpiration, db);
+        TreeSet<ExpiryEntry> expired;
+        PasswdFileData fileData = getOpenFileData(uriId);
+        if (fileData != null) {
+            expired = loadUriEntries(uriId, expiration, null, db);
+            long next = fileData.getNextPasswdExpiry(expiration);
+            if (next < nextExpiration.itsValue) {
+                nextExpiration.itsValue = next;
+            }
+        } else {
+            expired = loadUriEntries(uriId, expiration, nextExpiration, db);
+        }
 
         if (expired.isEmpty()) {
             return true;
@@ -487,7 +504,10 @@ public class NotificationMgr implements PasswdFileDataObserver
     }
 
 
-    /** Load the expiration entries for a URI from the database */
+    /**
+     * Load the expiration entries for a URI from the database.  If the next
+     * expiration is null, only the expired entries are read.
+     */
     private TreeSet<ExpiryEntry>
     loadUriEntries(final long uriId,
                    final long expiration,
@@ -496,13 +516,22 @@ public class NotificationMgr implements PasswdFileDataObserver
         throws SQLException
     {
         TreeSet<ExpiryEntry> expired = new TreeSet<>();
+        String selection;
+        String[] selectionArgs;
+        if (nextExpiration != null) {
+            selection = DB_MATCH_EXPIRYS_URI;
+            selectionArgs = new String[] { Long.toString(uriId) };
+        } else {
+            selection = DB_MATCH_EXPIRYS_URI_EXPIRED;
+            selectionArgs = new String[] { Long.toString(uriId),
+                                           Long.toString(expiration) };
+        }
         Cursor cursor = db.query(DB_TABLE_EXPIRYS,
                                  new String[] { DB_COL_EXPIRYS_UUID,
                                                 DB_COL_EXPIRYS_TITLE,
                                                 DB_COL_EXPIRYS_GROUP,
                                                 DB_COL_EXPIRYS_EXPIRE },
-                                 DB_MATCH_EXPIRYS_URI,
-                                 new String[] { Long.toString(uriId) },
+                                 selection, selectionArgs,
                                  null, null, null);
         try {
             while (cursor.moveToNext()) {
@@ -517,7 +546,8 @@ public class NotificationMgr implements PasswdFileDataObserver
                                            entry.itsExpiry);
                     expired.add(entry);
                 }
-                else if (expiry < nextExpiration.itsValue) {
+                else if ((nextExpiration != null) &&
+                         (expiry < nextExpiration.itsValue)) {
                     nextExpiration.itsValue = expiry;
                 }
             }
@@ -529,6 +559,24 @@ public class NotificationMgr implements PasswdFileDataObserver
     }
 
 
+    /**
+     * Get the open file for a URI id whose expirations were last written to
+     * the database; null if the file is closed
+     */
+    private PasswdFileData getOpenFileData(long uriId)
+    {
+        if ((itsOpenFileData == null) || (itsOpenFileUriId != uriId)) {
+            return null;
+        }
+        PasswdFileData fileData = itsOpenFileData.get();
+        if ((fileData == null) || (fileData.getUri() == null)) {
+            itsOpenFileData = null;
+            return null;
+        }
+        return fileData;
+    }
+
+
     /** Remove the URI from the database */
     private static void removeUri(Long id, SQLiteDatabase db)
         throws SQLException
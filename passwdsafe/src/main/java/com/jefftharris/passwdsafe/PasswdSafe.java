@@ -49,14 +49,13 @@ import com.jefftharris.passwdsafe.view.ConfirmPromptDialog;
 import com.jefftharris.passwdsafe.view.CopyField;
 import com.jefftharris.passwdsafe.view.PasswdFileDataView;
 import com.jefftharris.passwdsafe.view.PasswdLocation;
-import com.jefftharris.passwdsafe.view.PasswdRecordListData;
+import com.jefftharris.passwdsafe.view.PasswdRecordListPage;
 
 import org.pwsafe.lib.file.PwsRecord;
 
 import java.io.IOException;
 import java.util.BitSet;
 import java.util.Date;
-import java.util.List;
 
 /**
  * The main PasswdSafe activity for showing a password file
@@ -752,15 +751,19 @@ public class PasswdSafe extends AppCompatActivity
     }
 
     /**
-     * Get the current record items in a background thread
+     * Get a page of the current record items in a background thread
      */
     @Override
-    public List<PasswdRecordListData> getBackgroundRecordItems(
+    public PasswdRecordListPage getBackgroundRecordItems(
             boolean incRecords,
-            boolean incGroups)
+            boolean incGroups,
+            int offset,
+            int limit,
+            String selectedRecord)
     {
         PasswdFileDataView dataView = itsFileDataFrag.getFileDataView();
-        return dataView.getRecords(incRecords, incGroups);
+        return dataView.getRecords(incRecords, incGroups, offset, limit,
+                                   selectedRecord);
     }
 
     @Override
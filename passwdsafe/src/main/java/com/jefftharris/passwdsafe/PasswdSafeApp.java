@@ -7,7 +7,9 @@
  */
 package com.jefftharris.passwdsafe;
 
+import org.pwsafe.lib.crypto.SHA256Pws;
 import org.pwsafe.lib.file.PwsFile;
+import org.pwsafe.lib.file.PwsStretchCalibration;
 
 import android.app.Activity;
 import android.app.AlarmManager;
@@ -16,13 +18,17 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.Uri;
+import android.os.Build;
 import android.text.TextUtils;
 
+import com.jefftharris.passwdsafe.file.PasswdFileData;
 import com.jefftharris.passwdsafe.file.PasswdFileUri;
 import com.jefftharris.passwdsafe.file.PasswdPolicy;
 import com.jefftharris.passwdsafe.file.PasswdRecordFilter;
 import com.jefftharris.passwdsafe.lib.PasswdSafeUtil;
 
+import java.util.Locale;
+
 public final class PasswdSafeApp extends Application
     implements SharedPreferences.OnSharedPreferenceChangeListener
 {
@@ -44,10 +50,19 @@ public final class PasswdSafeApp extends Application
     private boolean itsIsOpenDefault = true;
     private PasswdSafeDb itsPasswdSafeDb;
 
+    /** Time in milliseconds to stretch the passphrase of a strengthened
+     * file on this device */
+    private static final long STRENGTHEN_PASSWORD_TIME_MS = 250;
+
     private static final String TAG = "PasswdSafeApp";
 
     static {
         System.loadLibrary("PasswdSafe");
+        // The native key stretch is not used on Chrome OS
+        String brand = Build.BRAND.toLowerCase(Locale.getDefault());
+        SHA256Pws.setDigestN(brand.contains("chromium") ?
+                             SHA256Pws.JAVA_DIGESTN :
+                             SHA256Pws.NATIVE_DIGESTN);
     }
 
     public PasswdSafeApp()
@@ -92,6 +107,11 @@ public final class PasswdSafeApp extends Application
 
         setPasswordEncodingPref(prefs);
         setPasswordDefaultSymsPref(prefs);
+        setFileStrengthenPasswordPref(prefs);
+        PwsStretchCalibration.setThroughput(
+                Preferences.getFileStretchThroughputPref(prefs),
+                Preferences.getFileStretchMeasureTimePref(prefs));
+        setSearchIndexPref(prefs);
         itsDefaultPasswdPolicy = Preferences.getDefPasswdPolicyPref(prefs,
                                                                     this);
 
@@ -115,6 +135,14 @@ public final class PasswdSafeApp extends Application
             setPasswordDefaultSymsPref(prefs);
             break;
         }
+        case Preferences.PREF_FILE_STRENGTHEN_PASSWORD: {
+            setFileStrengthenPasswordPref(prefs);
+            break;
+        }
+        case Preferences.PREF_SEARCH_INDEX: {
+            setSearchIndexPref(prefs);
+            break;
+        }
         case Preferences.PREF_PASSWD_EXPIRY_NOTIF: {
             itsNotifyMgr.setPasswdExpiryFilter(getPasswdExpiryNotifPref(prefs));
             break;
@@ -227,6 +255,40 @@ public final class PasswdSafeApp extends Application
         PwsFile.setPasswordEncoding(Preferences.getPasswordEncodingPref(prefs));
     }
 
+    /** Set the time budget to stretch the passphrase of a file from user
+     * preferences */
+    private static void setFileStrengthenPasswordPref(SharedPreferences prefs)
+    {
+        PwsStretchCalibration.setTimeBudget(
+                Preferences.getFileStrengthenPasswordPref(prefs) ?
+                STRENGTHEN_PASSWORD_TIME_MS : 0);
+    }
+
+    /**
+     * Save the key stretch throughput measured by the calibration so later
+     * runs can calibrate the saves without measuring it again
+     */
+    public static void saveStretchThroughput(Context ctx)
+    {
+        long itersPerSec = PwsStretchCalibration.getThroughput();
+        if (itersPerSec == 0) {
+            return;
+        }
+        SharedPreferences prefs = Preferences.getSharedPrefs(ctx);
+        long measureTime = PwsStretchCalibration.getMeasureTime();
+        if ((itersPerSec != Preferences.getFileStretchThroughputPref(prefs)) ||
+            (measureTime != Preferences.getFileStretchMeasureTimePref(prefs))) {
+            Preferences.setFileStretchThroughputPref(itersPerSec, measureTime,
+                                                     prefs);
+        }
+    }
+
+    /** Set whether files are indexed for searches from user preferences */
+    private static void setSearchIndexPref(SharedPreferences prefs)
+    {
+        PasswdFileData.setSearchIndexed(Preferences.getSearchIndexPref(prefs));
+    }
+
     /** Set the default password policy symbols from user preferences */
     private static void setPasswordDefaultSymsPref(SharedPreferences prefs)
     {
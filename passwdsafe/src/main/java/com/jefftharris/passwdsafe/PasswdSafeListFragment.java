@@ -15,6 +15,8 @@ import android.support.v4.app.LoaderManager;
 import android.support.v4.content.AsyncTaskLoader;
 import android.support.v4.content.Loader;
 import android.text.TextUtils;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.view.ContextMenu;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -22,8 +24,9 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.CheckBox;
 import android.widget.ImageView;
 import android.widget.ListView;
@@ -33,6 +36,7 @@ import com.jefftharris.passwdsafe.lib.view.GuiUtils;
 import com.jefftharris.passwdsafe.view.CopyField;
 import com.jefftharris.passwdsafe.view.PasswdLocation;
 import com.jefftharris.passwdsafe.view.PasswdRecordListData;
+import com.jefftharris.passwdsafe.view.PasswdRecordListPage;
 
 import java.util.List;
 
@@ -40,7 +44,7 @@ import java.util.List;
  *  Fragment showing lists of items from a PasswdSafe file
  */
 public class PasswdSafeListFragment extends ListFragment
-        implements LoaderManager.LoaderCallbacks<List<PasswdRecordListData>>,
+        implements LoaderManager.LoaderCallbacks<PasswdRecordListPage>,
                    View.OnClickListener
 {
     /** Mode for which items are shown from the file */
@@ -55,9 +59,18 @@ public class PasswdSafeListFragment extends ListFragment
     /** Listener interface for owning activity */
     public interface Listener
     {
-        /** Get the current record items in a background thread */
-        List<PasswdRecordListData> getBackgroundRecordItems(boolean incRecords,
-                                                            boolean incGroups);
+        /**
+         * Get a page of the current record items in a background thread
+         *
+         * @param selectedRecord The UUID of the selected record whose page
+         *                       is loaded; null to load the page at the
+         *                       offset
+         */
+        PasswdRecordListPage getBackgroundRecordItems(boolean incRecords,
+                                                      boolean incGroups,
+                                                      int offset,
+                                                      int limit,
+                                                      String selectedRecord);
 
         /** Is copying supported */
         boolean isCopySupported();
@@ -83,6 +96,20 @@ public class PasswdSafeListFragment extends ListFragment
 
     private static final String STATE_SELECTED_RECORD = "selectedRecord";
 
+    /** The number of items loaded in each page of the list */
+    private static final int PAGE_SIZE = 50;
+
+    /** The number of pages kept loaded on each side of the pages being
+     * shown.  Pages further away are evicted. */
+    private static final int PAGE_WINDOW = 2;
+
+    /** The loader for the page with the selected record, which resets the
+     * list.  Other pages use the loader for the page number plus one. */
+    private static final int LIST_LOADER_ID = 0;
+
+    private static final String ARG_PAGE = "page";
+    private static final String ARG_GENERATION = "generation";
+
     private Mode itsMode = Mode.NONE;
     private PasswdLocation itsLocation;
     private boolean itsIsContents = false;
@@ -174,8 +201,9 @@ public class PasswdSafeListFragment extends ListFragment
         if (itsListener.isCopySupported()) {
             registerForContextMenu(getListView());
         }
-        itsAdapter = new ItemListAdapter(itsIsContents, getActivity());
+        itsAdapter = new ItemListAdapter(itsIsContents, this, getActivity());
         setListAdapter(itsAdapter);
+        getListView().setOnScrollListener(itsAdapter);
     }
 
 
@@ -331,8 +359,12 @@ public class PasswdSafeListFragment extends ListFragment
         }
 
         LoaderManager lm = getLoaderManager();
-        lm.destroyLoader(0);
-        lm.restartLoader(0, null, this);
+        SparseBooleanArray pages = itsAdapter.getRequestedPages();
+        for (int i = 0; i < pages.size(); ++i) {
+            lm.destroyLoader(pages.keyAt(i) + 1);
+        }
+        lm.destroyLoader(LIST_LOADER_ID);
+        lm.restartLoader(LIST_LOADER_ID, null, this);
 
         boolean groupVisible = false;
         switch (itsMode) {
@@ -361,13 +393,44 @@ public class PasswdSafeListFragment extends ListFragment
     }
 
 
+    /** Load a page of the list in the background */
+    private void loadPage(int page, int generation)
+    {
+        if (!isAdded()) {
+            return;
+        }
+        Bundle args = new Bundle();
+        args.putInt(ARG_PAGE, page);
+        args.putInt(ARG_GENERATION, generation);
+        getLoaderManager().restartLoader(page + 1, args, this);
+    }
+
+
+    /** Stop loading an evicted page of the list */
+    private void unloadPage(int page)
+    {
+        if (!isAdded()) {
+            return;
+        }
+        getLoaderManager().destroyLoader(page + 1);
+    }
+
+
     /* (non-Javadoc)
      * @see android.support.v4.app.LoaderManager.LoaderCallbacks#onCreateLoader(int, android.os.Bundle)
      */
     @Override
-    public Loader<List<PasswdRecordListData>> onCreateLoader(int id, Bundle args)
+    public Loader<PasswdRecordListPage> onCreateLoader(int id, Bundle args)
     {
-        return new ItemLoader(itsMode, itsListener, getActivity());
+        if (args == null) {
+            return new ItemLoader(
+                    itsMode, 0, -1,
+                    itsIsContents ? itsSelectedRecord : itsLocation.getRecord(),
+                    itsListener, getActivity());
+        }
+        return new ItemLoader(itsMode, args.getInt(ARG_PAGE),
+                              args.getInt(ARG_GENERATION), null,
+                              itsListener, getActivity());
     }
 
 
@@ -375,12 +438,15 @@ public class PasswdSafeListFragment extends ListFragment
      * @see android.support.v4.app.LoaderManager.LoaderCallbacks#onLoadFinished(android.support.v4.content.Loader, java.lang.Object)
      */
     @Override
-    public void onLoadFinished(Loader<List<PasswdRecordListData>> loader,
-                               List<PasswdRecordListData> data)
+    public void onLoadFinished(Loader<PasswdRecordListPage> loader,
+                               PasswdRecordListPage data)
     {
-        int selPos = itsAdapter.setData(
-                data,
-                itsIsContents ? itsSelectedRecord : itsLocation.getRecord());
+        if (loader.getId() != LIST_LOADER_ID) {
+            itsAdapter.addPage(data, ((ItemLoader)loader).itsGeneration);
+            return;
+        }
+
+        int selPos = itsAdapter.setData(data);
         if (isResumed()) {
             ListView list = getListView();
             if (selPos != -1) {
@@ -402,52 +468,121 @@ public class PasswdSafeListFragment extends ListFragment
      * @see android.support.v4.app.LoaderManager.LoaderCallbacks#onLoaderReset(android.support.v4.content.Loader)
      */
     @Override
-    public void onLoaderReset(Loader<List<PasswdRecordListData>> loader)
+    public void onLoaderReset(Loader<PasswdRecordListPage> loader)
     {
-        onLoadFinished(loader, null);
+        if (loader.getId() == LIST_LOADER_ID) {
+            onLoadFinished(loader, null);
+        }
     }
 
 
-    /** List adapter for file items */
-    private static class ItemListAdapter
-            extends ArrayAdapter<PasswdRecordListData>
+    /**
+     * List adapter for file items.  The items are loaded in pages as they
+     * are scrolled into view, and the pages away from those shown are
+     * evicted, so only the visible part of a large list is loaded.
+     */
+    private static class ItemListAdapter extends BaseAdapter
+            implements AbsListView.OnScrollListener
     {
         private final LayoutInflater itsInflater;
         private final boolean itsIsContents;
+        private final PasswdSafeListFragment itsFrag;
+        private final SparseArray<List<PasswdRecordListData>> itsPages =
+                new SparseArray<>();
+        private final SparseBooleanArray itsRequestedPages =
+                new SparseBooleanArray();
+        private int itsNumItems = 0;
+        private int itsGeneration = 0;
 
         /** Constructor */
-        public ItemListAdapter(boolean isContents, Context context)
+        public ItemListAdapter(boolean isContents,
+                               PasswdSafeListFragment frag,
+                               Context context)
         {
-            super(context, R.layout.passwdsafe_list_item, android.R.id.text1);
             itsInflater = (LayoutInflater)context.getSystemService(
                     Context.LAYOUT_INFLATER_SERVICE);
             itsIsContents = isContents;
+            itsFrag = frag;
         }
 
-        /** Set the list data */
-        public int setData(List<PasswdRecordListData> data,
-                           String selectedRecord)
+        /**
+         * Set the list data from its first loaded page
+         *
+         * @return The position of the selected record; -1 if none
+         */
+        public int setData(PasswdRecordListPage data)
         {
+            ++itsGeneration;
+            itsPages.clear();
+            itsRequestedPages.clear();
+            itsNumItems = 0;
             int selectedPos = -1;
-            setNotifyOnChange(false);
-            clear();
             if (data != null) {
-                int idx = 0;
-                for (PasswdRecordListData item: data) {
-                    add(item);
-                    if ((selectedRecord != null) &&
-                        TextUtils.equals(item.itsUuid, selectedRecord)) {
-                        selectedPos = idx;
-                    }
-                    ++idx;
-                }
+                itsNumItems = data.itsNumItems;
+                selectedPos = data.itsSelectedPos;
+                itsRequestedPages.put(data.itsOffset / PAGE_SIZE, true);
+                addPage(data, itsGeneration);
             }
-
-            setNotifyOnChange(true);
             notifyDataSetChanged();
             return selectedPos;
         }
 
+        /**
+         * Add a loaded page of the list data
+         *
+         * @param generation The generation of the list data when the page
+         *                   was requested; the page is ignored if the data
+         *                   has since been reset or the page was evicted
+         */
+        public void addPage(PasswdRecordListPage data, int generation)
+        {
+            if ((data == null) || (generation != itsGeneration) ||
+                (data.itsNumItems != itsNumItems)) {
+                return;
+            }
+            int page = data.itsOffset / PAGE_SIZE;
+            if (!itsRequestedPages.get(page)) {
+                return;
+            }
+            itsPages.put(page, data.itsItems);
+            notifyDataSetChanged();
+        }
+
+        /** Get the pages which have been requested */
+        public SparseBooleanArray getRequestedPages()
+        {
+            return itsRequestedPages;
+        }
+
+        @Override
+        public int getCount()
+        {
+            return itsNumItems;
+        }
+
+        /**
+         * Get the item at a position
+         *
+         * @return The item; null if its page is not loaded
+         */
+        @Override
+        public PasswdRecordListData getItem(int position)
+        {
+            int page = position / PAGE_SIZE;
+            List<PasswdRecordListData> items = itsPages.get(page);
+            if (items == null) {
+                return null;
+            }
+            int idx = position - (page * PAGE_SIZE);
+            return (idx < items.size()) ? items.get(idx) : null;
+        }
+
+        @Override
+        public long getItemId(int position)
+        {
+            return position;
+        }
+
         @NonNull
         @Override
         public View getView(int position, View convertView,
@@ -463,19 +598,63 @@ public class PasswdSafeListFragment extends ListFragment
                 itemViews = (ViewHolder)convertView.getTag();
             }
 
-            if (position < getCount()) {
-                PasswdRecordListData item = getItem(position);
+            PasswdRecordListData item =
+                    (position < getCount()) ? getItem(position) : null;
+            if (item != null) {
                 ListView list = (ListView)parent;
                 boolean isSelected = list.isItemChecked(position);
                 itemViews.update(item, isSelected,
-                                 !itsIsContents &&
-                                 (item != null) && item.itsIsRecord);
+                                 !itsIsContents && item.itsIsRecord);
             } else {
                 itemViews.reset();
             }
             return convertView;
         }
 
+        /**
+         * Handle a change in the scroll state of the list
+         */
+        @Override
+        public void onScrollStateChanged(AbsListView view, int scrollState)
+        {
+        }
+
+        /**
+         * Handle when the list is scrolled or laid out.  The pages of the
+         * visible items are loaded if needed, and the pages outside the
+         * window around them are evicted and their loaders stopped.
+         */
+        @Override
+        public void onScroll(AbsListView view, int firstVisibleItem,
+                             int visibleItemCount, int totalItemCount)
+        {
+            int lastVisibleItem =
+                    Math.min(firstVisibleItem + visibleItemCount,
+                             itsNumItems) - 1;
+            if (lastVisibleItem < firstVisibleItem) {
+                return;
+            }
+            int firstPage = firstVisibleItem / PAGE_SIZE;
+            int lastPage = lastVisibleItem / PAGE_SIZE;
+
+            for (int i = itsRequestedPages.size() - 1; i >= 0; --i) {
+                int page = itsRequestedPages.keyAt(i);
+                if ((page < firstPage - PAGE_WINDOW) ||
+                    (page > lastPage + PAGE_WINDOW)) {
+                    itsRequestedPages.delete(page);
+                    itsPages.remove(page);
+                    itsFrag.unloadPage(page);
+                }
+            }
+
+            for (int page = firstPage; page <= lastPage; ++page) {
+                if (!itsRequestedPages.get(page)) {
+                    itsRequestedPages.put(page, true);
+                    itsFrag.loadPage(page, itsGeneration);
+                }
+            }
+        }
+
         /**
          * Holder for the views for an item in the list
          */
@@ -538,19 +717,28 @@ public class PasswdSafeListFragment extends ListFragment
     }
 
 
-    /** Loader for file items */
+    /** Loader for a page of file items */
     private static class ItemLoader
-            extends AsyncTaskLoader<List<PasswdRecordListData>>
+            extends AsyncTaskLoader<PasswdRecordListPage>
     {
         private final Mode itsMode;
+        private final int itsPage;
+        /** The generation of the list data when the page was requested; -1
+         * when loading the page of the selected record to reset the list */
+        public final int itsGeneration;
+        private final String itsSelectedRecord;
         private final Listener itsActListener;
 
         /** Constructor */
-        public ItemLoader(Mode mode, Listener actListener,
+        public ItemLoader(Mode mode, int page, int generation,
+                          String selectedRecord, Listener actListener,
                           Context context)
         {
             super(context);
             itsMode = mode;
+            itsPage = page;
+            itsGeneration = generation;
+            itsSelectedRecord = selectedRecord;
             itsActListener = actListener;
         }
 
@@ -565,7 +753,7 @@ public class PasswdSafeListFragment extends ListFragment
          * @see android.support.v4.content.AsyncTaskLoader#loadInBackground()
          */
         @Override
-        public List<PasswdRecordListData> loadInBackground()
+        public PasswdRecordListPage loadInBackground()
         {
             boolean incRecords = false;
             boolean incGroups = false;
@@ -587,9 +775,9 @@ public class PasswdSafeListFragment extends ListFragment
                 break;
             }
             }
-            return itsActListener.getBackgroundRecordItems(incRecords,
-                                                           incGroups);
+            return itsActListener.getBackgroundRecordItems(
+                    incRecords, incGroups, itsPage * PAGE_SIZE, PAGE_SIZE,
+                    itsSelectedRecord);
         }
     }
 }
-
@@ -73,6 +73,18 @@ public class Preferences
             "fileLegacyFileChooserPref";
     public static final boolean PREF_FILE_LEGACY_FILE_CHOOSER_DEF = true;
 
+    private static final String PREF_FILE_ROTATE_KEY = "fileRotateKeyPref";
+    private static final boolean PREF_FILE_ROTATE_KEY_DEF = false;
+
+    public static final String PREF_FILE_STRENGTHEN_PASSWORD =
+            "fileStrengthenPasswordPref";
+    public static final boolean PREF_FILE_STRENGTHEN_PASSWORD_DEF = false;
+
+    private static final String PREF_FILE_STRETCH_THROUGHPUT =
+            "fileStretchThroughputPref";
+    private static final String PREF_FILE_STRETCH_MEASURE_TIME =
+            "fileStretchMeasureTimePref";
+
     public static final String PREF_GROUP_RECORDS = "groupRecordsPref";
     public static final boolean PREF_GROUP_RECORDS_DEF = true;
 
@@ -104,6 +116,8 @@ public class Preferences
     public static final boolean PREF_SEARCH_CASE_SENSITIVE_DEF = false;
     public static final String PREF_SEARCH_REGEX = "searchRegexPref";
     public static final boolean PREF_SEARCH_REGEX_DEF = false;
+    public static final String PREF_SEARCH_INDEX = "searchIndexPref";
+    public static final boolean PREF_SEARCH_INDEX_DEF = false;
 
     private static final String PREF_SHOW_HIDDEN_FILES = "showBackupFilesPref";
     private static final boolean PREF_SHOW_HIDDEN_FILES_DEF = false;
@@ -184,6 +198,42 @@ public class Preferences
                                 PREF_FILE_CLOSE_CLEAR_CLIPBOARD_DEF);
     }
 
+    public static boolean getFileRotateKeyPref(SharedPreferences prefs)
+    {
+        return prefs.getBoolean(PREF_FILE_ROTATE_KEY, PREF_FILE_ROTATE_KEY_DEF);
+    }
+
+    public static boolean getFileStrengthenPasswordPref(
+            SharedPreferences prefs)
+    {
+        return prefs.getBoolean(PREF_FILE_STRENGTHEN_PASSWORD,
+                                PREF_FILE_STRENGTHEN_PASSWORD_DEF);
+    }
+
+    /** Get the saved key stretch throughput in iterations per second */
+    public static long getFileStretchThroughputPref(SharedPreferences prefs)
+    {
+        return prefs.getLong(PREF_FILE_STRETCH_THROUGHPUT, 0);
+    }
+
+    /** Get the time the saved key stretch throughput was measured */
+    public static long getFileStretchMeasureTimePref(SharedPreferences prefs)
+    {
+        return prefs.getLong(PREF_FILE_STRETCH_MEASURE_TIME, 0);
+    }
+
+    /** Save the key stretch throughput in iterations per second and the
+     * time it was measured */
+    public static void setFileStretchThroughputPref(long itersPerSec,
+                                                    long measureTime,
+                                                    SharedPreferences prefs)
+    {
+        prefs.edit()
+             .putLong(PREF_FILE_STRETCH_THROUGHPUT, itersPerSec)
+             .putLong(PREF_FILE_STRETCH_MEASURE_TIME, measureTime)
+             .apply();
+    }
+
     public static boolean getFileOpenReadOnlyPref(SharedPreferences prefs)
     {
         return prefs.getBoolean(PREF_FILE_OPEN_READ_ONLY,
@@ -461,6 +511,11 @@ public class Preferences
         return prefs.getBoolean(PREF_SEARCH_REGEX, PREF_SEARCH_REGEX_DEF);
     }
 
+    public static boolean getSearchIndexPref(SharedPreferences prefs)
+    {
+        return prefs.getBoolean(PREF_SEARCH_INDEX, PREF_SEARCH_INDEX_DEF);
+    }
+
     public static boolean getShowHiddenFilesPref(SharedPreferences prefs)
     {
         return prefs.getBoolean(PREF_SHOW_HIDDEN_FILES,
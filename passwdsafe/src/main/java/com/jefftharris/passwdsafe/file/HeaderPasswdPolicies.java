@@ -47,6 +47,12 @@ public class HeaderPasswdPolicies
         {
             ++itsUseCount;
         }
+
+        /** Decrement the number of records referencing this policy */
+        public void decUseCount()
+        {
+            --itsUseCount;
+        }
     }
 
     private final TreeMap<String, HdrPolicy> itsPolicies = new TreeMap<>();
@@ -56,26 +62,33 @@ public class HeaderPasswdPolicies
     {
     }
 
-    /** Constructor from the contents of a file */
-    public HeaderPasswdPolicies(Collection<PasswdRecord> recs,
-                                List<PasswdPolicy> policies)
+    /** Constructor from the policies in a file's header.  The use counts
+     * are added with updateUseCount for each record. */
+    public HeaderPasswdPolicies(List<PasswdPolicy> policies)
     {
         if (policies != null) {
             for (PasswdPolicy policy: policies) {
                 itsPolicies.put(policy.getName(), new HdrPolicy(policy));
             }
         }
-        for (PasswdRecord rec: recs) {
-            PasswdPolicy recPolicy = rec.getPasswdPolicy();
-            if ((recPolicy != null) &&
-                (recPolicy.getLocation() ==
-                 PasswdPolicy.Location.RECORD_NAME)) {
-                HeaderPasswdPolicies.HdrPolicy hdrPolicy =
-                    itsPolicies.get(recPolicy.getName());
-                if (hdrPolicy != null) {
-                    hdrPolicy.incUseCount();
-                }
-            }
+    }
+
+    /**
+     * Update the use counts after a record's policy changes
+     *
+     * @param oldPolicy The record's previous policy; null if none
+     * @param newPolicy The record's new policy; null if none
+     */
+    public void updateUseCount(PasswdPolicy oldPolicy, PasswdPolicy newPolicy)
+    {
+        HeaderPasswdPolicies.HdrPolicy hdrPolicy =
+            getRecordHdrPolicy(oldPolicy);
+        if (hdrPolicy != null) {
+            hdrPolicy.decUseCount();
+        }
+        hdrPolicy = getRecordHdrPolicy(newPolicy);
+        if (hdrPolicy != null) {
+            hdrPolicy.incUseCount();
         }
     }
 
@@ -111,4 +124,15 @@ public class HeaderPasswdPolicies
     {
         return itsPolicies.values();
     }
+
+    /** Get the header policy used by a record's policy, if any */
+    private HeaderPasswdPolicies.HdrPolicy getRecordHdrPolicy(
+            PasswdPolicy recPolicy)
+    {
+        if ((recPolicy == null) ||
+            (recPolicy.getLocation() != PasswdPolicy.Location.RECORD_NAME)) {
+            return null;
+        }
+        return itsPolicies.get(recPolicy.getName());
+    }
 }
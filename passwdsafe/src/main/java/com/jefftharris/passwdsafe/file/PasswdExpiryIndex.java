@@ -0,0 +1,242 @@
+/*
+ * Copyright (©) 2017 Jeff Harris <jefftharris@gmail.com>
+ * All rights reserved. Use of the code is allowed under the
+ * Artistic License 2.0 terms, as specified in the LICENSE file
+ * distributed with this code, or available from
+ * http://www.opensource.org/licenses/artistic-license-2.0.php
+ */
+package com.jefftharris.passwdsafe.file;
+
+import org.pwsafe.lib.file.PwsRecord;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Index of the records with password expirations, sorted by expiration time.
+ * The times are kept in an array parallel to the records so the records
+ * expiring before a time, and the next expiration after a time, are found
+ * with a binary search.  Records added while loading a file are appended and
+ * sorted once when the index is next queried.
+ */
+public final class PasswdExpiryIndex
+{
+    private long[] itsExpiries = new long[16];
+    private PwsRecord[] itsRecords = new PwsRecord[16];
+    private int itsSize = 0;
+    private boolean itsIsSorted = true;
+    private final IdentityHashMap<PwsRecord, Long> itsRecordExpiries =
+            new IdentityHashMap<>();
+
+    /**
+     * Remove all records
+     */
+    public void clear()
+    {
+        Arrays.fill(itsRecords, 0, itsSize, null);
+        itsSize = 0;
+        itsIsSorted = true;
+        itsRecordExpiries.clear();
+    }
+
+    /**
+     * Set the expiration of a record, replacing any previous expiration
+     *
+     * @param rec The record
+     * @param expiry The expiration time; null if the password does not
+     *               expire
+     */
+    public void put(PwsRecord rec, Long expiry)
+    {
+        remove(rec);
+        if (expiry != null) {
+            add(rec, expiry, itsIsSorted);
+        }
+    }
+
+    /**
+     * Set the expiration of a record while loading a file, deferring the
+     * sort until the index is queried
+     */
+    public void append(PwsRecord rec, Long expiry)
+    {
+        remove(rec);
+        if (expiry != null) {
+            add(rec, expiry, false);
+        }
+    }
+
+    /**
+     * Remove a record
+     */
+    public void remove(PwsRecord rec)
+    {
+        Long expiry = itsRecordExpiries.remove(rec);
+        if (expiry == null) {
+            return;
+        }
+        int pos = itsIsSorted ? lowerBound(expiry) : 0;
+        while ((pos < itsSize) && (itsRecords[pos] != rec)) {
+            ++pos;
+        }
+        if (pos == itsSize) {
+            return;
+        }
+        --itsSize;
+        System.arraycopy(itsExpiries, pos + 1, itsExpiries, pos,
+                         itsSize - pos);
+        System.arraycopy(itsRecords, pos + 1, itsRecords, pos, itsSize - pos);
+        itsRecords[itsSize] = null;
+    }
+
+    /**
+     * Get the number of records which expire at or before a time
+     */
+    public int getNumExpiring(long time)
+    {
+        sort();
+        return upperBound(time);
+    }
+
+    /**
+     * Get the records which expire before a time, in order of expiration
+     */
+    public List<PwsRecord> getExpiringBefore(long time)
+    {
+        sort();
+        int num = lowerBound(time);
+        List<PwsRecord> recs = new ArrayList<>(num);
+        recs.addAll(Arrays.asList(itsRecords).subList(0, num));
+        return recs;
+    }
+
+    /**
+     * Get the next expiration after a time
+     *
+     * @return The expiration time; Long.MAX_VALUE if none
+     */
+    public long getNextExpiry(long time)
+    {
+        sort();
+        int pos = upperBound(time);
+        return (pos < itsSize) ? itsExpiries[pos] : Long.MAX_VALUE;
+    }
+
+    /**
+     * Add a record which is not in the index
+     *
+     * @param keepSorted Whether to insert the record in order rather than
+     *                   append it
+     */
+    private void add(PwsRecord rec, long expiry, boolean keepSorted)
+    {
+        if (itsSize == itsRecords.length) {
+            itsExpiries = Arrays.copyOf(itsExpiries, itsSize * 2);
+            itsRecords = Arrays.copyOf(itsRecords, itsSize * 2);
+        }
+        int pos = itsSize;
+        if ((itsSize > 0) && (expiry < itsExpiries[itsSize - 1])) {
+            if (keepSorted) {
+                pos = upperBound(expiry);
+                System.arraycopy(itsExpiries, pos, itsExpiries, pos + 1,
+                                 itsSize - pos);
+                System.arraycopy(itsRecords, pos, itsRecords, pos + 1,
+                                 itsSize - pos);
+            } else {
+                itsIsSorted = false;
+            }
+        }
+        itsExpiries[pos] = expiry;
+        itsRecords[pos] = rec;
+        ++itsSize;
+        itsRecordExpiries.put(rec, expiry);
+    }
+
+    /**
+     * Get the position of the first record expiring at or after a time.
+     * The records must be sorted.
+     */
+    private int lowerBound(long time)
+    {
+        int low = 0;
+        int high = itsSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (itsExpiries[mid] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Get the position of the first record expiring after a time.  The
+     * records must be sorted.
+     */
+    private int upperBound(long time)
+    {
+        int low = 0;
+        int high = itsSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (itsExpiries[mid] <= time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Sort the records by expiration if records were appended out of order
+     */
+    private void sort()
+    {
+        if (itsIsSorted) {
+            return;
+        }
+        long[] expiries = new long[itsExpiries.length];
+        PwsRecord[] records = new PwsRecord[itsRecords.length];
+        mergeSort(itsExpiries, itsRecords, expiries, records, 0, itsSize);
+        itsIsSorted = true;
+    }
+
+    /**
+     * Stable merge sort of a range of the parallel arrays, using the
+     * temporary arrays for the merge
+     */
+    private static void mergeSort(long[] expiries, PwsRecord[] records,
+                                  long[] tmpExpiries, PwsRecord[] tmpRecords,
+                                  int start, int end)
+    {
+        if (end - start < 2) {
+            return;
+        }
+        int mid = (start + end) >>> 1;
+        mergeSort(expiries, records, tmpExpiries, tmpRecords, start, mid);
+        mergeSort(expiries, records, tmpExpiries, tmpRecords, mid, end);
+        if (expiries[mid - 1] <= expiries[mid]) {
+            return;
+        }
+
+        System.arraycopy(expiries, start, tmpExpiries, start, end - start);
+        System.arraycopy(records, start, tmpRecords, start, end - start);
+        int left = start;
+        int right = mid;
+        for (int i = start; i < end; ++i) {
+            if ((right >= end) ||
+                ((left < mid) && (tmpExpiries[left] <= tmpExpiries[right]))) {
+                expiries[i] = tmpExpiries[left];
+                records[i] = tmpRecords[left++];
+            } else {
+                expiries[i] = tmpExpiries[right];
+                records[i] = tmpRecords[right++];
+            }
+        }
+    }
+}
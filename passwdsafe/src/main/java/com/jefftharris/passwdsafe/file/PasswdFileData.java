@@ -11,20 +11,22 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.regex.Pattern;
 
 import org.pwsafe.lib.UUID;
 import org.pwsafe.lib.Util;
 import org.pwsafe.lib.exception.EndOfFileException;
 import org.pwsafe.lib.exception.InvalidPassphraseException;
 import org.pwsafe.lib.exception.UnsupportedFileVersionException;
+import org.pwsafe.lib.file.AbstractPwsPasswdField;
 import org.pwsafe.lib.file.Owner;
 import org.pwsafe.lib.file.PwsByteField;
 import org.pwsafe.lib.file.PwsField;
@@ -56,6 +58,8 @@ import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.util.Log;
 
+import com.jefftharris.passwdsafe.PasswdSafeApp;
+import com.jefftharris.passwdsafe.Preferences;
 import com.jefftharris.passwdsafe.R;
 import com.jefftharris.passwdsafe.lib.PasswdSafeUtil;
 import com.jefftharris.passwdsafe.util.Pair;
@@ -65,19 +69,38 @@ public class PasswdFileData
 {
     private PasswdFileUri itsUri;
     private PwsFile itsPwsFile;
-    private final HashMap<String, PwsRecord> itsRecordsByUUID = new HashMap<>();
+    private final PasswdUuidIndex itsRecordsByUUID = new PasswdUuidIndex();
+    /** The records in the file with their PasswdRecords, which are created
+     * on demand and so are null until first used */
     private final Map<PwsRecord, PasswdRecord> itsPasswdRecords =
         new IdentityHashMap<>();
+    private final PasswdRecordRefs itsRecordRefs = new PasswdRecordRefs();
+    private PasswdSearchIndex itsSearchIndex;
+    private final PasswdExpiryIndex itsExpiryIndex = new PasswdExpiryIndex();
     private final ArrayList<PwsRecord> itsRecords = new ArrayList<>();
     private HeaderPasswdPolicies itsHdrPolicies = new HeaderPasswdPolicies();
     private boolean itsIsOpenReadOnly = false;
     private boolean itsIsYubikey = false;
+    /** Count of the changes to the records, for checking whether results
+     * computed from the records are still current */
+    private int itsChangeCount = 0;
+    /** The records changed since the change count at the start of the
+     * list, which is reset when the records are indexed or it grows too
+     * long */
+    private final ArrayList<PwsRecord> itsChangedRecords = new ArrayList<>();
+    private int itsChangedRecordsStart = 0;
 
     private static final List<PasswdFileDataObserver> itsObservers =
             new ArrayList<>();
 
+    /** Whether a search index is built when a file is opened */
+    private static boolean itsIsSearchIndexed = false;
+
     private static final String TAG = "PasswdFileData";
 
+    /** The maximum number of changed records kept for incremental updates */
+    private static final int MAX_CHANGED_RECORDS = 256;
+
     private static final int FIELD_UNSUPPORTED = -1;
     private static final int FIELD_NOT_PRESENT = -2;
 
@@ -123,10 +146,18 @@ public class PasswdFileData
 
             setSaveHdrFields(context);
 
+            // A rotated key costs a full key stretch on the save
+            if ((itsPwsFile instanceof PwsFileV3) &&
+                Preferences.getFileRotateKeyPref(
+                        Preferences.getSharedPrefs(context))) {
+                ((PwsFileV3)itsPwsFile).setKeyRotation();
+            }
+
             PwsStorage storage = itsPwsFile.getStorage();
             try {
                 storage.setSaveHelper(new PasswdFileUri.SaveHelper(context));
                 itsPwsFile.save();
+                PasswdSafeApp.saveStretchThroughput(context);
                 notifyObservers(this);
             } finally {
                 storage.setSaveHelper(null);
@@ -147,19 +178,75 @@ public class PasswdFileData
         return itsRecords;
     }
 
+    /**
+     * Get the count of changes to the records.  The count increases when a
+     * record is added, removed, or has a field set.
+     */
+    public int getChangeCount()
+    {
+        return itsChangeCount;
+    }
+
+    /**
+     * Get the records changed since a change count
+     * @return The changed records, which may repeat; null if the changes
+     * since the count are no longer known
+     */
+    public List<PwsRecord> getChangedRecords(int changeCount)
+    {
+        if ((changeCount < itsChangedRecordsStart) ||
+            (changeCount > itsChangeCount)) {
+            return null;
+        }
+        return Collections.unmodifiableList(itsChangedRecords.subList(
+                changeCount - itsChangedRecordsStart,
+                itsChangedRecords.size()));
+    }
+
+    /** Get whether a record is in the file */
+    public boolean hasRecord(PwsRecord rec)
+    {
+        return itsPasswdRecords.containsKey(rec);
+    }
+
     public PwsRecord getRecord(String uuid)
     {
         return itsRecordsByUUID.get(uuid);
     }
 
+    /** Get a record by the raw bytes of its UUID */
+    public PwsRecord getRecord(byte[] uuid)
+    {
+        return itsRecordsByUUID.get(uuid);
+    }
+
+    /** Get a record by its UUID written as 32 hex digits in a string */
+    PwsRecord getRecordByHex(String hex, int offset)
+    {
+        return itsRecordsByUUID.getHex(hex, offset);
+    }
+
+    /** Get the PasswdRecord for a record, creating it if needed */
     public PasswdRecord getPasswdRecord(PwsRecord rec)
     {
-        return itsPasswdRecords.get(rec);
+        PasswdRecord passwdRec = itsPasswdRecords.get(rec);
+        if ((passwdRec == null) && itsPasswdRecords.containsKey(rec)) {
+            passwdRec = new PasswdRecord(rec, this);
+            itsPasswdRecords.put(rec, passwdRec);
+        }
+        return passwdRec;
     }
 
-    /** Get the collection of PasswdRecords in the file */
+    /** Get the collection of PasswdRecords in the file, creating any which
+     * have not yet been used */
     public Collection<PasswdRecord> getPasswdRecords()
     {
+        for (Map.Entry<PwsRecord, PasswdRecord> entry:
+                itsPasswdRecords.entrySet()) {
+            if (entry.getValue() == null) {
+                entry.setValue(new PasswdRecord(entry.getKey(), this));
+            }
+        }
         return itsPasswdRecords.values();
     }
 
@@ -176,7 +263,15 @@ public class PasswdFileData
     {
         if (itsPwsFile != null) {
             itsPwsFile.add(rec);
-            indexRecords();
+            itsRecords.add(rec);
+            PwsRecord prevRec = indexRecordUuid(rec, addRecordUuid(rec));
+            itsPasswdRecords.put(rec, null);
+            indexRecordRef(rec);
+            indexRecordRefsToNewRecord(prevRec);
+            indexRecordSearch(rec);
+            indexRecordExpiry(rec);
+            itsHdrPolicies.updateUseCount(null, getPasswdPolicy(rec));
+            recordChanged(rec);
         }
     }
 
@@ -188,35 +283,35 @@ public class PasswdFileData
                 errMsg = R.string.record_not_found;
                 break;
             }
-            PasswdRecord passwdRec = getPasswdRecord(rec);
-            if (passwdRec == null) {
+            if (!itsPasswdRecords.containsKey(rec)) {
                 errMsg = R.string.record_not_found;
                 break;
             }
-            if (!passwdRec.getRefsToRecord().isEmpty()) {
+            if (itsRecordRefs.hasRefsToRecord(rec)) {
                 errMsg = R.string.record_has_references;
                 break;
             }
 
-            String recuuid = getUUID(rec);
-            if (recuuid == null) {
+            int idx = itsRecords.size() - 1;
+            while ((idx >= 0) && (itsRecords.get(idx) != rec)) {
+                --idx;
+            }
+            if ((idx < 0) || !itsPwsFile.removeRecord(idx)) {
                 errMsg = R.string.record_not_found;
                 break;
             }
 
-            for (int i = 0; i < itsRecords.size(); ++i) {
-                PwsRecord r = itsRecords.get(i);
-                String ruuid = getUUID(r);
-                if (recuuid.equals(ruuid)) {
-                    boolean rc = itsPwsFile.removeRecord(i);
-                    if (rc) {
-                        indexRecords();
-                    } else {
-                        errMsg = R.string.record_not_found;
-                    }
-                    break;
-                }
+            PasswdPolicy policy = getIndexedPasswdPolicy(rec);
+            itsRecords.remove(idx);
+            unindexRecordUuid(rec);
+            itsPasswdRecords.remove(rec);
+            itsRecordRefs.removeRecord(rec);
+            if (itsSearchIndex != null) {
+                itsSearchIndex.remove(rec);
             }
+            itsExpiryIndex.remove(rec);
+            itsHdrPolicies.updateUseCount(policy, null);
+            recordChanged(rec);
         } while(false);
 
         if (errMsg != 0) {
@@ -307,6 +402,7 @@ public class PasswdFileData
     public final void setEmail(String str, PwsRecord rec)
     {
         setField(str, rec, PwsRecordV3.EMAIL);
+        indexRecordSearch(rec);
     }
 
     public final String getGroup(PwsRecord rec)
@@ -360,6 +456,7 @@ public class PasswdFileData
             str = str.replace("\n", "\r\n");
         }
         setField(str, rec, PwsRecordV3.NOTES);
+        indexRecordSearch(rec);
     }
 
     public final String getPassword(PwsRecord rec)
@@ -391,20 +488,9 @@ public class PasswdFileData
         }
         setField(expTime, rec, PwsRecordV3.PASSWORD_LIFETIME, false);
 
-        // Update PasswdRecord and indexes if the record exists
-        PasswdRecord passwdRec = getPasswdRecord(rec);
-        if (passwdRec != null) {
-            PwsRecord oldRef = passwdRec.getRef();
-            if (oldRef != null) {
-                PasswdRecord oldPasswdRec = getPasswdRecord(oldRef);
-                oldPasswdRec.removeRefToRecord(rec);
-            }
-            passwdRec.passwordChanged(this);
-            PwsRecord newRef = passwdRec.getRef();
-            if (newRef != null) {
-                PasswdRecord newPasswdRec = getPasswdRecord(newRef);
-                newPasswdRec.addRefToRecord(rec);
-            }
+        // Update the references and PasswdRecord if the record exists
+        if (itsPasswdRecords.containsKey(rec)) {
+            updateRecordRef(rec);
         }
     }
 
@@ -423,6 +509,31 @@ public class PasswdFileData
         return expiry;
     }
 
+    /**
+     * Get the records whose passwords expire before a time, in order of
+     * expiration
+     */
+    public final List<PwsRecord> getPasswdExpiryRecords(long time)
+    {
+        return itsExpiryIndex.getExpiringBefore(time);
+    }
+
+    /** Get the number of records whose passwords expire at or before a
+     * time */
+    public final int getNumPasswdExpiring(long time)
+    {
+        return itsExpiryIndex.getNumExpiring(time);
+    }
+
+    /**
+     * Get the next password expiration after a time
+     * @return The expiration time; Long.MAX_VALUE if none
+     */
+    public final long getNextPasswdExpiry(long time)
+    {
+        return itsExpiryIndex.getNextExpiry(time);
+    }
+
     /** Set the password expiration */
     public final void setPasswdExpiry(PasswdExpiration expiry, PwsRecord rec)
     {
@@ -438,7 +549,7 @@ public class PasswdFileData
         setField((expInterval != 0) ? expInterval : null, rec,
                  PwsRecordV3.PASSWORD_EXPIRY_INTERVAL);
 
-        PasswdRecord passwdRec = getPasswdRecord(rec);
+        PasswdRecord passwdRec = itsPasswdRecords.get(rec);
         if (passwdRec != null) {
             passwdRec.passwdExpiryChanged(this);
         }
@@ -519,6 +630,7 @@ public class PasswdFileData
     public final void setTitle(String str, PwsRecord rec)
     {
         setField(str, rec, PwsRecordV3.TITLE);
+        indexRecordSearch(rec);
     }
 
     public final String getUsername(PwsRecord rec)
@@ -529,6 +641,7 @@ public class PasswdFileData
     public final void setUsername(String str, PwsRecord rec)
     {
         setField(str, rec, PwsRecordV3.USERNAME);
+        indexRecordSearch(rec);
     }
 
     public final String getURL(PwsRecord rec)
@@ -539,10 +652,48 @@ public class PasswdFileData
     public final void setURL(String str, PwsRecord rec)
     {
         setField(str, rec, PwsRecordV3.URL);
+        indexRecordSearch(rec);
+    }
+
+    /**
+     * Get whether a record may match a search query.  Records which are not
+     * candidates of the search index can not match; all records are
+     * candidates if the file has no index.
+     */
+    public final boolean isSearchCandidate(PwsRecord rec, Pattern query)
+    {
+        return (itsSearchIndex == null) ||
+               itsSearchIndex.isCandidate(rec, query);
+    }
+
+    /** Get the type of reference held by a record's password */
+    final PasswdRecord.Type getRefType(PwsRecord rec)
+    {
+        return itsRecordRefs.getType(rec);
+    }
+
+    /** Get the record referenced by a record's password; null if none */
+    final PwsRecord getRef(PwsRecord rec)
+    {
+        return itsRecordRefs.getRef(rec);
+    }
+
+    /** Get the records which reference a record */
+    final List<PwsRecord> getRefsToRecord(PwsRecord rec)
+    {
+        return itsRecordRefs.getRefsToRecord(rec);
     }
 
     public final String getUUID(PwsRecord rec)
     {
+        PwsField field = doGetRecField(rec, PwsRecordV3.UUID);
+        if ((field != null) && (field.getValue() instanceof UUID)) {
+            String uuid = itsRecordsByUUID.getUuidStr(
+                    (UUID)field.getValue(), rec);
+            if (uuid != null) {
+                return uuid;
+            }
+        }
         return getField(rec, PwsRecordV3.UUID);
     }
 
@@ -613,8 +764,8 @@ public class PasswdFileData
         updateFormatVersion(PwsRecordV3.DB_FMT_MINOR_3_28);
         if (policyRename != null) {
             // Rename policy in records as needed
-            for (PasswdRecord rec: itsPasswdRecords.values()) {
-                PasswdPolicy recPolicy = rec.getPasswdPolicy();
+            for (PwsRecord rec: itsRecords) {
+                PasswdPolicy recPolicy = getIndexedPasswdPolicy(rec);
                 if ((recPolicy == null) ||
                     (recPolicy.getLocation() !=
                         PasswdPolicy.Location.RECORD_NAME) ||
@@ -624,24 +775,35 @@ public class PasswdFileData
                 recPolicy = new PasswdPolicy(policyRename.second, recPolicy);
                 PasswdSafeUtil.dbginfo(TAG, "Rename policy to %s for %s",
                                        recPolicy.getName(),
-                                       getId(rec.getRecord()));
+                                       getId(rec));
 
-                setPasswdPolicyImpl(recPolicy, rec.getRecord(), false);
+                setPasswdPolicyImpl(recPolicy, rec, false);
+                PasswdRecord passwdRec = itsPasswdRecords.get(rec);
+                if (passwdRec != null) {
+                    passwdRec.passwdPolicyChanged(this);
+                }
             }
-            indexRecords();
-        } else {
-            indexPasswdPolicies();
         }
+        indexPasswdPolicies();
     }
 
-    private static int hexBytesToInt(byte[] bytes, int pos, int len)
+    /** Get whether a search index is built when a file is opened */
+    public static synchronized boolean isSearchIndexed()
     {
-        int i = 0;
-        for (int idx = pos; idx < (pos + len); ++idx) {
-            i <<= 4;
-            i |= Character.digit(bytes[idx], 16);
-        }
-        return i;
+        return itsIsSearchIndexed;
+    }
+
+    /**
+     * Set whether a search index is built when a file is opened.  The index
+     * holds the trigrams of each record's title, username, URL, email, and
+     * notes so plain substring queries only check the records containing
+     * all of the query's trigrams.  The trigrams are kept unencrypted in
+     * memory while the file is open, as are the fields themselves, so the
+     * notes can be recovered from the index.  Passwords are not indexed.
+     */
+    public static synchronized void setSearchIndexed(boolean indexed)
+    {
+        itsIsSearchIndexed = indexed;
     }
 
     /** Add an observer for file changes */
@@ -676,6 +838,8 @@ public class PasswdFileData
                                            PwsRecord rec,
                                            boolean index)
     {
+        boolean indexed = index && itsPasswdRecords.containsKey(rec);
+        PasswdPolicy oldPolicy = indexed ? getIndexedPasswdPolicy(rec) : null;
         PasswdPolicy.RecordPolicyStrs strs =
             PasswdPolicy.recordPolicyToString(policy);
         setField((strs == null) ? null : strs.itsPolicyName,
@@ -686,15 +850,25 @@ public class PasswdFileData
                  rec, PwsRecordV3.OWN_PASSWORD_SYMBOLS);
         updateFormatVersion(PwsRecordV3.DB_FMT_MINOR_3_28);
 
-        if (index) {
-            PasswdRecord passwdRec = getPasswdRecord(rec);
+        if (indexed) {
+            PasswdRecord passwdRec = itsPasswdRecords.get(rec);
             if (passwdRec != null) {
                 passwdRec.passwdPolicyChanged(this);
             }
-            indexPasswdPolicies();
+            itsHdrPolicies.updateUseCount(oldPolicy,
+                                          getIndexedPasswdPolicy(rec));
         }
     }
 
+    /** Get the password policy of a record in the file, using its
+     * PasswdRecord if created */
+    private PasswdPolicy getIndexedPasswdPolicy(PwsRecord rec)
+    {
+        PasswdRecord passwdRec = itsPasswdRecords.get(rec);
+        return (passwdRec != null) ?
+            passwdRec.getPasswdPolicy() : getPasswdPolicy(rec);
+    }
+
     /** Get a field value as a string */
     private String getField(PwsRecord rec, int fieldId)
     {
@@ -904,16 +1078,8 @@ public class PasswdFileData
                 if (time == null) {
                     return null;
                 }
-                byte[] bytes = time.getBytes();
-                if (bytes.length == 8)
-                {
-                    byte[] binbytes = new byte[4];
-                    Util.putIntToByteArray(
-                        binbytes, hexBytesToInt(bytes, 0, bytes.length), 0);
-                    bytes = binbytes;
-                }
-                Date d = new Date(Util.getMillisFromByteArray(bytes, 0));
-                return d.toString();
+                Date d = PwsRecordV3.getHeaderLastSaveTime(time.getBytes());
+                return (d != null) ? d.toString() : null;
             }
             case PwsRecordV3.HEADER_LAST_SAVE_USER:
             {
@@ -1179,6 +1345,10 @@ public class PasswdFileData
 
         if (fieldId != FIELD_UNSUPPORTED) {
             setOrRemoveField(field, fieldId, rec);
+            recordChanged(rec);
+            if (fieldId == PwsRecordV3.PASSWORD_LIFETIME) {
+                indexRecordExpiry(rec);
+            }
             if (updateModTime && isV3() && itsPasswdRecords.containsKey(rec)) {
                 int modFieldId = (fieldId == PwsRecordV3.PASSWORD) ?
                     PwsRecordV3.PASSWORD_MOD_TIME : PwsRecordV3.LAST_MOD_TIME;
@@ -1206,46 +1376,203 @@ public class PasswdFileData
 
     private void indexRecords()
     {
+        ++itsChangeCount;
+        itsChangedRecords.clear();
+        itsChangedRecordsStart = itsChangeCount;
         itsRecords.clear();
-        itsRecordsByUUID.clear();
+        itsRecordsByUUID.clear(
+                (itsPwsFile != null) ? itsPwsFile.getRecordCount() : 0);
         itsPasswdRecords.clear();
+        itsRecordRefs.clear();
+        itsExpiryIndex.clear();
+        itsSearchIndex = ((itsPwsFile != null) && isSearchIndexed()) ?
+                         new PasswdSearchIndex() : null;
         if (itsPwsFile != null) {
             itsRecords.ensureCapacity(itsPwsFile.getRecordCount());
             Iterator<PwsRecord> recIter = itsPwsFile.getRecords();
             while (recIter.hasNext()) {
                 PwsRecord rec = recIter.next();
-                String uuid = getUUID(rec);
-                if (uuid == null) {
-                    // Add a UUID field for records without one.  The record
-                    // will not be marked as modified unless the user manually
-                    // edits it.
-                    PwsUUIDField uuidField = new PwsUUIDField(
-                        isV2() ? PwsFieldTypeV2.UUID : PwsFieldTypeV3.UUID,
-                        new UUID());
-                    boolean modified = rec.isModified();
-                    rec.setField(uuidField);
-                    if (!modified) {
-                        rec.resetModified();
-                    }
-                    uuid = uuidField.toString();
-                }
-
                 itsRecords.add(rec);
-                itsRecordsByUUID.put(uuid, rec);
+                indexRecordUuid(rec, addRecordUuid(rec));
+                itsPasswdRecords.put(rec, null);
             }
         }
         for (PwsRecord rec: itsRecords) {
-            itsPasswdRecords.put(rec, new PasswdRecord(rec, this));
+            indexRecordRef(rec);
+            indexRecordSearch(rec);
+            Date expiry = getDateField(rec, PwsRecordV3.PASSWORD_LIFETIME);
+            itsExpiryIndex.append(rec,
+                                  (expiry != null) ? expiry.getTime() : null);
         }
-        for (PasswdRecord passwdRec: itsPasswdRecords.values()) {
-            PwsRecord ref = passwdRec.getRef();
-            PasswdRecord referencedRecord = itsPasswdRecords.get(ref);
-            if (referencedRecord != null) {
-                referencedRecord.addRefToRecord(passwdRec.getRecord());
+
+        indexPasswdPolicies();
+    }
+
+    /**
+     * Get a record's UUID, adding a UUID field for a record without one.
+     * The record will not be marked as modified unless the user manually
+     * edits it.
+     */
+    private String addRecordUuid(PwsRecord rec)
+    {
+        String uuid = getField(rec, PwsRecordV3.UUID);
+        if (uuid == null) {
+            PwsUUIDField uuidField = new PwsUUIDField(
+                isV2() ? PwsFieldTypeV2.UUID : PwsFieldTypeV3.UUID,
+                new UUID());
+            boolean modified = rec.isModified();
+            rec.setField(uuidField);
+            if (!modified) {
+                rec.resetModified();
             }
+            uuid = uuidField.toString();
         }
+        return uuid;
+    }
 
-        indexPasswdPolicies();
+    /**
+     * Add a record to the UUID index
+     *
+     * @return The record previously indexed by the UUID; null if none
+     */
+    private PwsRecord indexRecordUuid(PwsRecord rec, String uuid)
+    {
+        PwsRecord prevRec = itsRecordsByUUID.get(uuid);
+        PwsField field = doGetRecField(rec, PwsRecordV3.UUID);
+        if ((field != null) && (field.getValue() instanceof UUID)) {
+            itsRecordsByUUID.put((UUID)field.getValue(), uuid, rec);
+        } else {
+            itsRecordsByUUID.put(uuid, rec);
+        }
+        return prevRec;
+    }
+
+    /**
+     * Remove a record from the UUID index.  The record must already be
+     * removed from the list of records.  If another record has the same
+     * UUID, the last such record is indexed in its place as when all of the
+     * records are indexed.
+     */
+    private void unindexRecordUuid(PwsRecord rec)
+    {
+        PwsField field = doGetRecField(rec, PwsRecordV3.UUID);
+        if (field == null) {
+            return;
+        }
+        Object id = field.getValue();
+        String idStr = field.toString();
+        if (itsRecordsByUUID.get(idStr) != rec) {
+            return;
+        }
+        if (id instanceof UUID) {
+            itsRecordsByUUID.remove((UUID)id, rec);
+        } else {
+            itsRecordsByUUID.remove(idStr, rec);
+        }
+
+        for (int i = itsRecords.size() - 1; i >= 0; --i) {
+            PwsRecord dupRec = itsRecords.get(i);
+            PwsField dupField = doGetRecField(dupRec, PwsRecordV3.UUID);
+            if ((dupField != null) &&
+                ((id instanceof UUID) ? id.equals(dupField.getValue()) :
+                 idStr.equals(dupField.toString()))) {
+                indexRecordUuid(dupRec, dupField.toString());
+                break;
+            }
+        }
+    }
+
+    /**
+     * Update the reference held by a record from its password.  Only the
+     * passwords classified as possible aliases or shortcuts when their
+     * fields were created are decrypted.
+     */
+    private void indexRecordRef(PwsRecord rec)
+    {
+        PasswdRecord.Type type = PasswdRecord.Type.NORMAL;
+        PwsRecord ref = null;
+        if (isV3()) {
+            PwsField field = doGetRecField(rec, PwsRecordV3.PASSWORD);
+            if (field instanceof AbstractPwsPasswdField) {
+                switch (((AbstractPwsPasswdField)field).getRefType()) {
+                case AbstractPwsPasswdField.REF_ALIAS: {
+                    type = PasswdRecord.Type.ALIAS;
+                    break;
+                }
+                case AbstractPwsPasswdField.REF_SHORTCUT: {
+                    type = PasswdRecord.Type.SHORTCUT;
+                    break;
+                }
+                }
+            } else if (field != null) {
+                type = PasswdRecord.getPasswdRefType(field.toString());
+            }
+            if (type != PasswdRecord.Type.NORMAL) {
+                ref = PasswdRecord.lookupRef(field.toString(), this);
+            }
+        }
+        itsRecordRefs.setRef(rec, type, ref);
+    }
+
+    /**
+     * Update the references which may now resolve to an added record: those
+     * not found, and those to a record which had the same UUID
+     *
+     * @param prevRec The record previously indexed by the added record's
+     *                UUID; null if none
+     */
+    private void indexRecordRefsToNewRecord(PwsRecord prevRec)
+    {
+        List<PwsRecord> refRecs = itsRecordRefs.getUnresolvedRefs();
+        if ((prevRec != null) && itsRecordRefs.hasRefsToRecord(prevRec)) {
+            refRecs.addAll(itsRecordRefs.getRefsToRecord(prevRec));
+        }
+        for (PwsRecord refRec: refRecs) {
+            updateRecordRef(refRec);
+            if (itsRecordRefs.getRef(refRec) != null) {
+                recordChanged(refRec);
+            }
+        }
+    }
+
+    /** Update the reference held by a record and its PasswdRecord */
+    private void updateRecordRef(PwsRecord rec)
+    {
+        indexRecordRef(rec);
+        PasswdRecord passwdRec = itsPasswdRecords.get(rec);
+        if (passwdRec != null) {
+            passwdRec.passwordChanged(this);
+        }
+    }
+
+    /** Count a change to a record */
+    private void recordChanged(PwsRecord rec)
+    {
+        ++itsChangeCount;
+        if (itsChangedRecords.size() < MAX_CHANGED_RECORDS) {
+            itsChangedRecords.add(rec);
+        } else {
+            itsChangedRecords.clear();
+            itsChangedRecordsStart = itsChangeCount;
+        }
+    }
+
+    /** Update the search index entry for a record in the file */
+    private void indexRecordSearch(PwsRecord rec)
+    {
+        if ((itsSearchIndex != null) && itsPasswdRecords.containsKey(rec)) {
+            itsSearchIndex.add(rec, getTitle(rec), getUsername(rec),
+                               getURL(rec), getEmail(rec), getNotes(rec));
+        }
+    }
+
+    /** Update the expiration index entry for a record in the file */
+    private void indexRecordExpiry(PwsRecord rec)
+    {
+        if (itsPasswdRecords.containsKey(rec)) {
+            Date expiry = getDateField(rec, PwsRecordV3.PASSWORD_LIFETIME);
+            itsExpiryIndex.put(rec, (expiry != null) ? expiry.getTime() : null);
+        }
     }
 
     /** Index the password policies */
@@ -1254,8 +1581,10 @@ public class PasswdFileData
         List<PasswdPolicy> hdrPolicies =
             PasswdPolicy.parseHdrPolicies(
                 getHdrField(PwsRecordV3.HEADER_NAMED_PASSWORD_POLICIES));
-        itsHdrPolicies = new HeaderPasswdPolicies(itsPasswdRecords.values(),
-                                                  hdrPolicies);
+        itsHdrPolicies = new HeaderPasswdPolicies(hdrPolicies);
+        for (PwsRecord rec: itsRecords) {
+            itsHdrPolicies.updateUseCount(null, getIndexedPasswdPolicy(rec));
+        }
     }
 
 
@@ -1303,22 +1632,11 @@ public class PasswdFileData
             return null;
         }
 
-        if (str.length() < 4) {
-            Log.e(TAG, "Invalid who length: " + str.length());
-            return null;
-        }
-        int len = Integer.parseInt(str.substring(0, 4), 16);
-
-        if ((len + 4) > str.length()) {
-            Log.e(TAG, "Invalid user length: " + (len + 4));
+        String[] userHost = PwsRecordV3.splitHeaderLastSaveWho(str);
+        if (userHost == null) {
             return null;
         }
-
-        if (isUser) {
-            return str.substring(4, len + 4);
-        } else {
-            return str.substring(len + 4);
-        }
+        return isUser ? userHost[0] : userHost[1];
     }
 
 
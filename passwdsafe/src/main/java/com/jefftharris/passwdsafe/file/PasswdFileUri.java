@@ -38,6 +38,7 @@ import org.pwsafe.lib.exception.EndOfFileException;
 import org.pwsafe.lib.exception.InvalidPassphraseException;
 import org.pwsafe.lib.exception.UnsupportedFileVersionException;
 import org.pwsafe.lib.file.Owner;
+import org.pwsafe.lib.file.PwsChannelStorage;
 import org.pwsafe.lib.file.PwsFile;
 import org.pwsafe.lib.file.PwsFileFactory;
 import org.pwsafe.lib.file.PwsFileStorage;
@@ -274,8 +275,8 @@ public class PasswdFileUri implements Parcelable
         case FILE: {
             PwsFile file = PwsFileFactory.newFile();
             file.setPassphrase(passwd);
-            file.setStorage(new PwsFileStorage(itsFile.getAbsolutePath(),
-                                               null));
+            file.setStorage(new PwsChannelStorage(itsFile.getAbsolutePath(),
+                                                  null));
             return file;
         }
         case SYNC_PROVIDER: {
@@ -7,9 +7,7 @@
  */
 package com.jefftharris.passwdsafe.file;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Locale;
 
 import org.pwsafe.lib.file.PwsRecord;
 
@@ -33,14 +31,19 @@ public class PasswdRecord
     private final String itsUUID;
     private Type itsType;
     private PwsRecord itsRef;
-    private final ArrayList<PwsRecord> itsRefsToRecord = new ArrayList<>();
+    private final List<PwsRecord> itsRefsToRecord;
     private PasswdPolicy itsPasswdPolicy;
     private PasswdExpiration itsPasswdExpiry;
 
+    /**
+     * Constructor.  The references are taken from the file's reference
+     * table, so the password is not decrypted.
+     */
     public PasswdRecord(PwsRecord rec, PasswdFileData fileData)
     {
         itsRecord = rec;
         itsUUID = fileData.getUUID(rec);
+        itsRefsToRecord = fileData.getRefsToRecord(rec);
         passwordChanged(fileData);
         passwdPolicyChanged(fileData);
         passwdExpiryChanged(fileData);
@@ -67,45 +70,16 @@ public class PasswdRecord
         return itsRef;
     }
 
-    public void addRefToRecord(PwsRecord ref)
-    {
-        itsRefsToRecord.add(ref);
-    }
-
-    public void removeRefToRecord(PwsRecord ref)
-    {
-        itsRefsToRecord.remove(ref);
-    }
-
     public List<PwsRecord> getRefsToRecord()
     {
         return itsRefsToRecord;
     }
 
+    /** Notification that the password, and so its reference, has changed */
     public void passwordChanged(PasswdFileData fileData)
     {
-        PwsRecord ref = null;
-        Type type = Type.NORMAL;
-        if (fileData.isV3()) {
-            String passwd = fileData.getPassword(itsRecord);
-            if (passwd != null) {
-                if (passwd.startsWith(ALIAS_OPEN) &&
-                    passwd.endsWith(ALIAS_CLOSE)) {
-                    ref = lookupRef(passwd, fileData);
-                    if (ref != null) {
-                        type = Type.ALIAS;
-                    }
-                } else if (passwd.startsWith(SHORTCUT_OPEN) &&
-                           passwd.endsWith(SHORTCUT_CLOSE)) {
-                    ref = lookupRef(passwd, fileData);
-                    if (ref != null) {
-                        type = Type.SHORTCUT;
-                    }
-                }
-            }
-        }
-        itsType = type;
-        itsRef = ref;
+        itsType = fileData.getRefType(itsRecord);
+        itsRef = fileData.getRef(itsRecord);
     }
 
     /**
@@ -221,30 +195,39 @@ public class PasswdRecord
         return sb.toString();
     }
 
-    private PwsRecord lookupRef(String passwd, PasswdFileData fileData)
+    /**
+     * Get the type of reference a password may hold from its form.  The
+     * referenced record must still be looked up.
+     */
+    static Type getPasswdRefType(String passwd)
+    {
+        if (passwd != null) {
+            if (passwd.startsWith(ALIAS_OPEN) &&
+                passwd.endsWith(ALIAS_CLOSE)) {
+                return Type.ALIAS;
+            } else if (passwd.startsWith(SHORTCUT_OPEN) &&
+                       passwd.endsWith(SHORTCUT_CLOSE)) {
+                return Type.SHORTCUT;
+            }
+        }
+        return Type.NORMAL;
+    }
+
+    /**
+     * Look up the record referenced by a password of the form of an alias
+     * or shortcut
+     *
+     * @return The referenced record; null if not found
+     */
+    static PwsRecord lookupRef(String passwd, PasswdFileData fileData)
     {
         PwsRecord ref = null;
 
         // Passwd in the form of [[<uuid>]] or [~<uuid>~]. Check for a real
-        // entry. The <uuid> is a string of hex digits and needs to be converted
-        // to the format used by the UUID class
+        // entry. The <uuid> is a string of 32 hex digits which is looked up
+        // directly without copying the password.
         if (passwd.length() == 36) {
-            StringBuilder sb = new StringBuilder(36 - 4 + 6);
-            sb.append('{');
-            sb.append(passwd, 2, 2 + 8);
-            sb.append('-');
-            sb.append(passwd, 10, 10 + 4);
-            sb.append('-');
-            sb.append(passwd, 14, 14 + 4);
-            sb.append('-');
-            sb.append(passwd, 18, 18 + 4);
-            sb.append('-');
-            sb.append(passwd, 22, 22 + 12);
-            sb.append('}');
-            ref = fileData.getRecord(sb.toString().toLowerCase(Locale.US));
-            for (int i = 0; i < sb.length(); ++i) {
-                sb.setCharAt(i, '\0');
-            }
+            ref = fileData.getRecordByHex(passwd, 2);
         }
 
         return ref;
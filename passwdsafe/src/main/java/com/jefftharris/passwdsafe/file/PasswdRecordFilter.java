@@ -9,6 +9,7 @@ package com.jefftharris.passwdsafe.file;
 
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -254,6 +255,9 @@ public final class PasswdRecordFilter implements Parcelable
         switch (itsType) {
         case QUERY: {
             if (itsSearchQuery != null) {
+                if (!fileData.isSearchCandidate(rec, itsSearchQuery)) {
+                    break;
+                }
                 if (QUERY_MATCH_TITLE == null) {
                     QUERY_MATCH_TITLE = ctx.getString(R.string.title);
                     QUERY_MATCH_USERNAME = ctx.getString(R.string.username);
@@ -328,6 +332,32 @@ public final class PasswdRecordFilter implements Parcelable
     }
 
 
+    /**
+     * Get the records which may match the filter.  An expiration filter only
+     * needs the records whose passwords expire before its time.
+     */
+    public final List<PwsRecord> getCandidateRecords(PasswdFileData fileData)
+    {
+        switch (itsType) {
+        case QUERY: {
+            break;
+        }
+        case EXPIRATION: {
+            return fileData.getPasswdExpiryRecords(itsExpiryAtMillis);
+        }
+        }
+        return fileData.getRecords();
+    }
+
+    /**
+     * Get whether the filter matches a record based only on the record
+     * itself and not on the records which reference it
+     */
+    public final boolean matchesRecordOnly()
+    {
+        return itsOptions == OPTS_DEFAULT;
+    }
+
     /**
      * Is the filter's type a query
      */
@@ -344,6 +374,35 @@ public final class PasswdRecordFilter implements Parcelable
         return false;
     }
 
+    /**
+     * Get whether the records matching another filter must be a subset of
+     * those matching this filter.  A query refines this filter's query when
+     * both are plain substrings with the same flags and options and its
+     * substring contains this filter's substring, such as when more
+     * characters are typed into a search.
+     */
+    public final boolean isRefinedBy(PasswdRecordFilter filter)
+    {
+        if ((filter == null) ||
+            (itsType != Type.QUERY) || (filter.itsType != Type.QUERY) ||
+            (itsOptions != filter.itsOptions)) {
+            return false;
+        }
+        if (itsSearchQuery == null) {
+            return true;
+        }
+        if ((filter.itsSearchQuery == null) ||
+            (itsSearchQuery.flags() != filter.itsSearchQuery.flags())) {
+            return false;
+        }
+        String literal = PasswdSearchIndex.getLiteral(itsSearchQuery);
+        String refined = PasswdSearchIndex.getLiteral(filter.itsSearchQuery);
+        return (literal != null) && (refined != null) &&
+               containsQuery(refined, literal,
+                             (itsSearchQuery.flags() &
+                              Pattern.CASE_INSENSITIVE) != 0);
+    }
+
     /** Convert the filter to a string */
     public final String toString(Context ctx)
     {
@@ -398,6 +457,9 @@ public final class PasswdRecordFilter implements Parcelable
         }
         switch (itsType) {
         case QUERY: {
+            if ((itsSearchQuery == null) || (obj.itsSearchQuery == null)) {
+                return itsSearchQuery == obj.itsSearchQuery;
+            }
             return
                 itsSearchQuery.pattern().equals(obj.itsSearchQuery.pattern()) &&
                 (itsSearchQuery.flags() == obj.itsSearchQuery.flags());
@@ -412,6 +474,32 @@ public final class PasswdRecordFilter implements Parcelable
     }
 
 
+    /* (non-Javadoc)
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public final int hashCode()
+    {
+        int hash = itsType.hashCode() * 31 + itsOptions;
+        switch (itsType) {
+        case QUERY: {
+            if (itsSearchQuery != null) {
+                hash = hash * 31 + itsSearchQuery.pattern().hashCode();
+                hash = hash * 31 + itsSearchQuery.flags();
+            }
+            break;
+        }
+        case EXPIRATION: {
+            hash = hash * 31 + itsExpiryFilter.hashCode();
+            hash = hash * 31 + (int)(itsExpiryAtMillis ^
+                                     (itsExpiryAtMillis >>> 32));
+            break;
+        }
+        }
+        return hash;
+    }
+
+
     /** Does the filter have the given options */
     private boolean hasOptions(int opts)
     {
@@ -419,6 +507,39 @@ public final class PasswdRecordFilter implements Parcelable
     }
 
 
+    /**
+     * Check whether a string contains a query substring.  A case-insensitive
+     * check folds only ASCII letters, as does a case-insensitive Pattern.
+     */
+    private static boolean containsQuery(String str, String query,
+                                         boolean caseInsensitive)
+    {
+        if (!caseInsensitive) {
+            return str.contains(query);
+        }
+        int queryLen = query.length();
+        for (int i = 0; i + queryLen <= str.length(); ++i) {
+            int j = 0;
+            while ((j < queryLen) &&
+                   (foldAscii(str.charAt(i + j)) ==
+                    foldAscii(query.charAt(j)))) {
+                ++j;
+            }
+            if (j == queryLen) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /** Convert an ASCII letter to lowercase */
+    private static char foldAscii(char c)
+    {
+        return ((c >= 'A') && (c <= 'Z')) ? (char)(c + ('a' - 'A')) : c;
+    }
+
+
     /** Match a field against the search query */
     private boolean filterField(String field)
     {
@@ -0,0 +1,166 @@
+/*
+ * Copyright (©) 2017 Jeff Harris <jefftharris@gmail.com>
+ * All rights reserved. Use of the code is allowed under the
+ * Artistic License 2.0 terms, as specified in the LICENSE file
+ * distributed with this code, or available from
+ * http://www.opensource.org/licenses/artistic-license-2.0.php
+ */
+package com.jefftharris.passwdsafe.file;
+
+import org.pwsafe.lib.file.PwsRecord;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Table of the alias and shortcut references between records.  Only the
+ * records which reference another record, or are referenced, have entries,
+ * so the references are known without creating a PasswdRecord for every
+ * record in the file.  The records whose references were not found are kept
+ * so they can be resolved when a record is added.
+ */
+final class PasswdRecordRefs
+{
+    private final IdentityHashMap<PwsRecord, PwsRecord> itsAliases =
+            new IdentityHashMap<>();
+    private final IdentityHashMap<PwsRecord, PwsRecord> itsShortcuts =
+            new IdentityHashMap<>();
+    private final IdentityHashMap<PwsRecord, List<PwsRecord>> itsRefsTo =
+            new IdentityHashMap<>();
+    private final IdentityHashMap<PwsRecord, PasswdRecord.Type> itsUnresolved =
+            new IdentityHashMap<>();
+
+    /**
+     * Remove all references
+     */
+    void clear()
+    {
+        itsAliases.clear();
+        itsShortcuts.clear();
+        itsRefsTo.clear();
+        itsUnresolved.clear();
+    }
+
+    /**
+     * Set the record referenced by a record, replacing any previous
+     * reference
+     *
+     * @param rec The record
+     * @param type The type of reference
+     * @param ref The referenced record; null if none or not found
+     */
+    void setRef(PwsRecord rec, PasswdRecord.Type type, PwsRecord ref)
+    {
+        removeRef(rec);
+        if (ref == null) {
+            if (type != PasswdRecord.Type.NORMAL) {
+                itsUnresolved.put(rec, type);
+            }
+            return;
+        }
+        switch (type) {
+        case NORMAL: {
+            return;
+        }
+        case ALIAS: {
+            itsAliases.put(rec, ref);
+            break;
+        }
+        case SHORTCUT: {
+            itsShortcuts.put(rec, ref);
+            break;
+        }
+        }
+        getRefsToRecord(ref).add(rec);
+    }
+
+    /**
+     * Remove a record and the reference it holds.  The record must not be
+     * referenced by other records.
+     */
+    void removeRecord(PwsRecord rec)
+    {
+        removeRef(rec);
+        itsRefsTo.remove(rec);
+    }
+
+    /**
+     * Get the type of reference held by a record
+     */
+    PasswdRecord.Type getType(PwsRecord rec)
+    {
+        if (itsAliases.containsKey(rec)) {
+            return PasswdRecord.Type.ALIAS;
+        } else if (itsShortcuts.containsKey(rec)) {
+            return PasswdRecord.Type.SHORTCUT;
+        }
+        return PasswdRecord.Type.NORMAL;
+    }
+
+    /**
+     * Get the record referenced by a record
+     *
+     * @return The referenced record; null if none
+     */
+    PwsRecord getRef(PwsRecord rec)
+    {
+        PwsRecord ref = itsAliases.get(rec);
+        return (ref != null) ? ref : itsShortcuts.get(rec);
+    }
+
+    /**
+     * Get whether a record is referenced by other records
+     */
+    boolean hasRefsToRecord(PwsRecord rec)
+    {
+        List<PwsRecord> refs = itsRefsTo.get(rec);
+        return (refs != null) && !refs.isEmpty();
+    }
+
+    /**
+     * Get the records which reference a record.  The list is kept up to date
+     * as references change.
+     */
+    List<PwsRecord> getRefsToRecord(PwsRecord rec)
+    {
+        List<PwsRecord> refs = itsRefsTo.get(rec);
+        if (refs == null) {
+            refs = new ArrayList<>();
+            itsRefsTo.put(rec, refs);
+        }
+        return refs;
+    }
+
+    /**
+     * Get the records with an alias or shortcut reference to a record which
+     * was not found
+     */
+    List<PwsRecord> getUnresolvedRefs()
+    {
+        return new ArrayList<>(itsUnresolved.keySet());
+    }
+
+    /**
+     * Remove the reference held by a record
+     */
+    private void removeRef(PwsRecord rec)
+    {
+        itsUnresolved.remove(rec);
+        PwsRecord ref = itsAliases.remove(rec);
+        if (ref == null) {
+            ref = itsShortcuts.remove(rec);
+        }
+        if (ref != null) {
+            List<PwsRecord> refs = itsRefsTo.get(ref);
+            if (refs != null) {
+                for (int i = refs.size() - 1; i >= 0; --i) {
+                    if (refs.get(i) == rec) {
+                        refs.remove(i);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (©) 2017 Jeff Harris <jefftharris@gmail.com>
+ * All rights reserved. Use of the code is allowed under the
+ * Artistic License 2.0 terms, as specified in the LICENSE file
+ * distributed with this code, or available from
+ * http://www.opensource.org/licenses/artistic-license-2.0.php
+ */
+package com.jefftharris.passwdsafe.file;
+
+import org.pwsafe.lib.file.PwsRecord;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.regex.Pattern;
+
+/**
+ * An inverted index of the trigrams in the searched fields of records.  A
+ * query for a plain substring is answered by intersecting the lists of
+ * records containing each of the query's trigrams, so only the candidate
+ * records need to be matched against the query's pattern.  The text is
+ * lowercased so the candidates include every match whether or not the query
+ * is case sensitive.
+ */
+public final class PasswdSearchIndex
+{
+    /** Characters with a special meaning in a regex */
+    private static final String REGEX_CHARS = "\\^$.|?*+()[]{}";
+
+    /** The minimum number of removed records before the lists are
+     * compacted */
+    private static final int MIN_COMPACT = 1024;
+
+    private final HashMap<Long, Postings> itsPostings = new HashMap<>();
+    private final IdentityHashMap<PwsRecord, Integer> itsIds =
+            new IdentityHashMap<>();
+    private PwsRecord[] itsRecords = new PwsRecord[16];
+    private int itsNextId = 0;
+    private Pattern itsQuery;
+    private BitSet itsCandidates;
+
+    /**
+     * Add a record, replacing its entry if already indexed
+     *
+     * @param rec The record
+     * @param fields The values of the record's searched fields; null values
+     *               are skipped
+     */
+    public void add(PwsRecord rec, String... fields)
+    {
+        remove(rec);
+        int id = itsNextId++;
+        if (id >= itsRecords.length) {
+            itsRecords = Arrays.copyOf(itsRecords, itsRecords.length * 2);
+        }
+        itsRecords[id] = rec;
+        itsIds.put(rec, id);
+        for (String field: fields) {
+            if (field == null) {
+                continue;
+            }
+            for (int i = 0; i + 3 <= field.length(); ++i) {
+                Long key = trigram(field, i);
+                Postings postings = itsPostings.get(key);
+                if (postings == null) {
+                    postings = new Postings();
+                    itsPostings.put(key, postings);
+                }
+                postings.add(id);
+            }
+        }
+        itsQuery = null;
+    }
+
+    /**
+     * Remove a record.  The record's identifier is dropped from the lists
+     * when enough records have been removed for a compaction.
+     */
+    public void remove(PwsRecord rec)
+    {
+        Integer id = itsIds.remove(rec);
+        if (id == null) {
+            return;
+        }
+        itsRecords[id] = null;
+        int numRemoved = itsNextId - itsIds.size();
+        if ((numRemoved >= MIN_COMPACT) && (numRemoved > itsIds.size())) {
+            compact();
+        }
+        itsQuery = null;
+    }
+
+    /**
+     * Get the number of indexed records
+     */
+    public int size()
+    {
+        return itsIds.size();
+    }
+
+    /**
+     * Get whether a record may match a query.  The candidates for a query
+     * are found once and reused until the query or the index changes.
+     *
+     * @return false if the record can not match; true if the record may
+     * match and must be checked against the query
+     */
+    public boolean isCandidate(PwsRecord rec, Pattern query)
+    {
+        if (query != itsQuery) {
+            itsQuery = query;
+            itsCandidates = findCandidates(query);
+        }
+        if (itsCandidates == null) {
+            return true;
+        }
+        Integer id = itsIds.get(rec);
+        return (id == null) || itsCandidates.get(id);
+    }
+
+    /**
+     * Find the records which may match a query
+     *
+     * @return The identifiers of the candidate records; null if the query
+     * can not use the index
+     */
+    private BitSet findCandidates(Pattern query)
+    {
+        String literal = getLiteral(query);
+        if ((literal == null) || (literal.length() < 3)) {
+            return null;
+        }
+
+        BitSet candidates = new BitSet(itsNextId);
+        Postings[] lists = new Postings[literal.length() - 2];
+        for (int i = 0; i < lists.length; ++i) {
+            lists[i] = itsPostings.get(trigram(literal, i));
+            if (lists[i] == null) {
+                return candidates;
+            }
+        }
+        Arrays.sort(lists, new Comparator<Postings>()
+        {
+            @Override
+            public int compare(Postings lhs, Postings rhs)
+            {
+                return (lhs.itsSize < rhs.itsSize) ? -1 :
+                       ((lhs.itsSize == rhs.itsSize) ? 0 : 1);
+            }
+        });
+
+        // Intersect starting from the shortest list
+        int[] ids = Arrays.copyOf(lists[0].itsIds, lists[0].itsSize);
+        int numIds = ids.length;
+        for (int i = 1; (i < lists.length) && (numIds > 0); ++i) {
+            numIds = lists[i].intersect(ids, numIds);
+        }
+        for (int i = 0; i < numIds; ++i) {
+            if (itsRecords[ids[i]] != null) {
+                candidates.set(ids[i]);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Renumber the records to drop the identifiers of removed records from
+     * the lists
+     */
+    private void compact()
+    {
+        int[] newIds = new int[itsNextId];
+        PwsRecord[] records = new PwsRecord[Math.max(16, itsIds.size() * 2)];
+        int nextId = 0;
+        for (int id = 0; id < itsNextId; ++id) {
+            PwsRecord rec = itsRecords[id];
+            if (rec != null) {
+                records[nextId] = rec;
+                itsIds.put(rec, nextId);
+                newIds[id] = nextId++;
+            } else {
+                newIds[id] = -1;
+            }
+        }
+        Iterator<Postings> iter = itsPostings.values().iterator();
+        while (iter.hasNext()) {
+            Postings postings = iter.next();
+            postings.renumber(newIds);
+            if (postings.itsSize == 0) {
+                iter.remove();
+            }
+        }
+        itsRecords = records;
+        itsNextId = nextId;
+    }
+
+    /**
+     * Get the substring matched by a query if it is a plain substring
+     *
+     * @return The substring; null if the query is a regex or uses options
+     * which change how a substring matches
+     */
+    static String getLiteral(Pattern query)
+    {
+        int flags = query.flags();
+        if ((flags & ~(Pattern.CASE_INSENSITIVE | Pattern.LITERAL)) != 0) {
+            return null;
+        }
+        String str = query.pattern();
+        if ((flags & Pattern.LITERAL) == 0) {
+            for (int i = 0; i < str.length(); ++i) {
+                if (REGEX_CHARS.indexOf(str.charAt(i)) >= 0) {
+                    return null;
+                }
+            }
+        }
+        return str;
+    }
+
+    /**
+     * Get the key for the lowercased trigram at a position in a string
+     */
+    private static long trigram(String str, int pos)
+    {
+        return ((long)Character.toLowerCase(str.charAt(pos)) << 32) |
+               ((long)Character.toLowerCase(str.charAt(pos + 1)) << 16) |
+               Character.toLowerCase(str.charAt(pos + 2));
+    }
+
+    /**
+     * The ascending identifiers of the records containing a trigram
+     */
+    private static final class Postings
+    {
+        private int[] itsIds = new int[2];
+        private int itsSize = 0;
+
+        /**
+         * Add a record identifier which is not less than the others
+         */
+        void add(int id)
+        {
+            if ((itsSize > 0) && (itsIds[itsSize - 1] == id)) {
+                return;
+            }
+            if (itsSize == itsIds.length) {
+                itsIds = Arrays.copyOf(itsIds, itsSize * 2);
+            }
+            itsIds[itsSize++] = id;
+        }
+
+        /**
+         * Intersect sorted identifiers with the list in place
+         *
+         * @return The number of identifiers remaining
+         */
+        int intersect(int[] ids, int numIds)
+        {
+            int num = 0;
+            int pos = 0;
+            for (int i = 0; (i < numIds) && (pos < itsSize); ++i) {
+                int idx = Arrays.binarySearch(itsIds, pos, itsSize, ids[i]);
+                if (idx >= 0) {
+                    ids[num++] = ids[i];
+                    pos = idx + 1;
+                } else {
+                    pos = -(idx + 1);
+                }
+            }
+            return num;
+        }
+
+        /**
+         * Renumber the identifiers, dropping those mapped to -1
+         */
+        void renumber(int[] newIds)
+        {
+            int num = 0;
+            for (int i = 0; i < itsSize; ++i) {
+                int id = newIds[itsIds[i]];
+                if (id >= 0) {
+                    itsIds[num++] = id;
+                }
+            }
+            itsSize = num;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (©) 2017 Jeff Harris <jefftharris@gmail.com>
+ * All rights reserved. Use of the code is allowed under the
+ * Artistic License 2.0 terms, as specified in the LICENSE file
+ * distributed with this code, or available from
+ * http://www.opensource.org/licenses/artistic-license-2.0.php
+ */
+package com.jefftharris.passwdsafe.file;
+
+import org.pwsafe.lib.UUID;
+import org.pwsafe.lib.file.PwsRecord;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Index of records by UUID.  The 128-bit UUIDs are kept as pairs of longs in
+ * an open addressing table along with the record and the string form of its
+ * UUID, so lookups need no boxing or string hashing.  Identifiers which are
+ * not UUIDs, such as the phantom UUIDs of V1 records, are kept in a separate
+ * map.
+ */
+public final class PasswdUuidIndex
+{
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] itsMsbs;
+    private long[] itsLsbs;
+    private PwsRecord[] itsRecords;
+    private String[] itsUuidStrs;
+    private int itsSize;
+    private final HashMap<String, PwsRecord> itsOtherIds = new HashMap<>();
+
+    /**
+     * Constructor
+     */
+    public PasswdUuidIndex()
+    {
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * Remove all records and size the index for a number of records
+     */
+    public void clear(int expectedSize)
+    {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        if (capacity != itsRecords.length) {
+            allocate(capacity);
+        } else {
+            Arrays.fill(itsRecords, null);
+            Arrays.fill(itsUuidStrs, null);
+        }
+        itsSize = 0;
+        itsOtherIds.clear();
+    }
+
+    /**
+     * Add a record with a UUID
+     *
+     * @param uuid The record's UUID
+     * @param uuidStr The string form of the UUID
+     * @param rec The record
+     */
+    public void put(UUID uuid, String uuidStr, PwsRecord rec)
+    {
+        if ((itsSize + 1) * 2 > itsRecords.length) {
+            rehash(itsRecords.length * 2);
+        }
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        int slot = findSlot(msb, lsb);
+        if (itsRecords[slot] == null) {
+            ++itsSize;
+        }
+        itsMsbs[slot] = msb;
+        itsLsbs[slot] = lsb;
+        itsRecords[slot] = rec;
+        itsUuidStrs[slot] = uuidStr;
+    }
+
+    /**
+     * Add a record with an identifier which is not a UUID
+     */
+    public void put(String id, PwsRecord rec)
+    {
+        itsOtherIds.put(id, rec);
+    }
+
+    /**
+     * Remove a record with a UUID if it is the record indexed by the UUID
+     */
+    public void remove(UUID uuid, PwsRecord rec)
+    {
+        int mask = itsRecords.length - 1;
+        int hole = findSlot(uuid.getMostSignificantBits(),
+                            uuid.getLeastSignificantBits());
+        if ((itsRecords[hole] == null) || (itsRecords[hole] != rec)) {
+            return;
+        }
+
+        // Shift back the following entries in the probe sequence which
+        // could not otherwise be found after the slot is emptied
+        int slot = hole;
+        while (true) {
+            slot = (slot + 1) & mask;
+            if (itsRecords[slot] == null) {
+                break;
+            }
+            int home = hash(itsMsbs[slot], itsLsbs[slot]) & mask;
+            boolean move = (slot > hole) ?
+                           ((home <= hole) || (home > slot)) :
+                           ((home <= hole) && (home > slot));
+            if (move) {
+                itsMsbs[hole] = itsMsbs[slot];
+                itsLsbs[hole] = itsLsbs[slot];
+                itsRecords[hole] = itsRecords[slot];
+                itsUuidStrs[hole] = itsUuidStrs[slot];
+                hole = slot;
+            }
+        }
+        itsRecords[hole] = null;
+        itsUuidStrs[hole] = null;
+        --itsSize;
+    }
+
+    /**
+     * Remove a record with an identifier which is not a UUID if it is the
+     * record indexed by the identifier
+     */
+    public void remove(String id, PwsRecord rec)
+    {
+        if (itsOtherIds.get(id) == rec) {
+            itsOtherIds.remove(id);
+        }
+    }
+
+    /**
+     * Get a record by the raw bytes of its UUID
+     *
+     * @return The record; null if not found
+     */
+    public PwsRecord get(byte[] uuid)
+    {
+        if (uuid.length != 16) {
+            return null;
+        }
+        long msb = 0;
+        long lsb = 0;
+        for (int i = 0; i < 8; ++i) {
+            msb = (msb << 8) | (uuid[i] & 0xff);
+            lsb = (lsb << 8) | (uuid[i + 8] & 0xff);
+        }
+        return itsRecords[findSlot(msb, lsb)];
+    }
+
+    /**
+     * Get a record by the string form of its UUID,
+     * {01234567-89ab-cdef-0123-456789abcdef}, or by its other identifier
+     *
+     * @return The record; null if not found
+     */
+    public PwsRecord get(String uuid)
+    {
+        if ((uuid.length() == 38) &&
+            (uuid.charAt(0) == '{') && isHex(uuid, 1, 8) &&
+            (uuid.charAt(9) == '-') && isHex(uuid, 10, 4) &&
+            (uuid.charAt(14) == '-') && isHex(uuid, 15, 4) &&
+            (uuid.charAt(19) == '-') && isHex(uuid, 20, 4) &&
+            (uuid.charAt(24) == '-') && isHex(uuid, 25, 12) &&
+            (uuid.charAt(37) == '}')) {
+            long msb = (parseHex(uuid, 1, 8) << 32) |
+                       (parseHex(uuid, 10, 4) << 16) |
+                       parseHex(uuid, 15, 4);
+            long lsb = (parseHex(uuid, 20, 4) << 48) |
+                       parseHex(uuid, 25, 12);
+            return itsRecords[findSlot(msb, lsb)];
+        }
+        return itsOtherIds.get(uuid);
+    }
+
+    /**
+     * Get a record by a UUID written as 32 hex digits
+     *
+     * @param hex The string containing the digits
+     * @param offset The offset of the first digit
+     * @return The record; null if not found
+     */
+    public PwsRecord getHex(String hex, int offset)
+    {
+        if (!isHex(hex, offset, 32)) {
+            return null;
+        }
+        return itsRecords[findSlot(parseHex(hex, offset, 16),
+                                   parseHex(hex, offset + 16, 16))];
+    }
+
+    /**
+     * Get the cached string form of a record's UUID
+     *
+     * @return The string if the record is indexed by the UUID; null
+     * otherwise
+     */
+    public String getUuidStr(UUID uuid, PwsRecord rec)
+    {
+        int slot = findSlot(uuid.getMostSignificantBits(),
+                            uuid.getLeastSignificantBits());
+        return (itsRecords[slot] == rec) ? itsUuidStrs[slot] : null;
+    }
+
+    /**
+     * Find the slot for a UUID, either the slot holding it or the empty slot
+     * where it would be added
+     */
+    private int findSlot(long msb, long lsb)
+    {
+        int mask = itsRecords.length - 1;
+        int slot = hash(msb, lsb) & mask;
+        while ((itsRecords[slot] != null) &&
+               ((itsMsbs[slot] != msb) || (itsLsbs[slot] != lsb))) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Resize the table
+     */
+    private void rehash(int capacity)
+    {
+        long[] msbs = itsMsbs;
+        long[] lsbs = itsLsbs;
+        PwsRecord[] records = itsRecords;
+        String[] uuidStrs = itsUuidStrs;
+        allocate(capacity);
+        for (int i = 0; i < records.length; ++i) {
+            if (records[i] != null) {
+                int slot = findSlot(msbs[i], lsbs[i]);
+                itsMsbs[slot] = msbs[i];
+                itsLsbs[slot] = lsbs[i];
+                itsRecords[slot] = records[i];
+                itsUuidStrs[slot] = uuidStrs[i];
+            }
+        }
+    }
+
+    /**
+     * Allocate the table with a capacity which is a power of two
+     */
+    private void allocate(int capacity)
+    {
+        itsMsbs = new long[capacity];
+        itsLsbs = new long[capacity];
+        itsRecords = new PwsRecord[capacity];
+        itsUuidStrs = new String[capacity];
+    }
+
+    /**
+     * Hash a UUID, mixing in all of its bits as the random and time-based
+     * parts vary by UUID version
+     */
+    private static int hash(long msb, long lsb)
+    {
+        long h = msb ^ (lsb * 0x9e3779b97f4a7c15L);
+        h ^= (h >>> 32);
+        h *= 0xd6e8feb86659fd93L;
+        h ^= (h >>> 32);
+        return (int)h;
+    }
+
+    /**
+     * Parse up to 16 hex digits which have been checked with isHex
+     */
+    private static long parseHex(String str, int offset, int len)
+    {
+        long val = 0;
+        for (int i = offset; i < offset + len; ++i) {
+            val = (val << 4) | Character.digit(str.charAt(i), 16);
+        }
+        return val;
+    }
+
+    /**
+     * Check whether a range of a string is all hex digits
+     */
+    private static boolean isHex(String str, int offset, int len)
+    {
+        if (offset + len > str.length()) {
+            return false;
+        }
+        for (int i = offset; i < offset + len; ++i) {
+            if (Character.digit(str.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -16,9 +16,7 @@ import android.util.TypedValue;
 
 import com.jefftharris.passwdsafe.Preferences;
 import com.jefftharris.passwdsafe.R;
-import com.jefftharris.passwdsafe.file.PasswdExpiration;
 import com.jefftharris.passwdsafe.file.PasswdFileData;
-import com.jefftharris.passwdsafe.file.PasswdRecord;
 import com.jefftharris.passwdsafe.file.PasswdRecordFilter;
 import com.jefftharris.passwdsafe.lib.PasswdSafeUtil;
 import com.jefftharris.passwdsafe.pref.PasswdExpiryNotifPref;
@@ -29,6 +27,9 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
@@ -53,6 +54,36 @@ public final class PasswdFileDataView
     private GroupNode itsCurrGroupNode;
     private final ArrayList<String> itsCurrGroups = new ArrayList<>();
     private PasswdRecordFilter itsFilter;
+    /** The file data and its change count for the cached matches */
+    private PasswdFileData itsMatchFileData;
+    private int itsMatchChangeCount;
+    /** The filter and matched records from the last rebuild */
+    private PasswdRecordFilter itsMatchFilter;
+    private List<MatchPwsRecord> itsMatches;
+    /** The matched records for recent filters, most recently used last */
+    private final LinkedHashMap<PasswdRecordFilter, List<MatchPwsRecord>>
+            itsMatchCache =
+            new LinkedHashMap<PasswdRecordFilter, List<MatchPwsRecord>>(
+                    16, 0.75f, true)
+            {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<PasswdRecordFilter,
+                                  List<MatchPwsRecord>> eldest)
+                {
+                    return size() > MATCH_CACHE_SIZE;
+                }
+            };
+    /** The matched records in the tree and whether the tree is current for
+     * the matches and display options */
+    private final IdentityHashMap<PwsRecord, MatchPwsRecord> itsTreeRecords =
+            new IdentityHashMap<>();
+    private boolean itsIsTreeValid = false;
+    private Comparator<String> itsGroupComp;
+    private PasswdRecordListDataComparator itsItemComp;
+    /** The split group paths by group string */
+    private final HashMap<String, List<String>> itsGroupPaths =
+            new HashMap<>();
     private int itsNumExpired = 0;
     private boolean itsIsExpiryChanged = true;
     private PasswdRecordDisplayOptions itsRecordOptions =
@@ -67,6 +98,9 @@ public final class PasswdFileDataView
     private int itsFolderIcon;
     private int itsRecordIcon;
 
+    /** The maximum number of recent filters whose matches are cached */
+    private static final int MATCH_CACHE_SIZE = 8;
+
     private static final String TAG = "PasswdFileDataView";
 
     /**
@@ -84,6 +118,7 @@ public final class PasswdFileDataView
     {
         itsContext = ctx.getApplicationContext();
         itsRecordOptions = new PasswdRecordDisplayOptions(prefs);
+        itsIsTreeValid = false;
         itsIsSearchCaseSensitive =
                 Preferences.getSearchCaseSensitivePref(prefs);
         itsIsSearchRegex = Preferences.getSearchRegexPref(prefs);
@@ -121,6 +156,7 @@ public final class PasswdFileDataView
         case Preferences.PREF_RECORD_SORT_ORDER:
         case Preferences.PREF_RECORD_FIELD_SORT: {
             itsRecordOptions = new PasswdRecordDisplayOptions(prefs);
+            itsIsTreeValid = false;
             rebuild = true;
             break;
         }
@@ -189,46 +225,54 @@ public final class PasswdFileDataView
     }
 
     /**
-     * Get records
+     * Get a window of the sorted groups and records in the current group.
+     * The window is taken from the group's cached sorted keys, and list
+     * items are created only for the records in the window.
+     *
+     * @param incRecords Whether to include records
+     * @param incGroups Whether to include groups
+     * @param offset The position of the first item in the window
+     * @param limit The maximum number of items in the window
+     * @param selectedUuid The UUID of the selected record; null if none.  If
+     *                     the record is outside the window, the window is
+     *                     moved to the page of limit items containing it.
      */
-    public synchronized List<PasswdRecordListData> getRecords(
-            boolean incRecords,
-            boolean incGroups)
+    public synchronized PasswdRecordListPage getRecords(boolean incRecords,
+                                                        boolean incGroups,
+                                                        int offset,
+                                                        int limit,
+                                                        String selectedUuid)
     {
-        List<PasswdRecordListData> records = new ArrayList<>();
-        if ((itsCurrGroupNode == null) || (itsContext == null)) {
-            return records;
+        if ((itsCurrGroupNode == null) || (itsContext == null) ||
+            (!incRecords && !incGroups)) {
+            return new PasswdRecordListPage(
+                    Collections.<PasswdRecordListData>emptyList(), 0, 0, -1);
         }
 
-        if (incGroups) {
-            Map<String, GroupNode> entryGroups = itsCurrGroupNode.getGroups();
-            if (entryGroups != null) {
-                for (Map.Entry<String, GroupNode> entry:
-                        entryGroups.entrySet()) {
-                    int items = entry.getValue().getNumRecords();
-                    String str = itsContext.getResources().getQuantityString(
-                            R.plurals.group_items, items, items);
-
-                    records.add(new PasswdRecordListData(
-                            entry.getKey(), str, null, null, null,
-                            null, itsFolderIcon, false));
-                }
-            }
+        List<PasswdRecordSortKey> items = getSortedItems(itsCurrGroupNode);
+        if (!incGroups) {
+            items = itsCurrGroupNode.getSortedRecords();
+        } else if (!incRecords) {
+            items = itsCurrGroupNode.getSortedGroups();
         }
+        int numItems = items.size();
 
-        if (incRecords) {
-            List<MatchPwsRecord> entryRecs = itsCurrGroupNode.getRecords();
-            if (entryRecs != null) {
-                for (MatchPwsRecord rec: entryRecs) {
-                    records.add(createListData(rec));
-                }
+        int selectedPos = -1;
+        if ((selectedUuid != null) && incRecords) {
+            selectedPos = findRecordPosition(selectedUuid, items);
+            if ((selectedPos >= 0) &&
+                ((selectedPos < offset) || (selectedPos >= offset + limit))) {
+                offset = (selectedPos / limit) * limit;
             }
         }
 
-        PasswdRecordListDataComparator comp =
-                new PasswdRecordListDataComparator(itsRecordOptions);
-        Collections.sort(records, comp);
-        return records;
+        // Only the items in the window are created
+        List<PasswdRecordListData> window = new ArrayList<>(
+                Math.max(0, Math.min(limit, numItems - offset)));
+        for (int i = offset; i < Math.min(numItems, offset + limit); ++i) {
+            window.add(getItem(items.get(i)));
+        }
+        return new PasswdRecordListPage(window, offset, numItems, selectedPos);
     }
 
     /**
@@ -370,75 +414,373 @@ public final class PasswdFileDataView
      */
     private synchronized void rebuildView(PasswdFileData fileData)
     {
-        itsRootNode = new GroupNode();
         itsNumExpired = 0;
         if (fileData == null) {
+            clearMatches(null);
+            itsRootNode = new GroupNode();
+            itsTreeRecords.clear();
+            itsIsTreeValid = false;
             updateCurrentGroup();
             return;
         }
 
-        List<PwsRecord> records = fileData.getRecords();
-        if (itsRecordOptions.itsIsGroupRecords) {
-            Comparator<String> groupComp =
-                    itsRecordOptions.itsIsSortCaseSensitive ?
-                    new StringComparator() : String.CASE_INSENSITIVE_ORDER;
-            if (!itsRecordOptions.itsIsSortAscending) {
-                final Comparator<String> comp = groupComp;
-                groupComp = new Comparator<String>()
+        if (!updateTree(fileData)) {
+            buildTree(findMatches(fileData));
+        }
+        updateCurrentGroup();
+
+        PasswdRecordFilter.ExpiryFilter filter = itsExpiryNotifPref.getFilter();
+        if (filter != null) {
+            itsNumExpired = fileData.getNumPasswdExpiring(
+                    filter.getExpiryFromNow(null));
+        }
+    }
+
+    /**
+     * Build the group tree from the matched records.  Must be called while
+     * synchronized.
+     */
+    private void buildTree(List<MatchPwsRecord> matches)
+    {
+        itsGroupComp = itsRecordOptions.itsIsSortCaseSensitive ?
+                new StringComparator() : String.CASE_INSENSITIVE_ORDER;
+        if (!itsRecordOptions.itsIsSortAscending) {
+            final Comparator<String> comp = itsGroupComp;
+            itsGroupComp = new Comparator<String>()
+            {
+                @Override
+                public int compare(String s1, String s2)
                 {
-                    @Override
-                    public int compare(String s1, String s2)
-                    {
-                        return -comp.compare(s1, s2);
-                    }
-                };
+                    return -comp.compare(s1, s2);
+                }
+            };
+        }
+
+        itsItemComp = new PasswdRecordListDataComparator(itsRecordOptions);
+        itsRootNode = new GroupNode();
+        itsTreeRecords.clear();
+        for (MatchPwsRecord match: matches) {
+            itsTreeRecords.put(match.itsRecord, match);
+            addTreeRecord(match);
+        }
+        itsIsTreeValid = true;
+    }
+
+    /**
+     * Update the group tree for the records changed since it was built,
+     * patching only the groups of the changed records.  Must be called while
+     * synchronized.
+     *
+     * @return Whether the tree was updated; false if it must be rebuilt
+     */
+    private boolean updateTree(PasswdFileData fileData)
+    {
+        if (!itsIsTreeValid || (fileData != itsMatchFileData) ||
+            ((itsFilter != null) ? !itsFilter.equals(itsMatchFilter) :
+             (itsMatchFilter != null)) ||
+            ((itsFilter != null) && !itsFilter.matchesRecordOnly())) {
+            return false;
+        }
+        List<PwsRecord> changed =
+                fileData.getChangedRecords(itsMatchChangeCount);
+        if (changed == null) {
+            return false;
+        }
+        if (changed.isEmpty()) {
+            return true;
+        }
+
+        IdentityHashMap<PwsRecord, Boolean> updated = new IdentityHashMap<>();
+        for (PwsRecord rec: changed) {
+            if (updated.put(rec, Boolean.TRUE) != null) {
+                continue;
+            }
+            MatchPwsRecord prevMatch = itsTreeRecords.remove(rec);
+            if (prevMatch != null) {
+                removeTreeRecord(prevMatch);
             }
+            if (!fileData.hasRecord(rec)) {
+                continue;
+            }
+            String match = filterRecord(rec, fileData);
+            if (match != null) {
+                MatchPwsRecord newMatch = createMatch(rec, fileData, match);
+                itsTreeRecords.put(rec, newMatch);
+                addTreeRecord(newMatch);
+            }
+        }
 
-            for (PwsRecord rec: records) {
-                String match = filterRecord(rec, fileData);
-                if (match == null) {
-                    continue;
-                }
+        itsMatchChangeCount = fileData.getChangeCount();
+        itsMatches = new ArrayList<>(itsTreeRecords.values());
+        itsMatchCache.clear();
+        itsMatchCache.put(itsFilter, itsMatches);
+        return true;
+    }
 
-                String group = fileData.getGroup(rec);
-                if (group == null) {
-                    group = "";
-                }
-                ArrayList<String> groups = new ArrayList<>();
-                PasswdFileData.splitGroup(group, groups);
-                GroupNode node = itsRootNode;
-                for (String g : groups) {
-                    GroupNode groupNode = node.getGroup(g);
-                    if (groupNode == null) {
-                        groupNode = new GroupNode();
-                        node.putGroup(g, groupNode, groupComp);
-                    }
-                    node = groupNode;
-                }
-                node.addRecord(new MatchPwsRecord(rec, fileData, match));
-             }
-        } else {
-            for (PwsRecord rec: records) {
-                String match = filterRecord(rec, fileData);
-                if (match != null) {
-                    itsRootNode.addRecord(
-                            new MatchPwsRecord(rec, fileData, match));
+    /**
+     * Add a matched record to the group tree, updating the sorted items of
+     * the groups along its path.  Must be called while synchronized.
+     */
+    private void addTreeRecord(MatchPwsRecord match)
+    {
+        int numGroups = itsRecordOptions.itsIsGroupRecords ?
+                        match.itsGroupPath.size() : 0;
+        GroupNode[] nodes = new GroupNode[numGroups + 1];
+        nodes[0] = itsRootNode;
+        for (int i = 0; i < numGroups; ++i) {
+            String group = match.itsGroupPath.get(i);
+            nodes[i].updateNumRecords(1);
+            nodes[i + 1] = nodes[i].getGroup(group);
+            if (nodes[i + 1] == null) {
+                nodes[i + 1] = new GroupNode();
+                nodes[i].putGroup(group, nodes[i + 1], itsGroupComp);
+            }
+        }
+        nodes[numGroups].addRecord(match);
+
+        if (nodes[numGroups].getSortedItems() != null) {
+            insertSortedItem(nodes[numGroups], match);
+        }
+        for (int i = numGroups - 1; i >= 0; --i) {
+            updateGroupItem(nodes[i], match.itsGroupPath.get(i),
+                            nodes[i + 1]);
+        }
+    }
+
+    /**
+     * Remove a matched record from the group tree, removing any groups left
+     * empty and updating the sorted items of the groups along its path.
+     * Must be called while synchronized.
+     */
+    private void removeTreeRecord(MatchPwsRecord match)
+    {
+        int numGroups = itsRecordOptions.itsIsGroupRecords ?
+                        match.itsGroupPath.size() : 0;
+        GroupNode[] nodes = new GroupNode[numGroups + 1];
+        nodes[0] = itsRootNode;
+        for (int i = 0; i < numGroups; ++i) {
+            nodes[i + 1] = nodes[i].getGroup(match.itsGroupPath.get(i));
+            if (nodes[i + 1] == null) {
+                return;
+            }
+        }
+        if (!nodes[numGroups].removeRecord(match)) {
+            return;
+        }
+
+        if (nodes[numGroups].getSortedItems() != null) {
+            removeSortedItem(nodes[numGroups], match);
+        }
+        for (int i = numGroups - 1; i >= 0; --i) {
+            nodes[i].updateNumRecords(-1);
+            String group = match.itsGroupPath.get(i);
+            if (nodes[i + 1].getNumRecords() == 0) {
+                nodes[i].removeGroup(group);
+                if (nodes[i].getSortedItems() != null) {
+                    removeSortedItem(nodes[i], nodes[i + 1].getGroupItem());
                 }
+            } else {
+                updateGroupItem(nodes[i], group, nodes[i + 1]);
             }
         }
-        updateCurrentGroup();
+    }
 
-        PasswdRecordFilter.ExpiryFilter filter = itsExpiryNotifPref.getFilter();
-        if (filter != null) {
-            long expiration = filter.getExpiryFromNow(null);
-            for (PasswdRecord rec : fileData.getPasswdRecords()) {
-                PasswdExpiration expiry = rec.getPasswdExpiry();
-                if ((expiry != null) &&
-                    (expiry.itsExpiration.getTime() <= expiration)) {
-                    ++itsNumExpired;
+    /**
+     * Update the item for a child group in a node's sorted items after the
+     * number of records in the child changes.  Must be called while
+     * synchronized.
+     */
+    private void updateGroupItem(GroupNode node, String group,
+                                 GroupNode child)
+    {
+        if (node.getSortedItems() == null) {
+            return;
+        }
+        if (child.getGroupItem() != null) {
+            removeSortedItem(node, child.getGroupItem());
+        }
+        insertSortedItem(node, createGroupItem(group, child));
+    }
+
+    /**
+     * Insert an item into a node's sorted items.  Must be called while
+     * synchronized.
+     */
+    private void insertSortedItem(GroupNode node, PasswdRecordSortKey item)
+    {
+        insertSortedItem(node.getSortedItems(), item);
+        insertSortedItem(item.itsIsRecord ? node.getSortedRecords() :
+                         node.getSortedGroups(), item);
+    }
+
+    /**
+     * Insert an item into sorted items.  Must be called while synchronized.
+     */
+    private void insertSortedItem(List<PasswdRecordSortKey> items,
+                                  PasswdRecordSortKey item)
+    {
+        int pos = Collections.binarySearch(items, item, itsItemComp);
+        items.add((pos >= 0) ? pos : -(pos + 1), item);
+    }
+
+    /**
+     * Remove an item from a node's sorted items.  Must be called while
+     * synchronized.
+     */
+    private void removeSortedItem(GroupNode node, PasswdRecordSortKey item)
+    {
+        removeSortedItem(node.getSortedItems(), item);
+        removeSortedItem(item.itsIsRecord ? node.getSortedRecords() :
+                         node.getSortedGroups(), item);
+    }
+
+    /**
+     * Remove an item from sorted items.  Must be called while synchronized.
+     */
+    private void removeSortedItem(List<PasswdRecordSortKey> items,
+                                  PasswdRecordSortKey item)
+    {
+        int pos = findSortedItem(items, item);
+        if (pos >= 0) {
+            items.remove(pos);
+        }
+    }
+
+    /**
+     * Find the position of an item in sorted items.  Must be called while
+     * synchronized.
+     *
+     * @return The position; -1 if not found
+     */
+    private int findSortedItem(List<PasswdRecordSortKey> items,
+                               PasswdRecordSortKey item)
+    {
+        int pos = Collections.binarySearch(items, item, itsItemComp);
+        if (pos < 0) {
+            return -1;
+        }
+        // Find the item among those which sort equally
+        for (int i = pos; (i >= 0) &&
+                          (itsItemComp.compare(items.get(i), item) == 0); --i) {
+            if (items.get(i) == item) {
+                return i;
+            }
+        }
+        for (int i = pos + 1; (i < items.size()) &&
+                              (itsItemComp.compare(items.get(i), item) == 0);
+             ++i) {
+            if (items.get(i) == item) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find the position of a record of the current group in its sorted
+     * items.  Must be called while synchronized.
+     *
+     * @param items The sorted items of the current group, with or without
+     *              its groups
+     * @return The position; -1 if the record is not in the current group
+     */
+    private int findRecordPosition(String uuid,
+                                   List<PasswdRecordSortKey> items)
+    {
+        List<MatchPwsRecord> recs = itsCurrGroupNode.getRecords();
+        if (recs == null) {
+            return -1;
+        }
+        for (MatchPwsRecord rec: recs) {
+            if (uuid.equals(rec.itsUuid)) {
+                return findSortedItem(items, rec);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Create a matched record.  Must be called while synchronized.
+     */
+    private MatchPwsRecord createMatch(PwsRecord rec,
+                                       PasswdFileData fileData,
+                                       String match)
+    {
+        String group = fileData.getGroup(rec);
+        if (group == null) {
+            group = "";
+        }
+        List<String> groupPath = itsGroupPaths.get(group);
+        if (groupPath == null) {
+            ArrayList<String> groups = new ArrayList<>();
+            PasswdFileData.splitGroup(group, groups);
+            groupPath = Collections.unmodifiableList(groups);
+            itsGroupPaths.put(group, groupPath);
+        }
+        return new MatchPwsRecord(rec, fileData, match, groupPath);
+    }
+
+    /**
+     * Find the records matching the filter.  The matches for a recent filter
+     * are reused, and when the filter refines the previous filter, such as
+     * when more of a search is typed, only the previous matches are
+     * filtered.  The cached matches are dropped when the records change.
+     * Must be called while synchronized.
+     */
+    private List<MatchPwsRecord> findMatches(PasswdFileData fileData)
+    {
+        if ((fileData != itsMatchFileData) ||
+            (fileData.getChangeCount() != itsMatchChangeCount)) {
+            clearMatches(fileData);
+        }
+
+        List<MatchPwsRecord> matches = itsMatchCache.get(itsFilter);
+        if (matches == null) {
+            if ((itsMatches != null) && (itsMatchFilter != null) &&
+                itsMatchFilter.isRefinedBy(itsFilter)) {
+                matches = new ArrayList<>();
+                for (MatchPwsRecord prevMatch: itsMatches) {
+                    String match = filterRecord(prevMatch.itsRecord, fileData);
+                    if (match == null) {
+                        continue;
+                    }
+                    if (!match.equals(prevMatch.itsMatch)) {
+                        prevMatch = new MatchPwsRecord(prevMatch, match);
+                    }
+                    matches.add(prevMatch);
+                }
+            } else {
+                List<PwsRecord> records = (itsFilter != null) ?
+                        itsFilter.getCandidateRecords(fileData) :
+                        fileData.getRecords();
+                matches = new ArrayList<>();
+                for (PwsRecord rec: records) {
+                    String match = filterRecord(rec, fileData);
+                    if (match != null) {
+                        matches.add(createMatch(rec, fileData, match));
+                    }
                 }
             }
+            itsMatchCache.put(itsFilter, matches);
         }
+        itsMatchFilter = itsFilter;
+        itsMatches = matches;
+        return matches;
+    }
+
+    /**
+     * Clear the cached matches for a change in the file data.  Must be called
+     * while synchronized.
+     */
+    private void clearMatches(PasswdFileData fileData)
+    {
+        itsMatchFileData = fileData;
+        itsMatchChangeCount =
+                (fileData != null) ? fileData.getChangeCount() : 0;
+        itsMatchFilter = null;
+        itsMatches = null;
+        itsMatchCache.clear();
+        itsGroupPaths.clear();
     }
 
     /** Update the current group */
@@ -498,20 +840,70 @@ public final class PasswdFileDataView
     }
 
     /**
-     * Create a record item for a password record
+     * Get the sorted groups and records of a group.  The keys are sorted
+     * when the group is first shown and then kept sorted as records are
+     * added and removed.  The matched records are their own sort keys, so
+     * list items are only created for the records shown.  Must be called
+     * while synchronized.
      */
-    private PasswdRecordListData createListData(MatchPwsRecord rec)
+    private List<PasswdRecordSortKey> getSortedItems(GroupNode node)
     {
-        String title = rec.itsTitle;
-        if (title == null) {
-            title = "Untitled";
+        List<PasswdRecordSortKey> items = node.getSortedItems();
+        if (items != null) {
+            return items;
         }
-        String user = rec.itsUsername;
-        if (!TextUtils.isEmpty(user)) {
-            user = "[" + user + "]";
+
+        items = new ArrayList<>();
+        Map<String, GroupNode> entryGroups = node.getGroups();
+        if (entryGroups != null) {
+            for (Map.Entry<String, GroupNode> entry: entryGroups.entrySet()) {
+                items.add(createGroupItem(entry.getKey(), entry.getValue()));
+            }
+        }
+
+        List<MatchPwsRecord> entryRecs = node.getRecords();
+        if (entryRecs != null) {
+            items.addAll(entryRecs);
+        }
+
+        Collections.sort(items, itsItemComp);
+        node.setSortedItems(items);
+        return items;
+    }
+
+    /**
+     * Create the item for a group, which is kept with the group's node.
+     * Must be called while synchronized.
+     */
+    private PasswdRecordListData createGroupItem(String group, GroupNode node)
+    {
+        int numItems = node.getNumRecords();
+        String str = itsContext.getResources().getQuantityString(
+                R.plurals.group_items, numItems, numItems);
+        PasswdRecordListData item = new PasswdRecordListData(
+                group, str, null, null, null, null, itsFolderIcon, false);
+        node.setGroupItem(item);
+        return item;
+    }
+
+    /**
+     * Get the list item for a sorted group or record.  The items for records
+     * are created as they are shown.  Must be called while synchronized.
+     */
+    private PasswdRecordListData getItem(PasswdRecordSortKey item)
+    {
+        if (item instanceof MatchPwsRecord) {
+            return createListData((MatchPwsRecord)item);
         }
+        return (PasswdRecordListData)item;
+    }
 
-        return new PasswdRecordListData(title, user, rec.itsUuid,
+    /**
+     * Create a record item for a password record
+     */
+    private PasswdRecordListData createListData(MatchPwsRecord rec)
+    {
+        return new PasswdRecordListData(rec.itsTitle, rec.itsUser, rec.itsUuid,
                                         rec.itsCreationTime, rec.itsModTime,
                                         rec.itsMatch, itsRecordIcon, true);
     }
@@ -524,6 +916,11 @@ public final class PasswdFileDataView
     {
         private List<MatchPwsRecord> itsRecords = null;
         private TreeMap<String, GroupNode> itsGroups = null;
+        private int itsNumRecords = 0;
+        private List<PasswdRecordSortKey> itsSortedItems = null;
+        private List<PasswdRecordSortKey> itsSortedRecords = null;
+        private List<PasswdRecordSortKey> itsSortedGroups = null;
+        private PasswdRecordListData itsGroupItem = null;
 
         /** Constructor */
         public GroupNode()
@@ -537,6 +934,32 @@ public final class PasswdFileDataView
                 itsRecords = new ArrayList<>();
             }
             itsRecords.add(rec);
+            ++itsNumRecords;
+        }
+
+        /** Remove a record */
+        public final boolean removeRecord(MatchPwsRecord rec)
+        {
+            if (itsRecords != null) {
+                for (int i = itsRecords.size() - 1; i >= 0; --i) {
+                    if (itsRecords.get(i) == rec) {
+                        itsRecords.remove(i);
+                        if (itsRecords.isEmpty()) {
+                            itsRecords = null;
+                        }
+                        --itsNumRecords;
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /** Update the number of records for those added or removed from the
+         * child groups */
+        public final void updateNumRecords(int delta)
+        {
+            itsNumRecords += delta;
         }
 
         /** Get the records */
@@ -555,6 +978,17 @@ public final class PasswdFileDataView
             itsGroups.put(name, node);
         }
 
+        /** Remove a child group */
+        public final void removeGroup(String name)
+        {
+            if (itsGroups != null) {
+                itsGroups.remove(name);
+                if (itsGroups.isEmpty()) {
+                    itsGroups = null;
+                }
+            }
+        }
+
         /** Get a group */
         public final GroupNode getGroup(String name)
         {
@@ -571,43 +1005,119 @@ public final class PasswdFileDataView
             return itsGroups;
         }
 
-        /** Get the number of records */
-        public final int getNumRecords()
+        /** Get the sorted keys of the groups and records; null if they
+         * have not been sorted */
+        public final List<PasswdRecordSortKey> getSortedItems()
         {
-            int num = 0;
-            if (itsRecords != null) {
-                num += itsRecords.size();
-            }
-            if (itsGroups != null) {
-                for (GroupNode child: itsGroups.values()) {
-                    num += child.getNumRecords();
+            return itsSortedItems;
+        }
+
+        /** Get the sorted keys of the records alone; null if they have not
+         * been sorted */
+        public final List<PasswdRecordSortKey> getSortedRecords()
+        {
+            return itsSortedRecords;
+        }
+
+        /** Get the sorted keys of the groups alone; null if they have not
+         * been sorted */
+        public final List<PasswdRecordSortKey> getSortedGroups()
+        {
+            return itsSortedGroups;
+        }
+
+        /** Set the sorted keys of the groups and records.  The keys of the
+         * records and groups alone are split from them in the same order. */
+        public final void setSortedItems(List<PasswdRecordSortKey> items)
+        {
+            itsSortedItems = items;
+            itsSortedRecords = new ArrayList<>();
+            itsSortedGroups = new ArrayList<>();
+            for (PasswdRecordSortKey item: items) {
+                if (item.itsIsRecord) {
+                    itsSortedRecords.add(item);
+                } else {
+                    itsSortedGroups.add(item);
                 }
             }
-            return num;
+        }
+
+        /** Get the item for the group in its parent's sorted items */
+        public final PasswdRecordListData getGroupItem()
+        {
+            return itsGroupItem;
+        }
+
+        /** Set the item for the group in its parent's sorted items */
+        public final void setGroupItem(PasswdRecordListData item)
+        {
+            itsGroupItem = item;
+        }
+
+        /** Get the number of records, including those in child groups */
+        public final int getNumRecords()
+        {
+            return itsNumRecords;
         }
     }
 
 
     /**
-     * A matched PwsRecord
+     * A matched PwsRecord, which is its own key in the sorted items of its
+     * group
      */
-    private static final class MatchPwsRecord
+    private static final class MatchPwsRecord extends PasswdRecordSortKey
     {
-        public final String itsTitle;
-        public final String itsUsername;
+        public final PwsRecord itsRecord;
+        public final List<String> itsGroupPath;
         public final String itsUuid;
-        public final Date itsCreationTime;
-        public final Date itsModTime;
         public final String itsMatch;
 
         public MatchPwsRecord(PwsRecord rec,
                               PasswdFileData fileData,
-                              String match)
+                              String match,
+                              List<String> groupPath)
         {
-            itsTitle = fileData.getTitle(rec);
-            itsUsername = fileData.getUsername(rec);
+            super(getTitle(rec, fileData), getUser(rec, fileData),
+                  fileData.getCreationTime(rec), getModTime(rec, fileData),
+                  true);
+            itsRecord = rec;
+            itsGroupPath = groupPath;
             itsUuid = fileData.getUUID(rec);
-            itsCreationTime = fileData.getCreationTime(rec);
+            itsMatch = match;
+        }
+
+        /** Constructor for a record matched again with a different match */
+        public MatchPwsRecord(MatchPwsRecord rec, String match)
+        {
+            super(rec.itsTitle, rec.itsUser, rec.itsCreationTime,
+                  rec.itsModTime, true);
+            itsRecord = rec.itsRecord;
+            itsGroupPath = rec.itsGroupPath;
+            itsUuid = rec.itsUuid;
+            itsMatch = match;
+        }
+
+        /** Get the title of a record as shown in the list */
+        private static String getTitle(PwsRecord rec, PasswdFileData fileData)
+        {
+            String title = fileData.getTitle(rec);
+            return (title != null) ? title : "Untitled";
+        }
+
+        /** Get the user of a record as shown in the list */
+        private static String getUser(PwsRecord rec, PasswdFileData fileData)
+        {
+            String user = fileData.getUsername(rec);
+            if (!TextUtils.isEmpty(user)) {
+                user = "[" + user + "]";
+            }
+            return user;
+        }
+
+        /** Get the later of the modification times of a record */
+        private static Date getModTime(PwsRecord rec, PasswdFileData fileData)
+        {
             Date modTime = fileData.getLastModTime(rec);
             Date passwdModTime = fileData.getPasswdLastModTime(rec);
             if ((modTime != null) && (passwdModTime != null)) {
@@ -617,8 +1127,7 @@ public final class PasswdFileDataView
             } else if (modTime == null) {
                 modTime = passwdModTime;
             }
-            itsModTime = modTime;
-            itsMatch = match;
+            return modTime;
         }
     }
 
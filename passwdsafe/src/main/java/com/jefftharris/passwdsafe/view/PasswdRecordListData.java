@@ -12,36 +12,22 @@ import java.util.Date;
 /**
  * Holder class for password record data in a list view
  */
-public class PasswdRecordListData
+public class PasswdRecordListData extends PasswdRecordSortKey
 {
-    public final String itsTitle;
-
-    public final String itsUser;
-
     public final String itsUuid;
 
-    public final Date itsCreationTime;
-
-    public final Date itsModTime;
-
     public final String itsMatch;
 
     public final int itsIcon;
 
-    public final boolean itsIsRecord;
-
     /** Constructor */
     public PasswdRecordListData(String title, String user, String uuid,
                                 Date creationTime, Date modTime,
                                 String match, int icon, boolean isRecord)
     {
-        itsTitle = title;
-        itsUser = user;
+        super(title, user, creationTime, modTime, isRecord);
         itsUuid = uuid;
-        itsCreationTime = creationTime;
-        itsModTime = modTime;
         itsMatch = match;
         itsIcon = icon;
-        itsIsRecord = isRecord;
     }
 }
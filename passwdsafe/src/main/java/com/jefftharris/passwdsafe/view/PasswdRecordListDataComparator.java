@@ -14,7 +14,7 @@ import java.util.Date;
  * Comparator for records
  */
 public final class PasswdRecordListDataComparator
-        implements Comparator<PasswdRecordListData>
+        implements Comparator<PasswdRecordSortKey>
 {
     private final PasswdRecordDisplayOptions itsOptions;
 
@@ -27,7 +27,7 @@ public final class PasswdRecordListDataComparator
     }
 
     @Override
-    public int compare(PasswdRecordListData arg0, PasswdRecordListData arg1)
+    public int compare(PasswdRecordSortKey arg0, PasswdRecordSortKey arg1)
     {
         int rc;
         // Compare group order
@@ -61,8 +61,8 @@ public final class PasswdRecordListDataComparator
     /**
      * Compare record field
      */
-    private int compareRecordField(PasswdRecordListData arg0,
-                                   PasswdRecordListData arg1)
+    private int compareRecordField(PasswdRecordSortKey arg0,
+                                   PasswdRecordSortKey arg1)
     {
         int rc;
         switch (itsOptions.itsFieldSortOrder) {
@@ -89,15 +89,23 @@ public final class PasswdRecordListDataComparator
         }
         }
 
-        rc = compareField(arg0.itsTitle, arg1.itsTitle);
-        if (rc != 0) {
-            return rc;
+        if (itsOptions.itsIsSortCaseSensitive) {
+            rc = compareField(arg0.itsTitle, arg1.itsTitle);
+            if (rc != 0) {
+                return rc;
+            }
+            return compareField(arg0.itsUser, arg1.itsUser);
+        } else {
+            rc = compareField(arg0.getTitleSortKey(), arg1.getTitleSortKey());
+            if (rc != 0) {
+                return rc;
+            }
+            return compareField(arg0.getUserSortKey(), arg1.getUserSortKey());
         }
-        return compareField(arg0.itsUser, arg1.itsUser);
     }
 
     /**
-     * Compare two string fields
+     * Compare two string fields or their case-folded sort keys
      */
     private int compareField(String arg0, String arg1)
     {
@@ -108,11 +116,7 @@ public final class PasswdRecordListDataComparator
         } else if (arg1 == null) {
             return 1;
         } else {
-            if (itsOptions.itsIsSortCaseSensitive) {
-                return arg0.compareTo(arg1);
-            } else {
-                return arg0.compareToIgnoreCase(arg1);
-            }
+            return arg0.compareTo(arg1);
         }
     }
 
@@ -135,8 +139,8 @@ public final class PasswdRecordListDataComparator
     /**
      * Compare whether the item is a group or not
      */
-    private int compareIsGroup(PasswdRecordListData arg0,
-                               PasswdRecordListData arg1)
+    private int compareIsGroup(PasswdRecordSortKey arg0,
+                               PasswdRecordSortKey arg1)
     {
         if (!arg0.itsIsRecord && arg1.itsIsRecord) {
             return -1;
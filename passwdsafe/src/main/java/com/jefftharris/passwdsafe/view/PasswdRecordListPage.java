@@ -0,0 +1,38 @@
+/*
+ * Copyright (©) 2017 Jeff Harris <jefftharris@gmail.com>
+ * All rights reserved. Use of the code is allowed under the
+ * Artistic License 2.0 terms, as specified in the LICENSE file
+ * distributed with this code, or available from
+ * http://www.opensource.org/licenses/artistic-license-2.0.php
+ */
+package com.jefftharris.passwdsafe.view;
+
+import java.util.List;
+
+/**
+ * A window of the sorted items in a list of groups and records
+ */
+public final class PasswdRecordListPage
+{
+    /** The items in the window */
+    public final List<PasswdRecordListData> itsItems;
+
+    /** The position of the first item in the window */
+    public final int itsOffset;
+
+    /** The number of items in the whole list */
+    public final int itsNumItems;
+
+    /** The position of the selected record in the whole list; -1 if none */
+    public final int itsSelectedPos;
+
+    /** Constructor */
+    public PasswdRecordListPage(List<PasswdRecordListData> items,
+                                int offset, int numItems, int selectedPos)
+    {
+        itsItems = items;
+        itsOffset = offset;
+        itsNumItems = numItems;
+        itsSelectedPos = selectedPos;
+    }
+}
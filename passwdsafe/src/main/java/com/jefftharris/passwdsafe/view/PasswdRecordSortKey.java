@@ -0,0 +1,81 @@
+/*
+ * Copyright (©) 2017 Jeff Harris <jefftharris@gmail.com>
+ * All rights reserved. Use of the code is allowed under the
+ * Artistic License 2.0 terms, as specified in the LICENSE file
+ * distributed with this code, or available from
+ * http://www.opensource.org/licenses/artistic-license-2.0.php
+ */
+package com.jefftharris.passwdsafe.view;
+
+import java.util.Date;
+
+/**
+ * The fields by which groups and records are sorted in a list view
+ */
+public abstract class PasswdRecordSortKey
+{
+    public final String itsTitle;
+
+    public final String itsUser;
+
+    public final Date itsCreationTime;
+
+    public final Date itsModTime;
+
+    public final boolean itsIsRecord;
+
+    /** The title and user with their case folded for a case-insensitive
+     * sort, computed when first needed */
+    private String itsTitleSortKey;
+    private String itsUserSortKey;
+
+    /** Constructor */
+    PasswdRecordSortKey(String title, String user,
+                        Date creationTime, Date modTime,
+                        boolean isRecord)
+    {
+        itsTitle = title;
+        itsUser = user;
+        itsCreationTime = creationTime;
+        itsModTime = modTime;
+        itsIsRecord = isRecord;
+    }
+
+    /** Get the title folded for a case-insensitive sort */
+    final String getTitleSortKey()
+    {
+        if ((itsTitleSortKey == null) && (itsTitle != null)) {
+            itsTitleSortKey = foldCase(itsTitle);
+        }
+        return itsTitleSortKey;
+    }
+
+    /** Get the user folded for a case-insensitive sort */
+    final String getUserSortKey()
+    {
+        if ((itsUserSortKey == null) && (itsUser != null)) {
+            itsUserSortKey = foldCase(itsUser);
+        }
+        return itsUserSortKey;
+    }
+
+    /**
+     * Fold the case of a string so comparing folded strings orders them as
+     * String.compareToIgnoreCase orders the originals
+     */
+    private static String foldCase(String str)
+    {
+        char[] chars = null;
+        for (int i = 0; i < str.length(); ++i) {
+            char c = str.charAt(i);
+            char folded = Character.toLowerCase(Character.toUpperCase(c));
+            if (folded != c) {
+                if (chars == null) {
+                    chars = str.toCharArray();
+                }
+                chars[i] = folded;
+            }
+        }
+        return (chars != null) ? new String(chars) : str;
+    }
+}
@@ -178,6 +178,26 @@ public class UUID implements Comparable<Object>, Serializable
         return Util.cloneByteArray(TheUUID);
     }
 
+    /**
+     * Returns the first 8 bytes of the UUID as a big-endian long.
+     *
+     * @return The most significant 64 bits of the UUID.
+     */
+    public long getMostSignificantBits()
+    {
+        return getLong(0);
+    }
+
+    /**
+     * Returns the last 8 bytes of the UUID as a big-endian long.
+     *
+     * @return The least significant 64 bits of the UUID.
+     */
+    public long getLeastSignificantBits()
+    {
+        return getLong(8);
+    }
+
     /**
      * Converts this UUID into human-readable form.  The string has the
      * format:
@@ -192,6 +212,21 @@ public class UUID implements Comparable<Object>, Serializable
         return toString(TheUUID);
     }
 
+    /**
+     * Gets 8 bytes of the UUID as a big-endian long.
+     *
+     * @param offset the offset of the first byte.
+     * @return The long value.
+     */
+    private long getLong(int offset)
+    {
+        long val = 0;
+        for (int ii = offset; ii < offset + 8; ++ii) {
+            val = (val << 8) | (TheUUID[ii] & 0xff);
+        }
+        return val;
+    }
+
     /**
      * Converts <code>uuid</code> into human-readable form.  The string
      * has the format:
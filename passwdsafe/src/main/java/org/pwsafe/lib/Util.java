@@ -9,6 +9,7 @@
  */
 package org.pwsafe.lib;
 
+import java.io.InterruptedIOException;
 import java.security.SecureRandom;
 import java.util.Arrays;
 
@@ -28,6 +29,12 @@ public final class Util
 
     private static final SecureRandom randGen = new SecureRandom();
 
+    /**
+     * The number of iterations of the passphrase stretch between checks for
+     * an interrupt
+     */
+    private static final int STRETCH_STEP_ITER = 16384;
+
     /**
      * Private to prevent instantiation.
      */
@@ -365,6 +372,52 @@ public final class Util
         }
     }
 
+    /**
+     * Calculate the stretched key as in
+     * {@link #stretchPassphrase(byte[], byte[], int)}, stopping if the thread
+     * is interrupted.  The digest is iterated in steps with the interrupt
+     * checked between them, so a native digest can also be stopped.
+     *
+     * @throws InterruptedIOException if the thread is interrupted
+     */
+    public static byte[] stretchPassphraseInterruptibly(byte[] passphrase,
+                                                        byte[] salt,
+                                                        int iter)
+            throws InterruptedIOException
+    {
+        byte[] p = mergeBytes(passphrase, salt);
+        byte[] stretch = null;
+        try {
+            // Digesting the stretch n more times is the same as digestN of
+            // the stretch with n - 1 iterations
+            int done = 0;
+            do {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException(
+                            "Passphrase stretch interrupted");
+                }
+                int stepIter = Math.min(iter - done, STRETCH_STEP_ITER);
+                byte[] next;
+                if (stretch == null) {
+                    next = SHA256Pws.digestN(p, stepIter);
+                } else {
+                    next = SHA256Pws.digestN(stretch, stepIter - 1);
+                    clearArray(stretch);
+                }
+                stretch = next;
+                done += stepIter;
+            } while (done < iter);
+            byte[] result = stretch;
+            stretch = null;
+            return result;
+        } finally {
+            clearArray(p);
+            if (stretch != null) {
+                clearArray(stretch);
+            }
+        }
+    }
+
     /**
      * Clear the contents of a byte array
      */
@@ -7,11 +7,8 @@
  */
 package org.pwsafe.lib.crypto;
 
-import org.bouncycastle.crypto.BlockCipher;
 import org.bouncycastle.crypto.engines.BlowfishEngine;
-import org.bouncycastle.crypto.modes.CBCBlockCipher;
 import org.bouncycastle.crypto.params.KeyParameter;
-import org.bouncycastle.crypto.params.ParametersWithIV;
 import org.pwsafe.lib.Util;
 import org.pwsafe.lib.exception.PasswordSafeException;
 
@@ -20,12 +17,29 @@ import org.pwsafe.lib.exception.PasswordSafeException;
  * A reimplementation of the BlowfishPws class to use the Bouncy Castle
  * implementation of Blowfish.
  *
+ * <p>Password Safe stores the Blowfish blocks as little-endian words while
+ * the Bouncy Castle engine uses big-endian words.  The words of each block
+ * are reversed as the block is copied to and from a per-instance block
+ * buffer, and the CBC chaining is done here, so multiple blocks are
+ * processed directly into the caller's buffer without temporary arrays.
+ *
  * @author Michael Tiller
  */
 public class BlowfishPws
 {
-    private final BlockCipher decipher;
-    private final BlockCipher encipher;
+    /** The Blowfish block size */
+    protected static final int BLOCK_SIZE = 8;
+
+    protected final BlowfishEngine decipher;
+    protected final BlowfishEngine encipher;
+
+    /** The CBC chaining blocks, as big-endian words; null in ECB mode */
+    private byte[] decryptChain;
+    private final byte[] encryptChain;
+
+    /** Buffers for a block being processed, as big-endian words */
+    private byte[] inBlock = new byte[BLOCK_SIZE];
+    private final byte[] outBlock = new byte[BLOCK_SIZE];
 
     /**
      * Constructor, sets the initial vector to the value given.
@@ -48,27 +62,17 @@ public class BlowfishPws
      */
     BlowfishPws(byte[] bfkey, byte[] ivBytes, boolean cbc)
     {
-        byte[] riv = Util.cloneByteArray(ivBytes);
-        Util.bytesToLittleEndian(riv);
-        KeyParameter dkp;
-        KeyParameter ekp;
+        decipher = new BlowfishEngine();
+        encipher = new BlowfishEngine();
+        decipher.init(false, new KeyParameter(bfkey));
+        encipher.init(true, new KeyParameter(bfkey));
         if (cbc) {
-            decipher = new CBCBlockCipher(new BlowfishEngine());
-            encipher = new CBCBlockCipher(new BlowfishEngine());
-            dkp = new KeyParameter(bfkey);
-            ParametersWithIV div = new ParametersWithIV(dkp, riv);
-            ekp = new KeyParameter(bfkey);
-            ParametersWithIV eiv = new ParametersWithIV(ekp, riv);
-            decipher.init(false, div);
-            encipher.init(true, eiv);
+            decryptChain = Util.cloneByteArray(ivBytes);
+            Util.bytesToLittleEndian(decryptChain);
+            encryptChain = Util.cloneByteArray(decryptChain);
         } else {
-                        /* ECB mode */
-            decipher = new BlowfishEngine();
-            encipher = new BlowfishEngine();
-            dkp = new KeyParameter(bfkey);
-            ekp = new KeyParameter(bfkey);
-            decipher.init(false, dkp);
-            encipher.init(true, ekp);
+            decryptChain = null;
+            encryptChain = null;
         }
     }
 
@@ -80,21 +84,28 @@ public class BlowfishPws
      */
     public void decrypt(byte[] buffer) throws PasswordSafeException
     {
-        int bs = decipher.getBlockSize();
-        byte[] temp = new byte[buffer.length];
-        Util.bytesToLittleEndian(buffer);
+        decrypt(buffer, 0, buffer.length, buffer, 0);
+    }
 
-        if ((buffer.length % bs) != 0) {
-            throw new PasswordSafeException(
-                    "Block size must be a multiple of cipher block size (" +
-                    bs + ")");
-        }
-        for (int i = 0; i < buffer.length; i += bs) {
-            decipher.processBlock(buffer, i, temp, i);
+    /**
+     * Decrypts multiple blocks.  The input and output may be the same array
+     * at the same offset.
+     *
+     * @param in     the input data
+     * @param off    the offset of the data in the input
+     * @param len    the length of the data; must be a multiple of the block
+     *               size
+     * @param out    the output buffer
+     * @param outOff the offset for the data in the output
+     * @throws PasswordSafeException
+     */
+    public void decrypt(byte[] in, int off, int len, byte[] out, int outOff)
+            throws PasswordSafeException
+    {
+        checkLength(len);
+        for (int pos = 0; pos < len; pos += BLOCK_SIZE) {
+            decryptBlock(in, off + pos, out, outOff + pos);
         }
-
-        Util.copyBytes(temp, buffer);
-        Util.bytesToLittleEndian(buffer);
     }
 
     /**
@@ -105,21 +116,88 @@ public class BlowfishPws
      */
     public void encrypt(byte[] buffer) throws PasswordSafeException
     {
-        int bs = encipher.getBlockSize();
-        byte[] temp = new byte[buffer.length];
-        Util.bytesToLittleEndian(buffer);
+        encrypt(buffer, 0, buffer.length, buffer, 0);
+    }
 
-        if ((buffer.length % bs) != 0) {
-            throw new PasswordSafeException(
-                    "Block size must be a multiple of cipher block size (" +
-                    bs + ")");
+    /**
+     * Encrypts multiple blocks.  The input and output may be the same array
+     * at the same offset.
+     *
+     * @param in     the input data
+     * @param off    the offset of the data in the input
+     * @param len    the length of the data; must be a multiple of the block
+     *               size
+     * @param out    the output buffer
+     * @param outOff the offset for the data in the output
+     * @throws PasswordSafeException
+     */
+    public void encrypt(byte[] in, int off, int len, byte[] out, int outOff)
+            throws PasswordSafeException
+    {
+        checkLength(len);
+        for (int pos = 0; pos < len; pos += BLOCK_SIZE) {
+            encryptBlock(in, off + pos, out, outOff + pos);
         }
-        for (int i = 0; i < buffer.length; i += bs) {
-            encipher.processBlock(buffer, i, temp, i);
+    }
+
+    /**
+     * Decrypts a block of little-endian words
+     */
+    protected void decryptBlock(byte[] in, int inOff, byte[] out, int outOff)
+    {
+        for (int i = 0; i < BLOCK_SIZE; ++i) {
+            inBlock[i] = in[inOff + (i ^ 3)];
         }
+        decipher.processBlock(inBlock, 0, outBlock, 0);
+        if (decryptChain != null) {
+            for (int i = 0; i < BLOCK_SIZE; ++i) {
+                out[outOff + (i ^ 3)] = (byte)(outBlock[i] ^ decryptChain[i]);
+            }
+            // The ciphertext block chains to the next block
+            byte[] chain = decryptChain;
+            decryptChain = inBlock;
+            inBlock = chain;
+        } else {
+            for (int i = 0; i < BLOCK_SIZE; ++i) {
+                out[outOff + (i ^ 3)] = outBlock[i];
+            }
+        }
+    }
 
-        Util.bytesToLittleEndian(temp);
-        Util.copyBytes(temp, buffer);
+    /**
+     * Encrypts a block of little-endian words
+     */
+    protected void encryptBlock(byte[] in, int inOff, byte[] out, int outOff)
+    {
+        if (encryptChain != null) {
+            for (int i = 0; i < BLOCK_SIZE; ++i) {
+                inBlock[i] = (byte)(in[inOff + (i ^ 3)] ^ encryptChain[i]);
+            }
+            encipher.processBlock(inBlock, 0, encryptChain, 0);
+            for (int i = 0; i < BLOCK_SIZE; ++i) {
+                out[outOff + (i ^ 3)] = encryptChain[i];
+            }
+        } else {
+            for (int i = 0; i < BLOCK_SIZE; ++i) {
+                inBlock[i] = in[inOff + (i ^ 3)];
+            }
+            encipher.processBlock(inBlock, 0, outBlock, 0);
+            for (int i = 0; i < BLOCK_SIZE; ++i) {
+                out[outOff + (i ^ 3)] = outBlock[i];
+            }
+        }
+    }
+
+    /**
+     * Checks that a length is a multiple of the block size
+     */
+    private static void checkLength(int len) throws PasswordSafeException
+    {
+        if ((len % BLOCK_SIZE) != 0) {
+            throw new PasswordSafeException(
+                    "Block size must be a multiple of cipher block size (" +
+                    BLOCK_SIZE + ")");
+        }
     }
 
     protected static byte[] zeroIV()
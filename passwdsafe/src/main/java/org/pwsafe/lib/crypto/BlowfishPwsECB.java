@@ -9,9 +9,15 @@
  */
 package org.pwsafe.lib.crypto;
 
-import org.pwsafe.lib.Util;
-import org.pwsafe.lib.exception.PasswordSafeException;
-
+/**
+ * Blowfish in ECB mode.  The blocks are processed as big-endian words,
+ * cancelling out the endian conversion of CBC mode.  This is simply to make
+ * this compatible with use in previous versions of PasswordSafe (in ECB
+ * mode).  Why the inversion is necessary for CBC mode and why it has to
+ * "cancelled out" in this (ECB mode), I don't know but it is the only way to
+ * get the correct ordering for the CBC and ECB contexts within a standard
+ * password safe file.
+ */
 public class BlowfishPwsECB extends BlowfishPws
 {
     /**
@@ -25,42 +31,20 @@ public class BlowfishPwsECB extends BlowfishPws
     }
 
     /**
-     * Decrypts <code>buffer</code> in place.
-     *
-     * @param buffer the buffer to be decrypted.
-     * @throws PasswordSafeException
+     * Decrypts a block of big-endian words
      */
-    public void decrypt(byte[] buffer) throws PasswordSafeException
+    @Override
+    protected void decryptBlock(byte[] in, int inOff, byte[] out, int outOff)
     {
-        /* The endian conversion is simply to make this compatible with
-	 * use in previous versions of PasswordSafe (in ECB mode).  Why
-	 * the inversion is necessary for CBC mode and why it has to
-	 * "cancelled out" in this (ECB mode), I don't know but it
-	 * is the only way to get the correct ordering for the
-	 * CBC and ECB contexts within a standard password safe file.
-	 */
-        Util.bytesToLittleEndian(buffer);
-        super.decrypt(buffer);
-        Util.bytesToLittleEndian(buffer);
+        decipher.processBlock(in, inOff, out, outOff);
     }
 
     /**
-     * Encrypts <code>buffer</code> in place.
-     *
-     * @param buffer the buffer to be encrypted.
-     * @throws PasswordSafeException
+     * Encrypts a block of big-endian words
      */
-    public void encrypt(byte[] buffer) throws PasswordSafeException
+    @Override
+    protected void encryptBlock(byte[] in, int inOff, byte[] out, int outOff)
     {
-	/* The endian conversion is simply to make this compatible with
-	 * use in previous versions of PasswordSafe (in ECB mode).  Why
-	 * the inversion is necessary for CBC mode and why it has to
-	 * "cancelled out" in this (ECB mode), I don't know but it
-	 * is the only way to get the correct ordering for the
-	 * CBC and ECB contexts within a standard password safe file.
-	 */
-        Util.bytesToLittleEndian(buffer);
-        super.encrypt(buffer);
-        Util.bytesToLittleEndian(buffer);
+        encipher.processBlock(in, inOff, out, outOff);
     }
 }
@@ -8,35 +8,90 @@
 package org.pwsafe.lib.crypto;
 
 import org.bouncycastle.crypto.digests.SHA256Digest;
-import org.bouncycastle.crypto.macs.HMac;
-import org.bouncycastle.crypto.params.KeyParameter;
+
+import java.util.Arrays;
 
 /**
- * HMAC implementation. Currently uses BouncyCastle provider underneath.
+ * HMAC-SHA256 implementation. Currently uses the BouncyCastle digest
+ * underneath.  The HMAC is computed directly from the digest so its state
+ * can be copied part way through a message.
  *
  * @author Glen Smith
  */
 public class HmacPws
 {
+    private static final int BLOCK_LEN = 64;
+    private static final byte IPAD = (byte)0x36;
+    private static final byte OPAD = (byte)0x5c;
 
-    private final HMac mac;
+    private final SHA256Digest itsInner;
+    private final byte[] itsInnerPad;
+    private final byte[] itsOuterPad;
 
     public HmacPws(byte[] key)
     {
-        mac = new HMac(new SHA256Digest());
-        KeyParameter kp = new KeyParameter(key);
-        mac.init(kp);
+        byte[] hmacKey = key;
+        if (key.length > BLOCK_LEN) {
+            SHA256Digest keyDigest = new SHA256Digest();
+            keyDigest.update(key, 0, key.length);
+            hmacKey = new byte[keyDigest.getDigestSize()];
+            keyDigest.doFinal(hmacKey, 0);
+        }
+        itsInnerPad = new byte[BLOCK_LEN];
+        itsOuterPad = new byte[BLOCK_LEN];
+        System.arraycopy(hmacKey, 0, itsInnerPad, 0, hmacKey.length);
+        System.arraycopy(hmacKey, 0, itsOuterPad, 0, hmacKey.length);
+        for (int i = 0; i < BLOCK_LEN; ++i) {
+            itsInnerPad[i] ^= IPAD;
+            itsOuterPad[i] ^= OPAD;
+        }
+        if (hmacKey != key) {
+            Arrays.fill(hmacKey, (byte)0);
+        }
+
+        itsInner = new SHA256Digest();
+        itsInner.update(itsInnerPad, 0, BLOCK_LEN);
+    }
+
+    /**
+     * Copy constructor
+     */
+    private HmacPws(HmacPws hmac)
+    {
+        itsInner = new SHA256Digest(hmac.itsInner);
+        itsInnerPad = hmac.itsInnerPad;
+        itsOuterPad = hmac.itsOuterPad;
+    }
+
+    /**
+     * Create a copy of the HMAC including the data digested so far
+     */
+    public final HmacPws copy()
+    {
+        return new HmacPws(this);
     }
 
     public final void digest(byte[] incoming)
     {
-        mac.update(incoming, 0, incoming.length);
+        itsInner.update(incoming, 0, incoming.length);
+    }
+
+    public final void digest(byte[] incoming, int offset, int length)
+    {
+        itsInner.update(incoming, offset, length);
     }
 
     public final byte[] doFinal()
     {
-        byte[] output = new byte[mac.getUnderlyingDigest().getDigestSize()];
-        mac.doFinal(output, 0);
+        byte[] innerHash = new byte[itsInner.getDigestSize()];
+        itsInner.doFinal(innerHash, 0);
+        itsInner.update(itsInnerPad, 0, BLOCK_LEN);
+
+        SHA256Digest outer = new SHA256Digest();
+        outer.update(itsOuterPad, 0, BLOCK_LEN);
+        outer.update(innerHash, 0, innerHash.length);
+        byte[] output = new byte[outer.getDigestSize()];
+        outer.doFinal(output, 0);
         return output;
     }
 }
@@ -7,12 +7,10 @@
  */
 package org.pwsafe.lib.crypto;
 
-import java.util.Locale;
+import java.util.Arrays;
 
 import org.bouncycastle.crypto.digests.SHA256Digest;
 
-import android.os.Build;
-
 /**
  * SHA256 implementation. Currently uses BouncyCastle provider underneath.
  *
@@ -20,19 +18,84 @@ import android.os.Build;
  */
 public class SHA256Pws {
 
-    private static final boolean IS_CHROME;
-    static {
-        String brand = Build.BRAND.toLowerCase(Locale.getDefault());
-        IS_CHROME = (brand.contains("chromium"));
+    /**
+     * Implementation of the iterated digest used to stretch a passphrase
+     */
+    public interface DigestN
+    {
+        /**
+         * Digest the data and then digest the result iter more times
+         */
+        byte[] digestN(byte[] p, int iter);
     }
 
-    public static byte[] digestN(byte[] p, int iter)
+    /** The pure Java iterated digest */
+    public static final DigestN JAVA_DIGESTN = new DigestN()
     {
-        if (IS_CHROME) {
+        @Override
+        public byte[] digestN(byte[] p, int iter)
+        {
             return digestNJava(p, iter);
-        } else {
+        }
+    };
+
+    /** The iterated digest in the native library, which must be loaded */
+    public static final DigestN NATIVE_DIGESTN = new DigestN()
+    {
+        @Override
+        public byte[] digestN(byte[] p, int iter)
+        {
             return digestNNative(p, iter);
         }
+    };
+
+    private static final int[] K = {
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5,
+            0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+            0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3,
+            0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+            0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc,
+            0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+            0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7,
+            0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+            0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13,
+            0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+            0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3,
+            0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+            0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5,
+            0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208,
+            0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    private static final int[] H0 = {
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a,
+            0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    private static DigestN itsDigestN = JAVA_DIGESTN;
+
+    /**
+     * Get the implementation of the iterated digest
+     */
+    public static synchronized DigestN getDigestN()
+    {
+        return itsDigestN;
+    }
+
+    /**
+     * Set the implementation of the iterated digest.  The pure Java digest
+     * is used by default so the library runs without the native library;
+     * a platform which loads the native library may select it instead.
+     */
+    public static synchronized void setDigestN(DigestN digestN)
+    {
+        itsDigestN = (digestN != null) ? digestN : JAVA_DIGESTN;
+    }
+
+    public static byte[] digestN(byte[] p, int iter)
+    {
+        return getDigestN().digestN(p, iter);
     }
 
     public static byte[] digest(byte[] incoming) {
@@ -47,28 +110,93 @@ public class SHA256Pws {
 
     }
 
+    /**
+     * Iterated digest in Java.  After the first digest, each iteration
+     * hashes the 32-byte state, which is always a single block with the
+     * same padding, so the state is kept as words and compressed directly
+     * using a preallocated message schedule.
+     */
     private static byte[] digestNJava(byte[] p, int iter)
     {
-        SHA256Digest digest = new SHA256Digest();
-        byte[] output = new byte[digest.getDigestSize()];
-        byte[] input = new byte[digest.getDigestSize()];
-        byte[] t;
-
-        digest.update(p, 0, p.length);
-        digest.doFinal(output, 0);
+        byte[] output = digest(p);
+        int[] state = new int[8];
+        int[] w = new int[64];
+        for (int i = 0; i < 8; ++i) {
+            state[i] = ((output[i * 4] & 0xff) << 24) |
+                       ((output[i * 4 + 1] & 0xff) << 16) |
+                       ((output[i * 4 + 2] & 0xff) << 8) |
+                       (output[i * 4 + 3] & 0xff);
+        }
 
+        // The padding of the 256-bit state does not change
+        w[8] = 0x80000000;
+        w[15] = 256;
         for (int i = 0; i < iter; ++i) {
-            t = input;
-            input = output;
-            output = t;
-
-            digest.reset();
-            digest.update(input, 0, input.length);
-            digest.doFinal(output, 0);
+            System.arraycopy(state, 0, w, 0, 8);
+            compress(state, w);
         }
 
+        for (int i = 0; i < 8; ++i) {
+            output[i * 4] = (byte)(state[i] >>> 24);
+            output[i * 4 + 1] = (byte)(state[i] >>> 16);
+            output[i * 4 + 2] = (byte)(state[i] >>> 8);
+            output[i * 4 + 3] = (byte)state[i];
+        }
+        Arrays.fill(state, 0);
+        Arrays.fill(w, 0);
         return output;
     }
 
+    /**
+     * Replace the state with the digest of the block whose first 16 words
+     * are in the message schedule
+     */
+    private static void compress(int[] state, int[] w)
+    {
+        for (int t = 16; t < 64; ++t) {
+            int w15 = w[t - 15];
+            int w2 = w[t - 2];
+            int s0 = Integer.rotateRight(w15, 7) ^
+                     Integer.rotateRight(w15, 18) ^ (w15 >>> 3);
+            int s1 = Integer.rotateRight(w2, 17) ^
+                     Integer.rotateRight(w2, 19) ^ (w2 >>> 10);
+            w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+        }
+
+        int a = H0[0];
+        int b = H0[1];
+        int c = H0[2];
+        int d = H0[3];
+        int e = H0[4];
+        int f = H0[5];
+        int g = H0[6];
+        int h = H0[7];
+        for (int t = 0; t < 64; ++t) {
+            int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^
+                     Integer.rotateRight(e, 25);
+            int t1 = h + s1 + ((e & f) ^ (~e & g)) + K[t] + w[t];
+            int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^
+                     Integer.rotateRight(a, 22);
+            int t2 = s0 + ((a & b) ^ (a & c) ^ (b & c));
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+
+        state[0] = H0[0] + a;
+        state[1] = H0[1] + b;
+        state[2] = H0[2] + c;
+        state[3] = H0[3] + d;
+        state[4] = H0[4] + e;
+        state[5] = H0[5] + f;
+        state[6] = H0[6] + g;
+        state[7] = H0[7] + h;
+    }
+
     private static native byte[] digestNNative(byte[] p, int iter);
 }
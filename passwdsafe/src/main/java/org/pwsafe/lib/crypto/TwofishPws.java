@@ -14,6 +14,15 @@ import org.bouncycastle.crypto.modes.CBCBlockCipher;
 import org.bouncycastle.crypto.params.KeyParameter;
 import org.bouncycastle.crypto.params.ParametersWithIV;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 /**
  * Twofish implementation wrapper. Current implementation uses
  * BouncyCastle provider.
@@ -40,6 +49,130 @@ public class TwofishPws
         return out;
     }
 
+    /**
+     * Process multiple blocks in CBC mode.  The input and output may be the
+     * same array at the same offset.
+     *
+     * @param in     the input data
+     * @param off    the offset of the data in the input
+     * @param len    the length of the data; must be a multiple of the block
+     *               size
+     * @param out    the output buffer
+     * @param outOff the offset for the data in the output
+     */
+    public final void processCBC(byte[] in, int off, int len,
+                                 byte[] out, int outOff)
+    {
+        int blockSize = cipher.getBlockSize();
+        if ((len % blockSize) != 0) {
+            throw new IllegalArgumentException("len");
+        }
+        for (int pos = 0; pos < len; pos += blockSize) {
+            cipher.processBlock(in, off + pos, out, outOff + pos);
+        }
+    }
+
+    /**
+     * Process multiple blocks in CBC mode from a buffer.  A buffer without
+     * an accessible array, such as a mapped file, is copied into the output
+     * and processed in place.
+     *
+     * @param in     the input data; its position is not changed
+     * @param off    the offset of the data in the input
+     * @param len    the length of the data; must be a multiple of the block
+     *               size
+     * @param out    the output buffer
+     * @param outOff the offset for the data in the output
+     */
+    public final void processCBC(ByteBuffer in, int off, int len,
+                                 byte[] out, int outOff)
+    {
+        if (in.hasArray()) {
+            processCBC(in.array(), in.arrayOffset() + off, len, out, outOff);
+            return;
+        }
+        ByteBuffer src = in.duplicate();
+        src.position(off);
+        src.get(out, outOff, len);
+        processCBC(out, outOff, len, out, outOff);
+    }
+
+    /**
+     * Decrypt multiple blocks in CBC mode using several threads.  Each
+     * plaintext block only depends on its ciphertext block and the one before
+     * it, so the data is split into chunks which are decrypted independently
+     * with their own cipher.  The output must not overlap the input.
+     *
+     * @param key        the key
+     * @param IV         the initialization vector for the first block
+     * @param in         the encrypted data; its position is not changed
+     * @param off        the offset of the data in the input
+     * @param len        the length of the data; must be a multiple of the
+     *                   block size
+     * @param out        the output buffer for the decrypted data
+     * @param outOff     the offset for the data in the output
+     * @param numThreads the number of threads to use
+     */
+    public static void decryptCBC(byte[] key, byte[] IV,
+                                  final ByteBuffer in, int off, int len,
+                                  final byte[] out, int outOff,
+                                  int numThreads)
+            throws InterruptedException, ExecutionException
+    {
+        final int blockSize = IV.length;
+        if ((len % blockSize) != 0) {
+            throw new IllegalArgumentException("len");
+        }
+        int numBlocks = len / blockSize;
+        int numChunks = Math.max(Math.min(numThreads, numBlocks), 1);
+        int chunkBlocks = (numBlocks + numChunks - 1) / numChunks;
+
+        List<Callable<Void>> tasks = new ArrayList<>(numChunks);
+        for (int block = 0; block < numBlocks; block += chunkBlocks) {
+            final int chunkOff = off + (block * blockSize);
+            final int chunkLen =
+                    Math.min(chunkBlocks, numBlocks - block) * blockSize;
+            final int chunkOutOff = outOff + (block * blockSize);
+            byte[] chunkIV = new byte[blockSize];
+            if (block == 0) {
+                System.arraycopy(IV, 0, chunkIV, 0, blockSize);
+            } else {
+                ByteBuffer ivSrc = in.duplicate();
+                ivSrc.position(chunkOff - blockSize);
+                ivSrc.get(chunkIV);
+            }
+            final TwofishPws cipher = new TwofishPws(key, false, chunkIV);
+            tasks.add(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                {
+                    cipher.processCBC(in, chunkOff, chunkLen,
+                                      out, chunkOutOff);
+                    return null;
+                }
+            });
+        }
+
+        if (tasks.size() == 1) {
+            try {
+                tasks.get(0).call();
+            } catch (Exception e) {
+                throw new ExecutionException(e);
+            }
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        try {
+            for (Future<Void> result: executor.invokeAll(tasks)) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     public static byte[] processECB(byte[] key, boolean forEncryption,
                                     byte[] input)
     {
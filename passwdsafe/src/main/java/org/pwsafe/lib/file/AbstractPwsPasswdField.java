@@ -9,32 +9,48 @@ package org.pwsafe.lib.file;
 
 import android.support.annotation.NonNull;
 
-import org.bouncycastle.crypto.RuntimeCryptoException;
+import org.pwsafe.lib.Util;
 
-import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.SealedObject;
-
 
 public abstract class AbstractPwsPasswdField extends PwsField
 {
     private static final long serialVersionUID = -5633832199601878672L;
 
-    private final Cipher itsReadCipher;
+    /**
+     * Encoding of the sealed value
+     */
+    private static final String SEAL_ENCODING = "UTF-8";
+
+    /** The password is not a reference to another record */
+    public static final byte REF_NONE = 0;
+
+    /** The password may be an alias, [[uuid]], of another record */
+    public static final byte REF_ALIAS = 1;
+
+    /** The password may be a shortcut, [~uuid~], to another record */
+    public static final byte REF_SHORTCUT = 2;
+
+    /**
+     * Length of a reference password: two brackets on each side of the 32
+     * hex digits of a UUID
+     */
+    private static final int REF_LEN = 36;
+
+    private final PwsMemorySealer itsSealer;
     private final String itsStrEncoding;
+    private final byte itsRefType;
 
     protected AbstractPwsPasswdField(
             int type, byte[] value, PwsFile file,
             @SuppressWarnings("SameParameterValue") String encoding)
     {
-        super(type, sealValue(value, encoding, file.getWriteCipher()));
+        super(type, sealValue(value, encoding, file.getMemorySealer()));
+        itsRefType = getRefType(value);
         Arrays.fill(value, (byte)0);
-        itsReadCipher = file.getReadCipher();
+        itsSealer = file.getMemorySealer();
         itsStrEncoding = encoding;
     }
 
@@ -42,8 +58,9 @@ public abstract class AbstractPwsPasswdField extends PwsField
     protected AbstractPwsPasswdField(int type, String value, PwsFile file,
                                      String encoding)
     {
-        super(type, sealValue(value, file.getWriteCipher()));
-        itsReadCipher = file.getReadCipher();
+        super(type, sealValue(value, file.getMemorySealer()));
+        itsRefType = getRefType(value);
+        itsSealer = file.getMemorySealer();
         itsStrEncoding = encoding;
     }
 
@@ -51,8 +68,23 @@ public abstract class AbstractPwsPasswdField extends PwsField
     protected AbstractPwsPasswdField(PwsFieldType type, String encoding)
     {
         super(type, null);
-        itsReadCipher = null;
+        itsSealer = null;
         itsStrEncoding = encoding;
+        itsRefType = REF_NONE;
+    }
+
+
+    /**
+     * Get whether the password has the form of a reference to another
+     * record.  The form is checked when the field is created while the
+     * plaintext is available, so the password need not be unsealed to find
+     * the records which may be aliases or shortcuts.
+     *
+     * @return REF_NONE, REF_ALIAS, or REF_SHORTCUT
+     */
+    public byte getRefType()
+    {
+        return itsRefType;
     }
 
 
@@ -86,18 +118,17 @@ public abstract class AbstractPwsPasswdField extends PwsField
     @Override
     public String toString()
     {
-        SealedObject sealValue = (SealedObject)getValue();
+        PwsSealedBytes sealValue = (PwsSealedBytes)getValue();
+        if (sealValue == null) {
+            return "";
+        }
+        byte[] bytes = itsSealer.unseal(sealValue);
         try {
-            if (sealValue == null) {
-                return "";
-            } else {
-                return (String)sealValue.getObject(itsReadCipher);
-            }
-        } catch (IllegalBlockSizeException | BadPaddingException |
-                ClassNotFoundException e) {
-            throw new RuntimeCryptoException(e.getMessage());
-        } catch (IOException e) {
+            return new String(bytes, SEAL_ENCODING);
+        } catch (UnsupportedEncodingException e) {
             throw new RuntimeException(e);
+        } finally {
+            Util.clearArray(bytes);
         }
     }
 
@@ -105,6 +136,10 @@ public abstract class AbstractPwsPasswdField extends PwsField
     @Override
     public byte[] getBytes()
     {
+        PwsSealedBytes sealValue = (PwsSealedBytes)getValue();
+        if ((sealValue != null) && itsStrEncoding.equals(SEAL_ENCODING)) {
+            return itsSealer.unseal(sealValue);
+        }
         try {
             return toString().getBytes(itsStrEncoding);
         } catch (UnsupportedEncodingException e) {
@@ -113,23 +148,80 @@ public abstract class AbstractPwsPasswdField extends PwsField
     }
 
 
-    private static SealedObject sealValue(byte[] value, String encoding,
-                                          Cipher cipher)
+    /**
+     * Get the reference type of a password's bytes.  The brackets are ASCII,
+     * so the encoded bytes are checked directly.
+     */
+    private static byte getRefType(byte[] value)
     {
+        if (value.length != REF_LEN) {
+            return REF_NONE;
+        }
+        return getRefType((char)value[0], (char)value[1],
+                          (char)value[REF_LEN - 2], (char)value[REF_LEN - 1]);
+    }
+
+
+    /**
+     * Get the reference type of a password string
+     */
+    private static byte getRefType(String value)
+    {
+        if (value.length() != REF_LEN) {
+            return REF_NONE;
+        }
+        return getRefType(value.charAt(0), value.charAt(1),
+                          value.charAt(REF_LEN - 2),
+                          value.charAt(REF_LEN - 1));
+    }
+
+
+    /**
+     * Get the reference type from the first and last two characters of a
+     * password
+     */
+    private static byte getRefType(char open0, char open1,
+                                   char close0, char close1)
+    {
+        if ((open0 != '[') || (close1 != ']')) {
+            return REF_NONE;
+        }
+        if ((open1 == '[') && (close0 == ']')) {
+            return REF_ALIAS;
+        } else if ((open1 == '~') && (close0 == '~')) {
+            return REF_SHORTCUT;
+        }
+        return REF_NONE;
+    }
+
+
+    private static PwsSealedBytes sealValue(byte[] value, String encoding,
+                                            PwsMemorySealer sealer)
+    {
+        if (encoding.equals(SEAL_ENCODING)) {
+            return sealer.seal(value);
+        }
         try {
-            return sealValue(new String(value, encoding), cipher);
+            return sealValue(new String(value, encoding), sealer);
         } catch (UnsupportedEncodingException e) {
             throw new RuntimeException(e);
         }
     }
 
 
-    private static SealedObject sealValue(String value, Cipher cipher)
+    private static PwsSealedBytes sealValue(String value,
+                                            PwsMemorySealer sealer)
     {
+        byte[] bytes;
+        try {
+            bytes = value.getBytes(SEAL_ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
         try {
-            return new SealedObject(value, cipher);
-        } catch (IllegalBlockSizeException | IOException e) {
-            throw new RuntimeCryptoException(e.getMessage());
+            return sealer.seal(bytes);
+        } finally {
+            Util.clearArray(bytes);
         }
     }
 }
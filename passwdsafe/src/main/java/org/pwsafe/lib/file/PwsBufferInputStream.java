@@ -0,0 +1,77 @@
+/*
+ * Copyright (©) 2017 Jeff Harris <jefftharris@gmail.com>
+ * All rights reserved. Use of the code is allowed under the
+ * Artistic License 2.0 terms, as specified in the LICENSE file
+ * distributed with this code, or available from
+ * http://www.opensource.org/licenses/artistic-license-2.0.php
+ */
+package org.pwsafe.lib.file;
+
+import android.support.annotation.NonNull;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An input stream which reads from a ByteBuffer
+ */
+final class PwsBufferInputStream extends InputStream
+{
+    private final ByteBuffer itsBuffer;
+
+    /**
+     * Constructor
+     *
+     * @param buffer the buffer to read from its position to its limit; the
+     *               position is advanced as the stream is read
+     */
+    PwsBufferInputStream(ByteBuffer buffer)
+    {
+        itsBuffer = buffer;
+    }
+
+    /**
+     * Get the position of the stream in the buffer
+     */
+    int getPosition()
+    {
+        return itsBuffer.position();
+    }
+
+    @Override
+    public int read()
+    {
+        if (!itsBuffer.hasRemaining()) {
+            return -1;
+        }
+        return itsBuffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len)
+    {
+        if (len == 0) {
+            return 0;
+        }
+        if (!itsBuffer.hasRemaining()) {
+            return -1;
+        }
+        len = Math.min(len, itsBuffer.remaining());
+        itsBuffer.get(b, off, len);
+        return len;
+    }
+
+    @Override
+    public long skip(long n)
+    {
+        int len = (int)Math.max(Math.min(n, itsBuffer.remaining()), 0);
+        itsBuffer.position(itsBuffer.position() + len);
+        return len;
+    }
+
+    @Override
+    public int available()
+    {
+        return itsBuffer.remaining();
+    }
+}
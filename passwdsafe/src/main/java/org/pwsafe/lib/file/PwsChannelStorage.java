@@ -0,0 +1,136 @@
+/*
+ * Copyright (©) 2017 Jeff Harris <jefftharris@gmail.com>
+ * All rights reserved. Use of the code is allowed under the
+ * Artistic License 2.0 terms, as specified in the LICENSE file
+ * distributed with this code, or available from
+ * http://www.opensource.org/licenses/artistic-license-2.0.php
+ */
+package org.pwsafe.lib.file;
+
+import org.pwsafe.lib.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+/**
+ * A storage implementation for local files which reads the file through a
+ * FileChannel.  The file is memory mapped when loaded so the V3 reader can
+ * decrypt it without first copying its contents into the heap.  Saves are
+ * written through a channel to the temp file and forced to disk once.
+ */
+public class PwsChannelStorage extends PwsFileStorage
+{
+    private static final Log LOG = Log.getInstance(
+            PwsChannelStorage.class.getPackage().getName());
+
+    private final String itsFileToOpen;
+    private FileInputStream itsLoadFile;
+    private FileChannel itsLoadChannel;
+    private ByteBuffer itsLoadBuffer;
+
+    /**
+     * Constructor
+     *
+     * @param identifier the name of the file for saving
+     * @param fileToOpen the name of the file to load; null if a new file
+     */
+    public PwsChannelStorage(String identifier, String fileToOpen)
+    {
+        super(identifier);
+        itsFileToOpen = fileToOpen;
+    }
+
+    @Override
+    public byte[] openForLoad(int headerLen) throws IOException
+    {
+        FileChannel channel = getLoadChannel();
+        ByteBuffer buf = ByteBuffer.allocate(headerLen);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, buf.position()) < 0) {
+                throw new IOException("Error reading header from " +
+                                      getIdentifier());
+            }
+        }
+        return buf.array();
+    }
+
+    @Override
+    public byte[] load() throws IOException
+    {
+        ByteBuffer buf = loadBuffer().duplicate();
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public ByteBuffer loadBuffer() throws IOException
+    {
+        if (itsLoadBuffer == null) {
+            FileChannel channel = getLoadChannel();
+            itsLoadBuffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                                        0, channel.size());
+        }
+        return itsLoadBuffer;
+    }
+
+    @Override
+    public void closeAfterLoad() throws IOException
+    {
+        itsLoadBuffer = null;
+        itsLoadChannel = null;
+        if (itsLoadFile != null) {
+            try {
+                itsLoadFile.close();
+            } finally {
+                itsLoadFile = null;
+            }
+        }
+    }
+
+    /**
+     * Write the saved data through a channel, forcing it to disk once
+     */
+    @Override
+    protected void writeSaveFile(File file, SaveWriter writer)
+            throws IOException
+    {
+        FileOutputStream fileStream = new FileOutputStream(file);
+        try {
+            FileChannel channel = fileStream.getChannel();
+            OutputStream outStream = new BufferedOutputStream(
+                    Channels.newOutputStream(channel), SAVE_BUFFER_LEN);
+            writer.write(outStream);
+            outStream.flush();
+            channel.force(true);
+        } finally {
+            try {
+                fileStream.close();
+            } catch (IOException e) {
+                LOG.error("close", e);
+            }
+        }
+    }
+
+    /**
+     * Get the channel for loading the file
+     */
+    private FileChannel getLoadChannel() throws IOException
+    {
+        if (itsLoadChannel == null) {
+            if (itsFileToOpen == null) {
+                throw new IOException("No file to load");
+            }
+            itsLoadFile = new FileInputStream(itsFileToOpen);
+            itsLoadChannel = itsLoadFile.getChannel();
+        }
+        return itsLoadChannel;
+    }
+}
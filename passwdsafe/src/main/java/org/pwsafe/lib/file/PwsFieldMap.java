@@ -0,0 +1,200 @@
+/*
+ * Copyright (©) 2017 Jeff Harris <jefftharris@gmail.com>
+ * All rights reserved. Use of the code is allowed under the
+ * Artistic License 2.0 terms, as specified in the LICENSE file
+ * distributed with this code, or available from
+ * http://www.opensource.org/licenses/artistic-license-2.0.php
+ */
+package org.pwsafe.lib.file;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The fields of a record keyed by their type.  The known field types are
+ * small, so fields are kept in an array indexed by type which is only as
+ * long as the largest type set.  Other types are kept in a sorted overflow
+ * array.  The types are iterated in ascending order as with a sorted map.
+ */
+final class PwsFieldMap implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The limit on the types kept in the array indexed by type
+     */
+    private static final int DIRECT_LEN = 32;
+
+    private static final PwsField[] NO_FIELDS = new PwsField[0];
+    private static final int[] NO_TYPES = new int[0];
+
+    private PwsField[] itsFields = NO_FIELDS;
+    private int[] itsOverflowTypes = NO_TYPES;
+    private PwsField[] itsOverflowFields = NO_FIELDS;
+
+    /**
+     * Get the field for a type
+     *
+     * @return the field; null if not set
+     */
+    PwsField get(int type)
+    {
+        if (isDirect(type)) {
+            return (type < itsFields.length) ? itsFields[type] : null;
+        }
+        int idx = Arrays.binarySearch(itsOverflowTypes, type);
+        return (idx >= 0) ? itsOverflowFields[idx] : null;
+    }
+
+    /**
+     * Set the field for a type
+     */
+    void put(int type, PwsField field)
+    {
+        if (isDirect(type)) {
+            if (type >= itsFields.length) {
+                itsFields = Arrays.copyOf(
+                        itsFields,
+                        Math.min(DIRECT_LEN,
+                                 Math.max(type + 1, itsFields.length * 2)));
+            }
+            itsFields[type] = field;
+            return;
+        }
+
+        int idx = Arrays.binarySearch(itsOverflowTypes, type);
+        if (idx >= 0) {
+            itsOverflowFields[idx] = field;
+            return;
+        }
+
+        idx = -(idx + 1);
+        int len = itsOverflowTypes.length;
+        int[] types = new int[len + 1];
+        PwsField[] fields = new PwsField[len + 1];
+        System.arraycopy(itsOverflowTypes, 0, types, 0, idx);
+        System.arraycopy(itsOverflowFields, 0, fields, 0, idx);
+        types[idx] = type;
+        fields[idx] = field;
+        System.arraycopy(itsOverflowTypes, idx, types, idx + 1, len - idx);
+        System.arraycopy(itsOverflowFields, idx, fields, idx + 1, len - idx);
+        itsOverflowTypes = types;
+        itsOverflowFields = fields;
+    }
+
+    /**
+     * Remove the field for a type
+     *
+     * @return the removed field; null if not set
+     */
+    PwsField remove(int type)
+    {
+        if (isDirect(type)) {
+            if (type >= itsFields.length) {
+                return null;
+            }
+            PwsField field = itsFields[type];
+            itsFields[type] = null;
+            return field;
+        }
+
+        int idx = Arrays.binarySearch(itsOverflowTypes, type);
+        if (idx < 0) {
+            return null;
+        }
+        PwsField field = itsOverflowFields[idx];
+        int len = itsOverflowTypes.length - 1;
+        if (len == 0) {
+            itsOverflowTypes = NO_TYPES;
+            itsOverflowFields = NO_FIELDS;
+            return field;
+        }
+        int[] types = new int[len];
+        PwsField[] fields = new PwsField[len];
+        System.arraycopy(itsOverflowTypes, 0, types, 0, idx);
+        System.arraycopy(itsOverflowFields, 0, fields, 0, idx);
+        System.arraycopy(itsOverflowTypes, idx + 1, types, idx, len - idx);
+        System.arraycopy(itsOverflowFields, idx + 1, fields, idx, len - idx);
+        itsOverflowTypes = types;
+        itsOverflowFields = fields;
+        return field;
+    }
+
+    /**
+     * Get an iterator over the set types in ascending order
+     */
+    Iterator<Integer> typeIterator()
+    {
+        return new TypeIterator();
+    }
+
+    /**
+     * Get whether a type is kept in the array indexed by type
+     */
+    private static boolean isDirect(int type)
+    {
+        return (type >= 0) && (type < DIRECT_LEN);
+    }
+
+    /**
+     * Iterator over the types.  Overflow types below the direct range are
+     * returned first, then the direct types, then the remaining overflow
+     * types.
+     */
+    private final class TypeIterator implements Iterator<Integer>
+    {
+        private int itsOverflowIdx = 0;
+        private int itsDirectIdx = 0;
+
+        /**
+         * Constructor
+         */
+        TypeIterator()
+        {
+            advanceDirect();
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return (itsDirectIdx < itsFields.length) ||
+                   (itsOverflowIdx < itsOverflowTypes.length);
+        }
+
+        @Override
+        public Integer next()
+        {
+            int type;
+            if ((itsOverflowIdx < itsOverflowTypes.length) &&
+                ((itsOverflowTypes[itsOverflowIdx] < 0) ||
+                 (itsDirectIdx >= itsFields.length))) {
+                type = itsOverflowTypes[itsOverflowIdx++];
+            } else if (itsDirectIdx < itsFields.length) {
+                type = itsDirectIdx++;
+                advanceDirect();
+            } else {
+                throw new NoSuchElementException();
+            }
+            return type;
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Advance the direct index to the next set type
+         */
+        private void advanceDirect()
+        {
+            while ((itsDirectIdx < itsFields.length) &&
+                   (itsFields[itsDirectIdx] == null)) {
+                ++itsDirectIdx;
+            }
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (©) 2017 Jeff Harris <jefftharris@gmail.com>
+ * All rights reserved. Use of the code is allowed under the
+ * Artistic License 2.0 terms, as specified in the LICENSE file
+ * distributed with this code, or available from
+ * http://www.opensource.org/licenses/artistic-license-2.0.php
+ */
+package org.pwsafe.lib.file;
+
+import org.pwsafe.lib.Util;
+import org.pwsafe.lib.crypto.HmacPws;
+import org.pwsafe.lib.crypto.TwofishPws;
+import org.pwsafe.lib.exception.EndOfFileException;
+import org.pwsafe.lib.exception.InvalidPassphraseException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reader of the fields of a V3 file one at a time directly from the
+ * encrypted contents of the file.  No records are created, and only the
+ * current field is held decrypted in a buffer which is reused for each
+ * field, so the file can be read partially or in full with little memory.
+ * The data of each field is added to the HMAC as it is read.
+ */
+final class PwsFieldReaderV3
+{
+    private static final int BLOCK_LEN = 16;
+
+    /**
+     * Length of data decrypted at a time when verifying the file
+     */
+    private static final int CHUNK_LEN = 64 * 1024;
+
+    private final ByteBuffer itsFileData;
+    private final TwofishPws itsCipher;
+    private final HmacPws itsHasher;
+    private final byte[] itsBlock = new byte[BLOCK_LEN];
+    private byte[] itsFieldData = new byte[BLOCK_LEN * 4];
+    private int itsPos = PwsFileHeaderV3.LENGTH;
+    private int itsFieldType;
+    private int itsFieldLen;
+    private int itsFieldDataLen;
+
+    /**
+     * Constructor which checks the passphrase and creates the keys for the
+     * fields following the header
+     *
+     * @param fileData    the contents of the file
+     * @param header      the file header
+     * @param passwdParam the passphrase
+     * @throws InvalidPassphraseException if the passphrase is not correct
+     * @throws InterruptedIOException     if the check is interrupted
+     */
+    PwsFieldReaderV3(ByteBuffer fileData, PwsFileHeaderV3 header,
+                     Owner<PwsPassword>.Param passwdParam)
+            throws InvalidPassphraseException, InterruptedIOException
+    {
+        PwsPasswordCheck.Result<byte[]> result =
+                PwsFileV3.checkPassword(header, passwdParam, null);
+        if (result == null) {
+            throw new InvalidPassphraseException();
+        }
+
+        byte[] recordKey = null;
+        byte[] hmacKey = null;
+        try {
+            recordKey = PwsFileV3.decryptKey(result.itsValue, header.getB1(),
+                                             header.getB2());
+            hmacKey = PwsFileV3.decryptKey(result.itsValue, header.getB3(),
+                                           header.getB4());
+            itsCipher = new TwofishPws(recordKey, false, header.getIV());
+            itsHasher = new HmacPws(hmacKey);
+        } finally {
+            Util.clearArray(result.itsValue);
+            if (recordKey != null) {
+                Util.clearArray(recordKey);
+            }
+            if (hmacKey != null) {
+                Util.clearArray(hmacKey);
+            }
+        }
+        itsFileData = fileData;
+    }
+
+    /**
+     * Read the header from the start of the contents of a V3 file
+     *
+     * @param fileData the contents of the file
+     * @return the header
+     * @throws EndOfFileException if the file is too short
+     */
+    static PwsFileHeaderV3 readHeader(ByteBuffer fileData)
+            throws EndOfFileException
+    {
+        if (fileData.limit() < PwsFileHeaderV3.LENGTH) {
+            throw new EndOfFileException();
+        }
+        byte[] bytes = new byte[PwsFileHeaderV3.LENGTH];
+        ByteBuffer buf = fileData.duplicate();
+        buf.position(0);
+        buf.get(bytes);
+        return new PwsFileHeaderV3(bytes);
+    }
+
+    /**
+     * Read the next field.  The data of the previous field is cleared.
+     *
+     * @return true if a field was read; false if the end of file marker was
+     * reached
+     * @throws EndOfFileException if the file ends before the marker
+     * @throws IOException        if the field is invalid
+     */
+    boolean nextField() throws EndOfFileException, IOException
+    {
+        clearField();
+        if (isEndOfFile(itsPos)) {
+            return false;
+        }
+
+        decryptBlocks(itsBlock, 0, BLOCK_LEN);
+        int len = Util.getIntFromByteArray(itsBlock, 0);
+        int type = itsBlock[4] & 0xff;
+        if (len < 0) {
+            throw new IOException("Invalid record length: " + len);
+        }
+
+        // The first block holds the start of the data as in
+        // PwsRecordV3.ItemV3, and the rest of the blocks are decrypted
+        // directly into the field buffer
+        int bytesToRead = Math.max(len - PwsRecordV3.FIRST_BLOCK_DATA_LEN, 0);
+        if (bytesToRead > itsFileData.limit() - itsPos) {
+            throw new EndOfFileException();
+        }
+        int blocksLen = ((bytesToRead + BLOCK_LEN - 1) / BLOCK_LEN) *
+                        BLOCK_LEN;
+        int dataLen = PwsRecordV3.FIRST_BLOCK_DATA_LEN + blocksLen;
+        if (itsFieldData.length < dataLen) {
+            Arrays.fill(itsFieldData, (byte)0);
+            itsFieldData = new byte[dataLen];
+        }
+        itsFieldDataLen = dataLen;
+        System.arraycopy(itsBlock, PwsRecordV3.FIELD_HDR_LEN, itsFieldData, 0,
+                         PwsRecordV3.FIRST_BLOCK_DATA_LEN);
+        Arrays.fill(itsBlock, (byte)0);
+        if (blocksLen > 0) {
+            decryptBlocks(itsFieldData, PwsRecordV3.FIRST_BLOCK_DATA_LEN,
+                          blocksLen);
+        }
+
+        itsFieldType = type;
+        itsFieldLen = len;
+        itsHasher.digest(itsFieldData, 0, len);
+        return true;
+    }
+
+    /**
+     * Get the type of the current field
+     */
+    int getFieldType()
+    {
+        return itsFieldType;
+    }
+
+    /**
+     * Get a copy of the data of the current field
+     */
+    byte[] getFieldData()
+    {
+        return Util.cloneByteArray(itsFieldData, itsFieldLen);
+    }
+
+    /**
+     * Read all of the remaining fields and check the HMAC.  The data is
+     * decrypted in chunks into a fixed buffer and the fields are walked
+     * within the chunks, so the memory used does not depend on the size of
+     * the fields.  The data is only added to the HMAC.  A field length
+     * which is invalid or runs past the end of the data means the file was
+     * changed, so it fails the verification rather than throwing.
+     *
+     * @return true if the HMAC matches; false otherwise
+     * @throws EndOfFileException if the file ends before the HMAC
+     * @throws IOException        if the data can't be read
+     */
+    boolean verify() throws EndOfFileException, IOException
+    {
+        clearField();
+        byte[] chunk = new byte[CHUNK_LEN];
+        try {
+            int chunkPos = 0;
+            int chunkLen = 0;
+            int fieldRemaining = 0;
+            for (;;) {
+                if (fieldRemaining == 0) {
+                    int pos = itsPos - (chunkLen - chunkPos);
+                    if (itsFileData.limit() - pos < BLOCK_LEN) {
+                        return false;
+                    }
+                    if (isEndOfFile(pos)) {
+                        itsPos = pos;
+                        return checkHmac();
+                    }
+                }
+
+                if (chunkPos == chunkLen) {
+                    chunkLen = Math.min(
+                            chunk.length,
+                            ((itsFileData.limit() - itsPos) / BLOCK_LEN) *
+                            BLOCK_LEN);
+                    if (chunkLen == 0) {
+                        return false;
+                    }
+                    decryptBlocks(chunk, 0, chunkLen);
+                    chunkPos = 0;
+                }
+
+                if (fieldRemaining == 0) {
+                    int len = Util.getIntFromByteArray(chunk, chunkPos);
+                    if (len < 0) {
+                        return false;
+                    }
+                    int firstLen =
+                            Math.min(len, PwsRecordV3.FIRST_BLOCK_DATA_LEN);
+                    itsHasher.digest(chunk,
+                                     chunkPos + PwsRecordV3.FIELD_HDR_LEN,
+                                     firstLen);
+                    fieldRemaining = len - firstLen;
+                    chunkPos += BLOCK_LEN;
+                } else {
+                    // The padding of the last block of a field is skipped
+                    int dataLen = Math.min(fieldRemaining, chunkLen - chunkPos);
+                    itsHasher.digest(chunk, chunkPos, dataLen);
+                    fieldRemaining -= dataLen;
+                    chunkPos += ((dataLen + BLOCK_LEN - 1) / BLOCK_LEN) *
+                                BLOCK_LEN;
+                }
+            }
+        } finally {
+            Arrays.fill(chunk, (byte)0);
+        }
+    }
+
+    /**
+     * Check the HMAC of the fields read against the HMAC following the end
+     * of file marker.  All of the fields must have been read.
+     *
+     * @return true if the HMAC matches; false otherwise
+     * @throws EndOfFileException if the file ends before the HMAC
+     */
+    boolean checkHmac() throws EndOfFileException
+    {
+        byte[] fileHmac = new byte[32];
+        int pos = itsPos + BLOCK_LEN;
+        if (itsFileData.limit() - pos < fileHmac.length) {
+            throw new EndOfFileException();
+        }
+        ByteBuffer buf = itsFileData.duplicate();
+        buf.position(pos);
+        buf.get(fileHmac);
+        return Util.bytesAreEqual(fileHmac, itsHasher.doFinal());
+    }
+
+    /**
+     * Clear the decrypted data
+     */
+    void close()
+    {
+        clearField();
+        Arrays.fill(itsBlock, (byte)0);
+    }
+
+    /**
+     * Is the block at a position in the file the end of file marker
+     *
+     * @throws EndOfFileException if the file ends before the block
+     */
+    private boolean isEndOfFile(int pos) throws EndOfFileException
+    {
+        if (itsFileData.limit() - pos < BLOCK_LEN) {
+            throw new EndOfFileException();
+        }
+        for (int i = 0; i < BLOCK_LEN; ++i) {
+            if (itsFileData.get(pos + i) != PwsRecordV3.EOF_BYTES_RAW[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decrypt blocks from the current position in the file
+     */
+    private void decryptBlocks(byte[] out, int outOff, int len)
+            throws EndOfFileException
+    {
+        if (itsFileData.limit() - itsPos < len) {
+            throw new EndOfFileException();
+        }
+        itsCipher.processCBC(itsFileData, itsPos, len, out, outOff);
+        itsPos += len;
+    }
+
+    /**
+     * Clear the data of the current field
+     */
+    private void clearField()
+    {
+        Arrays.fill(itsFieldData, 0, itsFieldDataLen, (byte)0);
+        itsFieldDataLen = 0;
+        itsFieldType = 0;
+        itsFieldLen = 0;
+    }
+}
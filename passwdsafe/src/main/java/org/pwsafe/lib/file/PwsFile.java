@@ -9,21 +9,15 @@
  */
 package org.pwsafe.lib.file;
 
-import org.bouncycastle.crypto.RuntimeCryptoException;
 import org.pwsafe.lib.Log;
-import org.pwsafe.lib.Util;
 import org.pwsafe.lib.crypto.InMemoryKey;
 import org.pwsafe.lib.exception.EndOfFileException;
-import org.pwsafe.lib.exception.MemoryKeyException;
 import org.pwsafe.lib.exception.UnsupportedFileVersionException;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -34,14 +28,6 @@ import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SealedObject;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-
 /**
  * This is the base class for all variations of the PasswordSafe file format.
  * <p>
@@ -132,14 +118,9 @@ public abstract class PwsFile
     private static String itsPasswordEncoding = DEFAULT_PASSWORD_CHARSET;
 
     /**
-     * Cipher spec for storing passwords in memory
+     * Number of threads to use when checking the password encodings
      */
-    private static final String CIPHER_SPEC = "AES/CBC/PKCS5Padding";
-
-    /**
-     * Cipher key spec for storing passwords in memory
-     */
-    private static final String CIPHER_KEY_SPEC = "AES";
+    private static int itsPasswordProbeThreads = 1;
 
     /**
      * Cipher key length for storing passwords in memory
@@ -154,7 +135,7 @@ public abstract class PwsFile
     /**
      * The passphrase for the file.
      */
-    private SealedObject passphrase;
+    private PwsSealedBytes passphrase;
 
     /**
      * The stream used to read data from the storage.  It is non-null only
@@ -191,10 +172,8 @@ public abstract class PwsFile
     protected Date lastStorageChange;
 
     private InMemoryKey memoryKey;
-    private byte[] memoryIv;
 
-    private Cipher itsReadCipher;
-    private Cipher itsWriteCipher;
+    private PwsMemorySealer itsMemorySealer;
 
     /**
      * The password encoding which was used to open the file
@@ -307,57 +286,22 @@ public abstract class PwsFile
         if (memoryKey != null) {
             memoryKey.dispose();
         }
-        if (memoryIv != null) {
-            Arrays.fill(memoryIv, (byte)0);
-            memoryIv = null;
-        }
     }
 
-    final Cipher getReadCipher()
-    {
-        return getCipher(false);
-    }
-
-    final Cipher getWriteCipher()
-    {
-        return getCipher(true);
-    }
-
-    private Cipher getCipher(boolean forWriting)
+    /**
+     * Get the sealer for protecting values in memory
+     */
+    final synchronized PwsMemorySealer getMemorySealer()
     {
-        if (memoryIv == null) {
-            memoryIv = new byte[CIPHER_KEY_LEN];
-            Util.newRandBytes(memoryIv);
-        }
-
-        if (forWriting && (itsWriteCipher != null)) {
-            return itsWriteCipher;
-        } else if (!forWriting && (itsReadCipher != null)) {
-            return itsReadCipher;
-        }
-
-        SecretKeySpec key = new SecretKeySpec(getKeyBytes(), CIPHER_KEY_SPEC);
-        IvParameterSpec ivSpec = new IvParameterSpec(memoryIv);
-        Cipher cipher;
-        try {
-            cipher = Cipher.getInstance(CIPHER_SPEC);
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException e1) {
-            throw new MemoryKeyException("memory key generation failed", e1);
-        }
-
-        try {
-            if (forWriting) {
-                cipher.init(Cipher.ENCRYPT_MODE, key, ivSpec);
-                itsWriteCipher = cipher;
-            } else {
-                cipher.init(Cipher.DECRYPT_MODE, key, ivSpec);
-                itsReadCipher = cipher;
+        if (itsMemorySealer == null) {
+            byte[] key = getKeyBytes();
+            try {
+                itsMemorySealer = new PwsMemorySealer(key);
+            } finally {
+                Arrays.fill(key, (byte)0);
             }
-        } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
-            throw new MemoryKeyException("memory key generation failed", e);
         }
-
-        return cipher;
+        return itsMemorySealer;
     }
 
     private byte[] getKeyBytes()
@@ -403,14 +347,7 @@ public abstract class PwsFile
      */
     public Owner<PwsPassword> getPassphrase()
     {
-        try {
-            return new Owner<>(
-                    PwsPassword.unseal(passphrase,
-                                       getReadCipher()));
-        } catch (IllegalBlockSizeException | BadPaddingException |
-                ClassNotFoundException | IOException e) {
-            throw new RuntimeCryptoException(e.getMessage());
-        }
+        return new Owner<>(PwsPassword.unseal(passphrase, getMemorySealer()));
     }
 
     /**
@@ -474,9 +411,18 @@ public abstract class PwsFile
     public void set(int index, PwsRecord aRecord)
     {
         records.set(index, aRecord);
+        recordChanged(index);
         setModified();
     }
 
+    /**
+     * Notification that the record at the given index was set.  The record
+     * may be the same object which was previously at the index.
+     */
+    void recordChanged(int index)
+    {
+    }
+
     /**
      * Opens the database.
      *
@@ -654,9 +600,7 @@ public abstract class PwsFile
     {
         Owner<PwsPassword> passwd = passwdParam.use();
         try {
-            passphrase = passwd.get().seal(getWriteCipher());
-        } catch (IllegalBlockSizeException | IOException e) {
-            throw new RuntimeCryptoException(e.getMessage());
+            passphrase = passwd.get().seal(getMemorySealer());
         } finally {
             passwd.close();
         }
@@ -750,6 +694,21 @@ public abstract class PwsFile
         itsPasswordEncoding = encoding;
     }
 
+    public static synchronized int getPasswordProbeThreads()
+    {
+        return itsPasswordProbeThreads;
+    }
+
+    /**
+     * Set the number of threads used to check the password encodings when
+     * opening a file.  A value greater than one checks the encodings
+     * concurrently.
+     */
+    public static synchronized void setPasswordProbeThreads(int numThreads)
+    {
+        itsPasswordProbeThreads = Math.max(numThreads, 1);
+    }
+
     /**
      * This provides a wrapper around the <code>Iterator</code> that is returned
      * by the <code>iterator()</code> method on the Collections class used to
@@ -18,7 +18,10 @@ import org.pwsafe.lib.exception.UnsupportedFileVersionException;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Date;
 
 /**
  * This is a singleton factory class used to load a PasswordSafe file.  It is
@@ -52,41 +55,34 @@ public class PwsFileFactory
      * @return the password encoding
      * @throws InvalidPassphraseException If the passphrase is not the
      * correct one for the file.
+     * @throws InterruptedIOException If the check is interrupted
      */
     private static String checkPassword(byte[] header,
                                         Owner<PwsPassword>.Param passwdParam)
-            throws InvalidPassphraseException
+            throws InvalidPassphraseException, InterruptedIOException
     {
-        byte[] phash;
-        String encoding = null;
-
         byte[] stuff = Util.getBytes(header, 0, PwsFile.STUFF_LENGTH);
-        byte[] fhash = Util.getBytes(header, PwsFile.STUFF_LENGTH,
-                                     PwsFile.HASH_LENGTH);
-        byte[] fudged = new byte[PwsFile.STUFF_LENGTH + 2];
+        final byte[] fhash = Util.getBytes(header, PwsFile.STUFF_LENGTH,
+                                           PwsFile.HASH_LENGTH);
+        final byte[] fudged = new byte[PwsFile.STUFF_LENGTH + 2];
         System.arraycopy(stuff, 0, fudged, 0, PwsFile.STUFF_LENGTH);
 
-        boolean validPassword = false;
-        for (String charset : PwsFile.getPasswordEncodings()) {
-            try {
-                phash = genRandHash(passwdParam, charset, fudged);
-            } catch (UnsupportedEncodingException e) {
-                // Skip this charset
-                continue;
-            }
-
-            if (Util.bytesAreEqual(fhash, phash)) {
-                validPassword = true;
-                encoding = charset;
-                break;
-            }
-        }
+        PwsPasswordCheck.Result<Boolean> result =
+                new PwsPasswordCheck<Boolean>()
+                {
+                    @Override
+                    protected Boolean check(byte[] passwd)
+                    {
+                        byte[] phash = genRandHash(passwd, fudged);
+                        return Util.bytesAreEqual(fhash, phash) ? true : null;
+                    }
+                }.run(passwdParam, PwsFile.getPasswordEncodings());
 
-        if (!validPassword) {
+        if (result == null) {
             throw new InvalidPassphraseException();
         }
 
-        return encoding;
+        return result.itsEncoding;
     }
 
     static byte[] genRandHash(Owner<PwsPassword>.Param passwdParam,
@@ -117,22 +113,33 @@ public class PwsFileFactory
                                       byte[] stuff)
             throws UnsupportedEncodingException
     {
-        SHA1 md;
-        BlowfishPwsECB ecb;
-        byte[] digest;
-        byte[] tmp;
-
         Owner<PwsPassword> passwd = passwdParam.use();
         try {
-            byte[] pw = passwd.get().getBytes(charEnc);
-            md = new SHA1();
-            md.update(stuff, 0, stuff.length);
-            md.update(pw, 0, pw.length);
-            md.finish();
-            digest = md.getDigest();
+            return genRandHash(passwd.get().getBytes(charEnc), stuff);
         } finally {
             passwd.close();
         }
+    }
+
+    /**
+     * Generates a checksum from the encoded passphrase and some random bytes.
+     *
+     * @param pw    the passphrase bytes.
+     * @param stuff the random bytes.
+     * @return the generated checksum.
+     */
+    private static byte[] genRandHash(byte[] pw, byte[] stuff)
+    {
+        SHA1 md;
+        BlowfishPwsECB ecb;
+        byte[] digest;
+        byte[] tmp;
+
+        md = new SHA1();
+        md.update(stuff, 0, stuff.length);
+        md.update(pw, 0, pw.length);
+        md.finish();
+        digest = md.getDigest();
 
         try {
             ecb = new BlowfishPwsECB(digest);
@@ -175,7 +182,7 @@ public class PwsFileFactory
             throws EndOfFileException, InvalidPassphraseException, IOException,
                    UnsupportedFileVersionException
     {
-        PwsStorage storage = new PwsFileStorage(filename, filename);
+        PwsStorage storage = new PwsChannelStorage(filename, filename);
         return loadFromStorage(storage, passwd);
     }
 
@@ -227,15 +234,204 @@ public class PwsFileFactory
             file.close();
             return file;
         } finally {
+            closeAfterLoad(storage);
+        }
+    }
+
+    /**
+     * Peeks at the header of a Password Safe file without loading its
+     * records.  The version and iterations of a V3 file are read from the
+     * unencrypted start of the file.  If the passphrase is given, only the
+     * header record is decrypted to get the details of the last save, and
+     * the reading stops before the first record.  Files older than version
+     * 3 only report their size.
+     *
+     * @param filename the name of the file to peek
+     * @param passwd   the passphrase for the file; null to not read the
+     *                 header record
+     * @return the information about the file
+     * @throws EndOfFileException
+     * @throws InvalidPassphraseException
+     * @throws IOException
+     */
+    public static PwsFileInfo peekHeader(String filename,
+                                         Owner<PwsPassword>.Param passwd)
+            throws EndOfFileException, InvalidPassphraseException, IOException
+    {
+        PwsStorage storage = new PwsChannelStorage(filename, filename);
+        return peekHeader(storage, passwd);
+    }
+
+    /**
+     * Peeks at the header of a Password Safe file without loading its
+     * records.
+     *
+     * @param storage the password storage
+     * @param passwd  the passphrase for the file; null to not read the
+     *                header record
+     * @return the information about the file
+     * @throws EndOfFileException
+     * @throws InvalidPassphraseException
+     * @throws IOException
+     * @see #peekHeader(String, Owner.Param)
+     */
+    public static PwsFileInfo peekHeader(PwsStorage storage,
+                                         Owner<PwsPassword>.Param passwd)
+            throws EndOfFileException, InvalidPassphraseException, IOException
+    {
+        try {
+            // The buffer of a file is mapped, so only the pages which are
+            // read are loaded
+            ByteBuffer fileData = storage.loadBuffer().slice();
+            long fileSize = fileData.limit();
+            if (!isV3(fileData)) {
+                return new PwsFileInfo(0, 0, fileSize);
+            }
+
+            PwsFileHeaderV3 header = PwsFieldReaderV3.readHeader(fileData);
+            if (passwd == null) {
+                return new PwsFileInfo(PwsFileV3.VERSION, header.getIter(),
+                                       fileSize);
+            }
+
+            PwsFieldReaderV3 reader =
+                    new PwsFieldReaderV3(fileData, header, passwd);
             try {
-                storage.closeAfterLoad();
-            } catch (IOException ioe) {
-                LOG.error("Error closing file " + storage.getIdentifier(),
-                          ioe);
+                return readHeaderRecord(reader, header.getIter(), fileSize);
+            } finally {
+                reader.close();
             }
+        } finally {
+            closeAfterLoad(storage);
         }
     }
 
+    /**
+     * Verifies the integrity of a V3 file by checking its HMAC without
+     * creating its records.  The fields are decrypted in chunks and only
+     * added to the HMAC, so the plaintext is discarded immediately and the
+     * memory used does not depend on the size of the file.
+     *
+     * @param storage the password storage
+     * @param passwd  the passphrase for the file
+     * @return true if the HMAC matches; false if the file has been changed
+     * @throws EndOfFileException
+     * @throws InvalidPassphraseException
+     * @throws IOException
+     * @throws UnsupportedFileVersionException If the file is older than
+     * version 3 which has no HMAC
+     */
+    public static boolean verify(PwsStorage storage,
+                                 Owner<PwsPassword>.Param passwd)
+            throws EndOfFileException, InvalidPassphraseException, IOException,
+                   UnsupportedFileVersionException
+    {
+        try {
+            ByteBuffer fileData = storage.loadBuffer().slice();
+            if (!isV3(fileData)) {
+                throw new UnsupportedFileVersionException();
+            }
+
+            PwsFieldReaderV3 reader = new PwsFieldReaderV3(
+                    fileData, PwsFieldReaderV3.readHeader(fileData), passwd);
+            try {
+                return reader.verify();
+            } finally {
+                reader.close();
+            }
+        } finally {
+            closeAfterLoad(storage);
+        }
+    }
+
+    /**
+     * Close the storage after it is loaded
+     */
+    private static void closeAfterLoad(PwsStorage storage)
+    {
+        try {
+            storage.closeAfterLoad();
+        } catch (IOException ioe) {
+            LOG.error("Error closing file " + storage.getIdentifier(), ioe);
+        }
+    }
+
+    /**
+     * Is the file data from a V3 file
+     */
+    private static boolean isV3(ByteBuffer fileData)
+    {
+        if (fileData.limit() < PwsFileV3.ID_STRING.length) {
+            return false;
+        }
+        for (int i = 0; i < PwsFileV3.ID_STRING.length; ++i) {
+            if (fileData.get(i) != PwsFileV3.ID_STRING[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read the fields of the header record for the details of the last save
+     */
+    private static PwsFileInfo readHeaderRecord(PwsFieldReaderV3 reader,
+                                                int iter, long fileSize)
+            throws EndOfFileException, IOException
+    {
+        Date saveTime = null;
+        String saveUser = null;
+        String saveHost = null;
+        String saveApp = null;
+        String saveWho = null;
+        while (reader.nextField() &&
+               (reader.getFieldType() != PwsRecordV3.END_OF_RECORD)) {
+            switch (reader.getFieldType()) {
+            case PwsRecordV3.HEADER_LAST_SAVE_TIME: {
+                saveTime = PwsRecordV3.getHeaderLastSaveTime(
+                        reader.getFieldData());
+                break;
+            }
+            case PwsRecordV3.HEADER_LAST_SAVE_WHO: {
+                saveWho = getHeaderString(reader.getFieldData());
+                break;
+            }
+            case PwsRecordV3.HEADER_LAST_SAVE_WHAT: {
+                saveApp = getHeaderString(reader.getFieldData());
+                break;
+            }
+            case PwsRecordV3.HEADER_LAST_SAVE_USER: {
+                saveUser = getHeaderString(reader.getFieldData());
+                break;
+            }
+            case PwsRecordV3.HEADER_LAST_SAVE_HOST: {
+                saveHost = getHeaderString(reader.getFieldData());
+                break;
+            }
+            }
+        }
+
+        if ((saveWho != null) && (saveUser == null) && (saveHost == null)) {
+            String[] userHost = PwsRecordV3.splitHeaderLastSaveWho(saveWho);
+            if (userHost != null) {
+                saveUser = userHost[0];
+                saveHost = userHost[1];
+            }
+        }
+
+        return new PwsFileInfo(PwsFileV3.VERSION, iter, fileSize, true,
+                               saveTime, saveUser, saveHost, saveApp);
+    }
+
+    /**
+     * Get a string from a header field
+     */
+    private static String getHeaderString(byte[] bytes)
+            throws UnsupportedEncodingException
+    {
+        return new String(bytes, "UTF-8");
+    }
+
     /**
      * Creates a new, empty PasswordSafe database in memory.  The database will
      * always be the latest version supported by this library which for this
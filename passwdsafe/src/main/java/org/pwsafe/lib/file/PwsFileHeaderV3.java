@@ -16,6 +16,8 @@ import org.pwsafe.lib.exception.EndOfFileException;
 import java.io.IOException;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * This class encapsulates the header fields of a PasswordSafe database.  The
@@ -46,9 +48,14 @@ public class PwsFileHeaderV3 implements Serializable
 {
     private static final long serialVersionUID = 1L;
 
+    /**
+     * The length of the header in the file
+     */
+    static final int LENGTH = 4 + 32 + 4 + 32 + (5 * 16);
+
     private byte[] tag = new byte[4];
     private final byte[] salt = new byte[32];
-    private final int iter;
+    private int iter;
     private byte[] password = new byte[32];
     private byte[] b1 = new byte[16];
     private byte[] b2 = new byte[16];
@@ -63,7 +70,7 @@ public class PwsFileHeaderV3 implements Serializable
     PwsFileHeaderV3()
     {
         tag = PwsFileV3.ID_STRING;
-        iter = 2048;
+        iter = PwsStretchCalibration.MIN_ITER;
         Util.newRandBytes(salt);
         Util.newRandBytes(IV);
     }
@@ -94,6 +101,49 @@ public class PwsFileHeaderV3 implements Serializable
         file.readBytes(IV);
     }
 
+    /**
+     * Constructs the file header from the bytes created by
+     * {@link #getBytes()}.
+     *
+     * @param bytes the header bytes.
+     */
+    PwsFileHeaderV3(byte[] bytes)
+    {
+        ByteBuffer buf = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        buf.get(tag);
+        buf.get(salt);
+        iter = buf.getInt();
+        buf.get(password);
+        buf.get(b1);
+        buf.get(b2);
+        buf.get(b3);
+        buf.get(b4);
+        buf.get(IV);
+    }
+
+    /**
+     * Gets the header fields as bytes in the same layout as the file.
+     *
+     * @return the header bytes.
+     */
+    byte[] getBytes()
+    {
+        ByteBuffer buf = ByteBuffer.allocate(
+                tag.length + salt.length + 4 + password.length +
+                b1.length + b2.length + b3.length + b4.length + IV.length);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        buf.put(tag);
+        buf.put(salt);
+        buf.putInt(iter);
+        buf.put(password);
+        buf.put(b1);
+        buf.put(b2);
+        buf.put(b3);
+        buf.put(b4);
+        buf.put(IV);
+        return buf.array();
+    }
+
     /**
      * Gets a copy of Salt.
      *
@@ -212,21 +262,40 @@ public class PwsFileHeaderV3 implements Serializable
     private void update(Owner<PwsPassword>.Param passwdParam, PwsFileV3 file)
             throws UnsupportedEncodingException
     {
-        // According to the spec, salt is just random data. I don't think
-        // though,
-        // that it's good practice to directly expose the generated randomness
-        // to the attacker. Therefore, we'll hash the salt.
-        updateRandHashedBytes(salt);
         updateRandHashedBytes(IV);
 
-        Owner<PwsPassword> passwd = passwdParam.use();
-        try {
-            final byte[] stretchedPassword =
-                    Util.stretchPassphrase(
-                            passwd.get().getBytes(
-                                    PwsFile.getUpdatePasswordEncoding()),
-                            salt, iter);
+        // Raise the iterations to meet the unlock time budget on this device
+        iter = PwsStretchCalibration.getSaveIter(iter);
+
+        // Stretching the passphrase is slow, so reuse the key cached by the
+        // file unless a rotation is requested or the parameters changed.
+        String encoding = PwsFile.getUpdatePasswordEncoding();
+        byte[] stretchedPassword = null;
+        if (!file.isKeyRotation()) {
+            stretchedPassword = file.getStretchedKey(salt, iter, encoding);
+        }
 
+        if (stretchedPassword == null) {
+            // According to the spec, salt is just random data. I don't think
+            // though, that it's good practice to directly expose the
+            // generated randomness to the attacker. Therefore, we'll hash
+            // the salt.
+            updateRandHashedBytes(salt);
+
+            Owner<PwsPassword> passwd = passwdParam.use();
+            try {
+                long start = System.nanoTime();
+                stretchedPassword = Util.stretchPassphrase(
+                        passwd.get().getBytes(encoding), salt, iter);
+                PwsStretchCalibration.recordStretch(
+                        iter, System.nanoTime() - start);
+            } finally {
+                passwd.close();
+            }
+            file.setStretchedKey(stretchedPassword, salt, iter, encoding);
+        }
+
+        try {
             password = SHA256Pws.digest(stretchedPassword);
 
             final byte[] b1pt = new byte[16];
@@ -252,7 +321,7 @@ public class PwsFileHeaderV3 implements Serializable
             file.decryptedHmacKey = Util.mergeBytes(b3pt, b4pt);
             file.hasher = new HmacPws(file.decryptedHmacKey);
         } finally {
-            passwd.close();
+            Util.clearArray(stretchedPassword);
         }
     }
 
@@ -0,0 +1,69 @@
+/*
+ * Copyright (©) 2017 Jeff Harris <jefftharris@gmail.com>
+ * All rights reserved. Use of the code is allowed under the
+ * Artistic License 2.0 terms, as specified in the LICENSE file
+ * distributed with this code, or available from
+ * http://www.opensource.org/licenses/artistic-license-2.0.php
+ */
+package org.pwsafe.lib.file;
+
+import java.util.Date;
+
+/**
+ * Information about a PasswordSafe file read from its header without
+ * loading its records
+ */
+public final class PwsFileInfo
+{
+    /**
+     * The major version of the file; zero for a file older than version 3
+     * whose version is only known by loading it
+     */
+    public final int itsVersion;
+
+    /** The number of iterations to stretch the passphrase; zero if unknown */
+    public final int itsIter;
+
+    /** The size of the file in bytes */
+    public final long itsFileSize;
+
+    /** Whether the header record was read using the passphrase */
+    public final boolean itsIsHeaderRecordRead;
+
+    /** The time of the last save; null if not known */
+    public final Date itsLastSaveTime;
+
+    /** The user of the last save; null if not known */
+    public final String itsLastSaveUser;
+
+    /** The host of the last save; null if not known */
+    public final String itsLastSaveHost;
+
+    /** The application of the last save; null if not known */
+    public final String itsLastSaveApp;
+
+    /**
+     * Constructor for the information from the unencrypted start of a file
+     */
+    PwsFileInfo(int version, int iter, long fileSize)
+    {
+        this(version, iter, fileSize, false, null, null, null, null);
+    }
+
+    /**
+     * Constructor
+     */
+    PwsFileInfo(int version, int iter, long fileSize,
+                boolean headerRecordRead, Date lastSaveTime,
+                String lastSaveUser, String lastSaveHost, String lastSaveApp)
+    {
+        itsVersion = version;
+        itsIter = iter;
+        itsFileSize = fileSize;
+        itsIsHeaderRecordRead = headerRecordRead;
+        itsLastSaveTime = lastSaveTime;
+        itsLastSaveUser = lastSaveUser;
+        itsLastSaveHost = lastSaveHost;
+        itsLastSaveApp = lastSaveApp;
+    }
+}
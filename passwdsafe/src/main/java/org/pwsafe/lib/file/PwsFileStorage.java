@@ -9,10 +9,12 @@ package org.pwsafe.lib.file;
 
 import org.pwsafe.lib.Log;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Date;
 
 /**
@@ -29,6 +31,11 @@ public class PwsFileStorage extends PwsStreamStorage
     private static final Log LOG = Log
             .getInstance(PwsFileStorage.class.getPackage().getName());
 
+    /**
+     * Length of the buffer used when writing a saved file
+     */
+    static final int SAVE_BUFFER_LEN = 64 * 1024;
+
     /*
      * Build an implementation given the filename for the underlying storage.
      */
@@ -39,6 +46,14 @@ public class PwsFileStorage extends PwsStreamStorage
               (fileToOpen == null) ? null : new FileInputStream(fileToOpen));
     }
 
+    /**
+     * Constructor for subclasses which load the file themselves
+     */
+    protected PwsFileStorage(String identifier)
+    {
+        super(identifier, null);
+    }
+
     /**
      * Takes the (encrypted) bytes and writes them out to the file.
      * <p/>
@@ -47,53 +62,106 @@ public class PwsFileStorage extends PwsStreamStorage
      * new file has been successfully saved.
      */
     @Override
-    public boolean save(byte[] data, boolean isV3)
+    public boolean save(final byte[] data, boolean isV3)
     {
         try {
-            File file = new File(getIdentifier());
-            if (!file.exists()) {
-                /* Original file doesn't exist, just go ahead and write it
-                 * (no backup, temp files needed).
-                 */
-                writeFile(file, data);
-                return true;
-            }
-            File dir = file.getCanonicalFile().getParentFile();
-            if (dir == null) {
-                LOG.error("Couldn't find the parent directory for: " +
-                          file.getAbsolutePath());
-                return false;
-            }
-            File FilePath = dir.getAbsoluteFile();
-            File fromFile = new File(FilePath, file.getName());
-            File toFile = new File(FilePath,
-                                   getSaveFileName(file, isV3));
+            return save(new SaveWriter()
+            {
+                @Override
+                public void write(OutputStream out) throws IOException
+                {
+                    out.write(data);
+                }
+            }, isV3);
+        } catch (Exception e) {
+            LOG.error(e.getMessage());
+            return false;
+        }
+    }
 
-            File tempFile = null;
-            try {
-                tempFile = File.createTempFile("pwsafe", null,
-                                               FilePath);
-                writeFile(tempFile, data);
+    /**
+     * Streams the (encrypted) bytes from the writer out to the file.  As
+     * with {@link #save(byte[], boolean)}, the original file is not
+     * overwritten or deleted until the new file has been successfully saved.
+     */
+    @Override
+    public boolean save(SaveWriter writer, boolean isV3) throws IOException
+    {
+        File file = new File(getIdentifier());
+        if (!file.exists()) {
+            /* Original file doesn't exist, just go ahead and write it
+             * (no backup, temp files needed).
+             */
+            writeSaveFile(file, writer);
+            return true;
+        }
+        File dir = file.getCanonicalFile().getParentFile();
+        if (dir == null) {
+            LOG.error("Couldn't find the parent directory for: " +
+                      file.getAbsolutePath());
+            return false;
+        }
+        File FilePath = dir.getAbsoluteFile();
+        File fromFile = new File(FilePath, file.getName());
+        File toFile = new File(FilePath,
+                               getSaveFileName(file, isV3));
 
-                createBackupFile(fromFile, toFile);
+        File tempFile = null;
+        try {
+            tempFile = File.createTempFile("pwsafe", null,
+                                           FilePath);
+            writeSaveFile(tempFile, writer);
 
-                if (tempFile.renameTo(toFile)) {
-                    tempFile = null;
-                } else {
-                    throw new IOException("Error renaming " + tempFile +
-                                          " to " + toFile);
-                }
-            } finally {
-                if ((tempFile != null) && !tempFile.delete()) {
-                    LOG.error("Error deleting temp file");
-                }
+            createBackupFile(fromFile, toFile);
+
+            if (tempFile.renameTo(toFile)) {
+                tempFile = null;
+            } else {
+                throw new IOException("Error renaming " + tempFile +
+                                      " to " + toFile);
             }
+        } finally {
+            if ((tempFile != null) && !tempFile.delete()) {
+                LOG.error("Error deleting temp file");
+            }
+        }
 
-            return true;
-        } catch (Exception e) {
-            LOG.error(e.getMessage());
+        return true;
+    }
+
+    /**
+     * Streams the (encrypted) bytes out to the file, reusing the start of the
+     * current file.  The first <code>prefixLen</code> bytes are copied from
+     * the current file, followed by the bytes from the writer.
+     *
+     * @param prefixLen the length of the current file to reuse
+     * @param fileLen   the expected length of the current file
+     * @param writer    the writer of the bytes following the prefix
+     * @param isV3      Is the file version 3
+     * @return true if save was successful; false if the current file can not
+     * be reused
+     * @throws IOException if the contents could not be written
+     */
+    public boolean saveWithPrefix(final long prefixLen, long fileLen,
+                                  final SaveWriter writer, boolean isV3)
+            throws IOException
+    {
+        final File file = new File(getIdentifier());
+        if (!file.isFile() || (file.length() != fileLen) ||
+            (prefixLen > fileLen) ||
+            !getSaveFileName(file, isV3).equals(file.getName())) {
             return false;
         }
+
+        return save(new SaveWriter()
+        {
+            @Override
+            public void write(OutputStream out) throws IOException
+            {
+                copyPrefix(file, prefixLen, out);
+                writer.write(out);
+            }
+        }, isV3);
     }
 
     @Override
@@ -139,6 +207,55 @@ public class PwsFileStorage extends PwsStreamStorage
         }
     }
 
+    /**
+     * Copy the start of a file to a stream
+     */
+    private static void copyPrefix(File file, long len, OutputStream out)
+            throws IOException
+    {
+        FileInputStream inStream = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[SAVE_BUFFER_LEN];
+            while (len > 0) {
+                int numread = inStream.read(buf, 0,
+                                            (int)Math.min(len, buf.length));
+                if (numread < 0) {
+                    throw new IOException("Short read from " + file);
+                }
+                out.write(buf, 0, numread);
+                len -= numread;
+            }
+        } finally {
+            try {
+                inStream.close();
+            } catch (IOException e) {
+                LOG.error("close", e);
+            }
+        }
+    }
+
+    /**
+     * Write the saved data from the writer to a file
+     */
+    protected void writeSaveFile(File file, SaveWriter writer)
+            throws IOException
+    {
+        FileOutputStream fileStream = new FileOutputStream(file);
+        try {
+            OutputStream outStream =
+                    new BufferedOutputStream(fileStream, SAVE_BUFFER_LEN);
+            writer.write(outStream);
+            outStream.flush();
+            fileStream.getFD().sync();
+        } finally {
+            try {
+                fileStream.close();
+            } catch (IOException e) {
+                LOG.error("close", e);
+            }
+        }
+    }
+
     public static void writeFile(File file, byte[] data) throws IOException
     {
         FileOutputStream outStream = new FileOutputStream(file);
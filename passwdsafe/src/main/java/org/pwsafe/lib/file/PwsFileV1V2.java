@@ -8,7 +8,6 @@
 package org.pwsafe.lib.file;
 
 import org.pwsafe.lib.Log;
-import org.pwsafe.lib.Util;
 import org.pwsafe.lib.crypto.BlowfishPws;
 import org.pwsafe.lib.crypto.SHA1;
 import org.pwsafe.lib.exception.EndOfFileException;
@@ -45,6 +44,11 @@ public abstract class PwsFileV1V2 extends PwsFile
      */
     private BlowfishPws algorithm;
 
+    /**
+     * The reusable buffer for data encrypted as it is written to the file
+     */
+    private byte[] encryptBuf;
+
 
     /**
      * Create a v1 or v2 file from storage
@@ -163,7 +167,7 @@ public abstract class PwsFileV1V2 extends PwsFile
         }
         readBytes(buff);
         try {
-            algorithm.decrypt(buff);
+            algorithm.decrypt(buff, 0, buff.length, buff, 0);
         } catch (PasswordSafeException e) {
             LOG.error(e.getMessage());
         }
@@ -239,6 +243,7 @@ public abstract class PwsFileV1V2 extends PwsFile
         } finally {
             outStream = null;
             algorithm = null;
+            encryptBuf = null;
         }
     }
 
@@ -256,12 +261,14 @@ public abstract class PwsFileV1V2 extends PwsFile
             throw new IllegalArgumentException("buff length");
         }
 
-        byte[] temp = Util.cloneByteArray(buff);
+        if ((encryptBuf == null) || (encryptBuf.length < buff.length)) {
+            encryptBuf = new byte[Math.max(buff.length, 1024)];
+        }
         try {
-            algorithm.encrypt(temp);
+            algorithm.encrypt(buff, 0, buff.length, encryptBuf, 0);
         } catch (PasswordSafeException e) {
             LOG.error(e.getMessage());
         }
-        writeBytes(temp);
+        outStream.write(encryptBuf, 0, buff.length);
     }
 }
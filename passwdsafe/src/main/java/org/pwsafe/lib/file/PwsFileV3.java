@@ -7,26 +7,24 @@
  */
 package org.pwsafe.lib.file;
 
+import android.support.annotation.NonNull;
+
 import org.pwsafe.lib.Util;
 import org.pwsafe.lib.crypto.HmacPws;
 import org.pwsafe.lib.crypto.SHA256Pws;
 import org.pwsafe.lib.crypto.TwofishPws;
 import org.pwsafe.lib.exception.EndOfFileException;
-import org.pwsafe.lib.exception.MemoryKeyException;
 import org.pwsafe.lib.exception.UnsupportedFileVersionException;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.nio.charset.Charset;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.ConcurrentModificationException;
-import java.util.Iterator;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.SealedObject;
+import java.util.List;
 
 /**
  * Encapsulates version 3 PasswordSafe files.
@@ -46,14 +44,50 @@ public final class PwsFileV3 extends PwsFile
      */
     public static final byte[] ID_STRING = "PWS3".getBytes();
 
-    private SealedObject sealedHeaderV3;
+    private PwsSealedBytes sealedHeaderV3;
 
     /**
      * End of File marker. HMAC follows this tag.
      */
     private static final byte[] EOF_BYTES_RAW = "PWS3-EOFPWS3-EOF".getBytes();
 
-    private byte[] stretchedPassword;
+    /**
+     * Minimum length of record data to decrypt using multiple threads
+     */
+    private static final int PARALLEL_DECRYPT_MIN_LEN = 256 * 1024;
+
+    /**
+     * Number of threads to use when decrypting the records of a file
+     */
+    private static int itsDecryptThreads = 1;
+
+    /**
+     * Whether records are read using a pipeline of decrypt, parse, and HMAC
+     * stages
+     */
+    private static boolean itsIsPipelinedRead = false;
+
+    /**
+     * Whether saves only rewrite the records following the first changed
+     * record
+     */
+    private static boolean itsIsIncrementalSave = false;
+
+    /**
+     * The stretched passphrase sealed in memory along with the salt,
+     * iterations, and encoding used to create it.  The cache allows saves to
+     * reuse the key without stretching the passphrase again.
+     */
+    private PwsSealedBytes itsSealedStretchedKey;
+    private byte[] itsStretchedKeySalt;
+    private int itsStretchedKeyIter;
+    private String itsStretchedKeyEncoding;
+
+    /**
+     * Whether the salt and stretched key are rotated on the next save
+     */
+    private boolean itsIsKeyRotation;
+
     protected byte[] decryptedRecordKey;
     protected byte[] decryptedHmacKey;
 
@@ -61,6 +95,58 @@ public final class PwsFileV3 extends PwsFile
     HmacPws hasher;
     private PwsRecordV3 headerRecord;
 
+    /**
+     * The decrypted record data while the file is being read
+     */
+    private byte[] itsRecordData;
+
+    /**
+     * The read position in the decrypted record data
+     */
+    private int itsRecordDataPos;
+
+    /**
+     * The pipeline decrypting and hashing the record data if a pipelined
+     * read is in progress
+     */
+    private PwsReadPipeline itsReadPipeline;
+
+    /**
+     * Scratch buffer for encrypting data while the file is being written
+     */
+    private byte[] itsWriteBuf;
+
+    /**
+     * The last encrypted block written to the file
+     */
+    private byte[] itsLastCipherBlock;
+
+    /**
+     * The state at the start of each record and the end of file marker from
+     * the last save if incremental saves are enabled
+     */
+    private List<SaveState> itsSaveStates;
+
+    /**
+     * The change count of the header record from the last save
+     */
+    private int itsSavedHeaderChanges;
+
+    /**
+     * The length of the file from the last save
+     */
+    private long itsSavedFileLen;
+
+    /**
+     * The storage used for the last save
+     */
+    private PwsStorage itsSavedStorage;
+
+    /**
+     * The lowest index of a record set since the last save
+     */
+    private int itsFirstSetRecord;
+
     /**
      * Constructs and initialises a new, empty version 3 PasswordSafe
      * database in memory.
@@ -101,39 +187,15 @@ public final class PwsFileV3 extends PwsFile
     public void dispose()
     {
         super.dispose();
-        if (stretchedPassword != null)
-            Arrays.fill(stretchedPassword, (byte)0);
+        clearRecordData();
+        clearStretchedKey();
+        clearSaveStates();
         if (decryptedHmacKey != null)
             Arrays.fill(decryptedHmacKey, (byte)0);
         if (decryptedRecordKey != null)
             Arrays.fill(decryptedRecordKey, (byte)0);
     }
 
-    private byte[] checkPassword(Owner<PwsPassword>.Param passwdParam,
-                                 String encoding,
-                                 PwsFileHeaderV3 headerV3,
-                                 int iter)
-    {
-        try {
-            Owner<PwsPassword> passwd = passwdParam.use();
-            try {
-                byte[] stretch =
-                        Util.stretchPassphrase(passwd.get().getBytes(encoding),
-                                               headerV3.getSalt(), iter);
-                if (Util.bytesAreEqual(headerV3.getPassword(),
-                                       SHA256Pws.digest(stretch))) {
-                    return stretch;
-                }
-            } finally {
-                passwd.close();
-            }
-        } catch (UnsupportedEncodingException e) {
-            // Skip this charset
-        }
-
-        return null;
-    }
-
     @Override
     protected void open(Owner<PwsPassword>.Param passwdParam, String encoding)
             throws EndOfFileException, IOException,
@@ -141,76 +203,238 @@ public final class PwsFileV3 extends PwsFile
     {
         setPassphrase(passwdParam);
 
-        if (storage != null) {
-            inStream = new ByteArrayInputStream(storage.load());
-            lastStorageChange = storage.getModifiedDate();
-        }
+        ByteBuffer fileData = storage.loadBuffer().slice();
+        PwsBufferInputStream headerStream =
+                new PwsBufferInputStream(fileData.duplicate());
+        inStream = headerStream;
+        lastStorageChange = storage.getModifiedDate();
         PwsFileHeaderV3 theHeaderV3 = new PwsFileHeaderV3(this);
 
         setHeaderV3(theHeaderV3);
 
-        int iter = theHeaderV3.getIter();
-        stretchedPassword = null;
+        final int iter = theHeaderV3.getIter();
+        PwsPasswordCheck.Result<byte[]> result =
+                checkPassword(theHeaderV3, passwdParam, encoding);
+        if (result == null) {
+            throw new IOException("Invalid password");
+        }
+        byte[] stretchedPassword = result.itsValue;
+        encoding = result.itsEncoding;
+
+        setOpenPasswordEncoding(encoding);
+
+        try {
+            decryptedRecordKey = decryptKey(stretchedPassword,
+                                            theHeaderV3.getB1(),
+                                            theHeaderV3.getB2());
+            decryptedHmacKey = decryptKey(stretchedPassword,
+                                          theHeaderV3.getB3(),
+                                          theHeaderV3.getB4());
+            hasher = new HmacPws(decryptedHmacKey);
+
+            setStretchedKey(stretchedPassword, theHeaderV3.getSalt(), iter,
+                            encoding);
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new IOException("Error reading encrypted fields");
+        } finally {
+            Util.clearArray(stretchedPassword);
+        }
+        twofishCbc = new TwofishPws(decryptedRecordKey, false,
+                                    theHeaderV3.getIV());
+
+        try {
+            decryptRecordData(fileData, headerStream.getPosition(),
+                              theHeaderV3.getIV());
+            readExtraHeader(this);
+        } catch (IOException | RuntimeException e) {
+            clearRecordData();
+            throw e;
+        }
+    }
+
+    /**
+     * Check the passphrase against the header of a file by stretching it
+     * with each of the password encodings
+     *
+     * @param header      the file header
+     * @param passwdParam the passphrase
+     * @param encoding    the encoding to try first; null for none
+     * @return the stretched passphrase and its encoding; null if the
+     * passphrase is not correct
+     * @throws InterruptedIOException if the check is interrupted
+     */
+    static PwsPasswordCheck.Result<byte[]> checkPassword(
+            PwsFileHeaderV3 header, Owner<PwsPassword>.Param passwdParam,
+            String encoding)
+            throws InterruptedIOException
+    {
+        final int iter = header.getIter();
+        final byte[] salt = header.getSalt();
+        final byte[] passwdHash = header.getPassword();
 
+        List<String> encodings = new ArrayList<>();
         if (encoding != null) {
-            stretchedPassword = checkPassword(passwdParam, encoding,
-                                              theHeaderV3, iter);
+            encodings.add(encoding);
         }
+        encodings.addAll(PwsFile.getPasswordEncodings());
+        //try another method to avoid asymmetric encoding bug in V0.8 Beta1
+        encodings.add(null);
 
-        if (stretchedPassword == null) {
-            for (String charset : PwsFile.getPasswordEncodings()) {
-                stretchedPassword = checkPassword(passwdParam, charset,
-                                                  theHeaderV3, iter);
-                if (stretchedPassword != null) {
-                    encoding = charset;
-                    break;
+        return new PwsPasswordCheck<byte[]>()
+        {
+            @Override
+            protected byte[] check(byte[] passwd)
+                    throws InterruptedIOException
+            {
+                byte[] stretch =
+                        Util.stretchPassphraseInterruptibly(passwd, salt, iter);
+                if (Util.bytesAreEqual(passwdHash,
+                                       SHA256Pws.digest(stretch))) {
+                    return stretch;
                 }
+                Util.clearArray(stretch);
+                return null;
             }
+        }.run(passwdParam, encodings);
+    }
+
+    /**
+     * Decrypt a key from the two halves encrypted with the stretched
+     * passphrase in the file header
+     */
+    static byte[] decryptKey(byte[] stretchedPassword, byte[] a, byte[] b)
+    {
+        byte[] ka = TwofishPws.processECB(stretchedPassword, false, a);
+        byte[] kb = TwofishPws.processECB(stretchedPassword, false, b);
+        try {
+            return Util.mergeBytes(ka, kb);
+        } finally {
+            Util.clearArray(ka);
+            Util.clearArray(kb);
         }
+    }
 
-        if (stretchedPassword == null) {
-            //try another method to avoid asymmetric encoding bug in V0.8 Beta1
-            Owner<PwsPassword> passwd = passwdParam.use();
-            try {
-                stretchedPassword = Util.stretchPassphrase(
-                        passwd.get().getBytes(null),
-                        theHeaderV3.getSalt(), iter);
-                if (Util.bytesAreEqual(theHeaderV3.getPassword(),
-                                       SHA256Pws.digest(stretchedPassword))) {
-                    encoding = Charset.defaultCharset().name();
-                } else {
-                    throw new IOException("Invalid password");
-                }
-            } finally {
-                passwd.close();
-            }
+    @Override
+    void readAll() throws IOException, UnsupportedFileVersionException
+    {
+        try {
+            super.readAll();
+        } finally {
+            clearRecordData();
         }
+    }
 
-        setOpenPasswordEncoding(encoding);
+    /**
+     * Decrypt all of the record data in the file following the header, or
+     * start the pipeline to decrypt it if a pipelined read is enabled.  The
+     * input stream is positioned after the end of file marker.
+     *
+     * @param fileData the contents of the file
+     * @param offset   the offset of the start of the records
+     * @param iv       the IV for the record data
+     */
+    private void decryptRecordData(ByteBuffer fileData, int offset, byte[] iv)
+            throws IOException
+    {
+        int blockSize = getBlockSize();
+        int dataEnd = findEndOfFile(fileData, offset);
+        int streamPos;
+        if (dataEnd >= 0) {
+            streamPos = dataEnd + EOF_BYTES_RAW.length;
+        } else {
+            // No end marker, so use all of the whole blocks
+            dataEnd = offset +
+                      (((fileData.limit() - offset) / blockSize) * blockSize);
+            streamPos = fileData.limit();
+        }
 
+        clearRecordData();
         try {
+            itsRecordData = new byte[dataEnd - offset];
+        } catch (OutOfMemoryError e) {
+            throw new IOException("Out of memory.  File too large: " +
+                                  fileData.limit());
+        }
+        itsRecordDataPos = 0;
+        ByteBuffer trailer = fileData.duplicate();
+        trailer.position(streamPos);
+        inStream = new PwsBufferInputStream(trailer);
 
-            byte[] rka = TwofishPws.processECB(stretchedPassword, false,
-                                               theHeaderV3.getB1());
-            byte[] rkb = TwofishPws.processECB(stretchedPassword, false,
-                                               theHeaderV3.getB2());
-            decryptedRecordKey = Util.mergeBytes(rka, rkb);
-
-            byte[] hka = TwofishPws.processECB(stretchedPassword, false,
-                                               theHeaderV3.getB3());
-            byte[] hkb = TwofishPws.processECB(stretchedPassword, false,
-                                               theHeaderV3.getB4());
-            decryptedHmacKey = Util.mergeBytes(hka, hkb);
-            hasher = new HmacPws(decryptedHmacKey);
+        if (isPipelinedRead()) {
+            itsReadPipeline = new PwsReadPipeline(fileData, offset,
+                                                  itsRecordData, twofishCbc,
+                                                  hasher);
+            itsReadPipeline.start();
+            return;
+        }
 
+        int numThreads = getDecryptThreads();
+        try {
+            if ((numThreads > 1) &&
+                (itsRecordData.length >= PARALLEL_DECRYPT_MIN_LEN)) {
+                TwofishPws.decryptCBC(decryptedRecordKey, iv,
+                                      fileData, offset, itsRecordData.length,
+                                      itsRecordData, 0, numThreads);
+            } else {
+                twofishCbc.processCBC(fileData, offset, itsRecordData.length,
+                                      itsRecordData, 0);
+            }
         } catch (Exception e) {
             e.printStackTrace();
-            throw new IOException("Error reading encrypted fields");
+            throw new IOException("Error decrypting field");
         }
-        twofishCbc = new TwofishPws(decryptedRecordKey, false,
-                                    theHeaderV3.getIV());
+    }
+
+    /**
+     * Find the offset of the end of file marker in the file data
+     *
+     * @param fileData the contents of the file
+     * @param offset   the offset of the start of the records
+     * @return the offset of the marker; -1 if not found
+     */
+    private int findEndOfFile(ByteBuffer fileData, int offset)
+    {
+        int blockSize = getBlockSize();
+        byte eof0 = EOF_BYTES_RAW[0];
+        for (int pos = offset; pos + blockSize <= fileData.limit();
+             pos += blockSize) {
+            if (fileData.get(pos) != eof0) {
+                continue;
+            }
+            int i = 1;
+            while ((i < blockSize) &&
+                   (fileData.get(pos + i) == EOF_BYTES_RAW[i])) {
+                ++i;
+            }
+            if (i == blockSize) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Clear the decrypted record data
+     */
+    private void clearRecordData()
+    {
+        if (itsReadPipeline != null) {
+            itsReadPipeline.cancel();
+            itsReadPipeline = null;
+        }
+        if (itsRecordData != null) {
+            Arrays.fill(itsRecordData, (byte)0);
+            itsRecordData = null;
+        }
+        itsRecordDataPos = 0;
+    }
 
-        readExtraHeader(this);
+    @Override
+    void close() throws IOException
+    {
+        clearRecordData();
+        super.close();
     }
 
 
@@ -233,51 +457,204 @@ public final class PwsFileV3 extends PwsFile
                     "possible!");
         }
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        outStream = baos;
-
+        final List<SaveState> states =
+                isIncrementalSave() ? new ArrayList<SaveState>() : null;
         try {
-            PwsFileHeaderV3 theHeaderV3 = getHeaderV3();
-            theHeaderV3.save(this);
+            boolean saved = false;
+            final int start = getIncrementalSaveStart();
+            if (start >= 0) {
+                saved = ((PwsFileStorage)storage).saveWithPrefix(
+                        itsSaveStates.get(start).itsOffset, itsSavedFileLen,
+                        new PwsStorage.SaveWriter()
+                        {
+                            @Override
+                            public void write(OutputStream out)
+                                    throws IOException
+                            {
+                                writeFileSuffix(out, start, states);
+                            }
+                        }, true);
+            }
+            if (!saved) {
+                if (states != null) {
+                    states.clear();
+                }
+                saved = storage.save(new PwsStorage.SaveWriter()
+                {
+                    @Override
+                    public void write(OutputStream out) throws IOException
+                    {
+                        writeFile(out, states);
+                    }
+                }, true);
+            }
+            if (!saved) {
+                throw new IOException("Unable to save file");
+            }
+            modified = false;
+            itsIsKeyRotation = false;
+            lastStorageChange = storage.getModifiedDate();
+            setSaveStates(states);
+        } catch (IOException | RuntimeException e) {
+            clearSaveStates();
+            throw e;
+        } finally {
+            outStream = null;
+            if (itsWriteBuf != null) {
+                Arrays.fill(itsWriteBuf, (byte)0);
+                itsWriteBuf = null;
+            }
+        }
+    }
 
-            // Can only be created once the V3 header resets key info
+    /**
+     * Writes the header and records of the file to a stream.  The records
+     * are encrypted through a scratch buffer sized to the largest field, so
+     * the file is never held in memory as a whole.
+     *
+     * @param out    the stream for the file contents
+     * @param states the list for the state at each record if saving
+     *               incrementally; null otherwise
+     * @throws IOException if the attempt fails.
+     */
+    private void writeFile(OutputStream out, List<SaveState> states)
+            throws IOException
+    {
+        CountingOutputStream countingOut = new CountingOutputStream(out, 0);
+        outStream = countingOut;
 
-            twofishCbc = new TwofishPws(decryptedRecordKey, true,
-                                        theHeaderV3.getIV());
+        PwsFileHeaderV3 theHeaderV3 = getHeaderV3();
+        theHeaderV3.save(this);
+        setHeaderV3(theHeaderV3);
 
-            writeExtraHeader(this);
+        // Can only be created once the V3 header resets key info
 
-            PwsRecordV3 rec;
-            for (Iterator<? extends PwsRecord> iter = getRecords();
-                 iter.hasNext(); ) {
-                rec = (PwsRecordV3)iter.next();
-                if (!rec.isHeaderRecord())
-                    rec.saveRecord(this);
-            }
+        twofishCbc = new TwofishPws(decryptedRecordKey, true,
+                                    theHeaderV3.getIV());
+        itsLastCipherBlock = theHeaderV3.getIV();
 
-            outStream.write(PwsRecordV3.EOF_BYTES_RAW);
-            outStream.write(hasher.doFinal());
+        writeExtraHeader(this);
+        writeRecords(countingOut, 0, states);
+    }
 
-            outStream.close();
+    /**
+     * Writes the records of the file to a stream starting from a record
+     * written by the last save.  The stream already contains the contents of
+     * the file before the record, so the encryption and HMAC continue from
+     * their saved state.
+     *
+     * @param out    the stream for the file contents
+     * @param start  the index of the first record to write
+     * @param states the list for the state at each record
+     * @throws IOException if the attempt fails.
+     */
+    private void writeFileSuffix(OutputStream out, int start,
+                                 List<SaveState> states)
+            throws IOException
+    {
+        SaveState state = itsSaveStates.get(start);
+        CountingOutputStream countingOut =
+                new CountingOutputStream(out, state.itsOffset);
+        outStream = countingOut;
 
-            if (storage.save(baos.toByteArray(), true)) {
-                modified = false;
-                lastStorageChange = storage.getModifiedDate();
-            } else {
-                throw new IOException("Unable to save file");
+        twofishCbc = new TwofishPws(decryptedRecordKey, true, state.itsIV);
+        itsLastCipherBlock = Util.cloneByteArray(state.itsIV);
+        hasher = state.itsHmac.copy();
+
+        states.addAll(itsSaveStates.subList(0, start));
+        writeRecords(countingOut, start, states);
+    }
+
+    /**
+     * Writes the records from the given index followed by the end of file
+     * marker and HMAC
+     */
+    private void writeRecords(CountingOutputStream out, int start,
+                              List<SaveState> states)
+            throws IOException
+    {
+        int numRecs = getRecordCount();
+        for (int i = start; i < numRecs; ++i) {
+            PwsRecordV3 rec = (PwsRecordV3)getRecord(i);
+            if (states != null) {
+                states.add(new SaveState(rec, out.getCount()));
             }
-        } catch (IOException e) {
-            try {
-                if (outStream != null) {
-                    outStream.close();
-                }
-            } catch (Exception e2) {
-                // do nothing we're going to throw the original exception
+            if (!rec.isHeaderRecord())
+                rec.saveRecord(this);
+        }
+        if (states != null) {
+            states.add(new SaveState(null, out.getCount()));
+        }
+
+        outStream.write(PwsRecordV3.EOF_BYTES_RAW);
+        outStream.write(hasher.doFinal());
+        itsSavedFileLen = out.getCount();
+    }
+
+    /**
+     * Get the index of the first record to write for an incremental save
+     *
+     * @return the index; -1 if the whole file must be written
+     */
+    private int getIncrementalSaveStart()
+    {
+        if (!isIncrementalSave() || (itsSaveStates == null) ||
+            itsIsKeyRotation || (storage != itsSavedStorage) ||
+            !(storage instanceof PwsFileStorage) ||
+            (headerRecord.getChangeCount() != itsSavedHeaderChanges)) {
+            return -1;
+        }
+
+        int start = Math.min(itsFirstSetRecord,
+                             Math.min(getRecordCount(),
+                                      itsSaveStates.size() - 1));
+        for (int i = 0; i < start; ++i) {
+            PwsRecord rec = getRecord(i);
+            SaveState state = itsSaveStates.get(i);
+            if ((rec != state.itsRecord) ||
+                (rec.getChangeCount() != state.itsChangeCount)) {
+                return i;
             }
-            throw e;
-        } finally {
-            outStream = null;
         }
+        return start;
+    }
+
+    /**
+     * Set the states from a successful save.  The records are marked as
+     * unmodified so later changes can be found.
+     */
+    private void setSaveStates(List<SaveState> states)
+    {
+        if (states == null) {
+            clearSaveStates();
+            return;
+        }
+        itsSaveStates = states;
+        itsSavedStorage = storage;
+        itsSavedHeaderChanges = headerRecord.getChangeCount();
+        itsFirstSetRecord = Integer.MAX_VALUE;
+        headerRecord.resetModified();
+        for (int i = 0; i < getRecordCount(); ++i) {
+            getRecord(i).resetModified();
+        }
+    }
+
+    /**
+     * Clear the states from the last save so the next save writes the
+     * whole file
+     */
+    private void clearSaveStates()
+    {
+        itsSaveStates = null;
+        itsSavedStorage = null;
+        itsSavedFileLen = 0;
+        itsFirstSetRecord = 0;
+    }
+
+    @Override
+    void recordChanged(int index)
+    {
+        itsFirstSetRecord = Math.min(itsFirstSetRecord, index);
     }
 
 
@@ -357,22 +734,64 @@ public final class PwsFileV3 extends PwsFile
     public void readDecryptedBytes(byte[] buff)
             throws EndOfFileException, IOException
     {
-        if ((buff.length == 0) || ((buff.length % getBlockSize()) != 0)) {
+        readDecryptedBytes(buff, 0, buff.length);
+    }
+
+    /**
+     * Reads decrypted bytes from the file into part of a buffer.
+     * <code>len</code> must be a multiple of the block size.
+     *
+     * @param buff the buffer to read the bytes into.
+     * @param off  the offset in the buffer
+     * @param len  the number of bytes to read
+     * @throws EndOfFileException       If end of file has been reached.
+     * @throws IllegalArgumentException If <code>len</code> is not an
+     * integral multiple of the block size.
+     */
+    void readDecryptedBytes(byte[] buff, int off, int len)
+            throws EndOfFileException, IOException
+    {
+        if ((len == 0) || ((len % getBlockSize()) != 0)) {
             throw new IllegalArgumentException("buff length");
         }
-        readBytes(buff);
-        if (Util.bytesAreEqual(buff, EOF_BYTES_RAW)) {
+        if ((itsRecordData == null) ||
+            (len > itsRecordData.length - itsRecordDataPos)) {
             throw new EndOfFileException();
         }
+        if ((itsReadPipeline != null) &&
+            !itsReadPipeline.waitForData(itsRecordDataPos + len)) {
+            throw new EndOfFileException();
+        }
+        System.arraycopy(itsRecordData, itsRecordDataPos, buff, off, len);
+        itsRecordDataPos += len;
+    }
 
-        byte[] decrypted;
-        try {
-            decrypted = twofishCbc.processCBC(buff);
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new IOException("Error decrypting field");
+    /**
+     * Updates the HMAC with the data of a field read from the file.  The
+     * pipeline computes the HMAC itself during a pipelined read.
+     *
+     * @param data the field data
+     * @param len  the length of the field data
+     */
+    void digestReadField(byte[] data, int len)
+    {
+        if (itsReadPipeline == null) {
+            hasher.digest(data, 0, len);
         }
-        Util.copyBytes(decrypted, buff);
+    }
+
+    /**
+     * Finishes the HMAC of the fields read from the file
+     *
+     * @return the HMAC value
+     * @throws IOException if the HMAC could not be computed
+     */
+    byte[] finishReadHmac() throws IOException
+    {
+        if (itsReadPipeline != null) {
+            return itsReadPipeline.finishHmac();
+        }
+        return hasher.doFinal();
     }
 
     /**
@@ -390,13 +809,66 @@ public final class PwsFileV3 extends PwsFile
             throw new IllegalArgumentException("buff length");
         }
 
-        byte[] temp;
+        byte[] writeBuf = getWriteBuf(buff.length);
+        System.arraycopy(buff, 0, writeBuf, 0, buff.length);
+        writeEncryptedBuf(buff.length);
+    }
+
+    /**
+     * Writes a field to the file.  The field header and data are laid out in
+     * the reusable write buffer, padded to a whole number of blocks, then
+     * encrypted in place and written.  The field data is also added to the
+     * HMAC.
+     *
+     * @param type the field type
+     * @param data the field data
+     * @throws IOException
+     */
+    void writeField(int type, byte[] data) throws IOException
+    {
+        int blockSize = getBlockSize();
+        int len = PwsRecordV3.FIELD_HDR_LEN + data.length;
+        len = ((len + blockSize - 1) / blockSize) * blockSize;
+
+        byte[] writeBuf = getWriteBuf(len);
+        Util.putIntToByteArray(writeBuf, data.length, 0);
+        writeBuf[4] = (byte)type;
+        System.arraycopy(data, 0, writeBuf, PwsRecordV3.FIELD_HDR_LEN,
+                         data.length);
+        Arrays.fill(writeBuf, PwsRecordV3.FIELD_HDR_LEN + data.length, len,
+                    (byte)0);
+
+        hasher.digest(data);
+        writeEncryptedBuf(len);
+    }
+
+    /**
+     * Get the write buffer with at least the given length
+     */
+    private byte[] getWriteBuf(int len)
+    {
+        if ((itsWriteBuf == null) || (itsWriteBuf.length < len)) {
+            if (itsWriteBuf != null) {
+                Arrays.fill(itsWriteBuf, (byte)0);
+            }
+            itsWriteBuf = new byte[len];
+        }
+        return itsWriteBuf;
+    }
+
+    /**
+     * Encrypt the start of the write buffer in place and write it to the file
+     */
+    private void writeEncryptedBuf(int len) throws IOException
+    {
         try {
-            temp = twofishCbc.processCBC(buff);
+            twofishCbc.processCBC(itsWriteBuf, 0, len, itsWriteBuf, 0);
         } catch (Exception e) {
             throw new IOException("Error writing encrypted field");
         }
-        writeBytes(temp);
+        outStream.write(itsWriteBuf, 0, len);
+        System.arraycopy(itsWriteBuf, len - itsLastCipherBlock.length,
+                         itsLastCipherBlock, 0, itsLastCipherBlock.length);
     }
 
     /**
@@ -408,16 +880,149 @@ public final class PwsFileV3 extends PwsFile
         return 16;
     }
 
+    /**
+     * Sets the passphrase that will be used to encrypt the file when it is
+     * saved.  The cached stretched key for the old passphrase is cleared.
+     */
+    @Override
+    public void setPassphrase(Owner<PwsPassword>.Param passwdParam)
+    {
+        super.setPassphrase(passwdParam);
+        clearStretchedKey();
+        clearSaveStates();
+    }
+
+    /**
+     * Request that the next save uses a new salt and stretched key rather
+     * than the cached key
+     */
+    public void setKeyRotation()
+    {
+        itsIsKeyRotation = true;
+    }
+
+    /**
+     * Get whether the next save uses a new salt and stretched key
+     */
+    boolean isKeyRotation()
+    {
+        return itsIsKeyRotation;
+    }
+
+    /**
+     * Get a copy of the cached stretched key if it was created from the
+     * given salt, iterations, and encoding
+     *
+     * @return the stretched key; null if not cached
+     */
+    byte[] getStretchedKey(byte[] salt, int iter, String encoding)
+    {
+        if ((itsSealedStretchedKey == null) ||
+            (itsStretchedKeyIter != iter) ||
+            !Util.bytesAreEqual(itsStretchedKeySalt, salt) ||
+            !encoding.equals(itsStretchedKeyEncoding)) {
+            return null;
+        }
+        return getMemorySealer().unseal(itsSealedStretchedKey);
+    }
+
+    /**
+     * Cache the stretched key created from the given salt, iterations, and
+     * encoding
+     */
+    void setStretchedKey(byte[] key, byte[] salt, int iter, String encoding)
+    {
+        itsSealedStretchedKey = getMemorySealer().seal(key);
+        itsStretchedKeySalt = Util.cloneByteArray(salt);
+        itsStretchedKeyIter = iter;
+        itsStretchedKeyEncoding = encoding;
+    }
+
+    /**
+     * Clear the cached stretched key
+     */
+    private void clearStretchedKey()
+    {
+        itsSealedStretchedKey = null;
+        itsStretchedKeySalt = null;
+        itsStretchedKeyIter = 0;
+        itsStretchedKeyEncoding = null;
+    }
+
+    /**
+     * Get the number of threads used to decrypt the records of a file
+     */
+    public static synchronized int getDecryptThreads()
+    {
+        return itsDecryptThreads;
+    }
+
+    /**
+     * Set the number of threads used to decrypt the records of a file.  A
+     * value greater than one enables parallel decryption of large files.
+     */
+    public static synchronized void setDecryptThreads(int numThreads)
+    {
+        itsDecryptThreads = Math.max(numThreads, 1);
+    }
+
+    /**
+     * Get whether records are read using a pipeline of decrypt, parse, and
+     * HMAC stages
+     */
+    public static synchronized boolean isPipelinedRead()
+    {
+        return itsIsPipelinedRead;
+    }
+
+    /**
+     * Set whether records are read using a pipeline of decrypt, parse, and
+     * HMAC stages.  The decrypt and HMAC stages run on their own threads
+     * while the records are parsed on the thread opening the file.
+     */
+    public static synchronized void setPipelinedRead(boolean pipelined)
+    {
+        itsIsPipelinedRead = pipelined;
+    }
+
+    /**
+     * Get whether saves only rewrite the records following the first
+     * changed record
+     */
+    public static synchronized boolean isIncrementalSave()
+    {
+        return itsIsIncrementalSave;
+    }
+
+    /**
+     * Set whether saves only rewrite the records following the first
+     * changed record.  The encryption and HMAC state at the start of each
+     * record is kept after a save so the next save of the same storage can
+     * copy the unchanged start of the file and write only the rest.  The
+     * header is not changed by an incremental save, so a save which rotates
+     * the key or changes the passphrase always writes the whole file.
+     * <p>
+     * The header record is the first record encrypted and hashed, so a change
+     * to any of its fields also writes the whole file.  A caller which
+     * updates the last save fields of the header on every save, as the
+     * PasswdSafe app does, gains nothing from an incremental save, and the
+     * app leaves it disabled.
+     */
+    public static synchronized void setIncrementalSave(boolean incremental)
+    {
+        itsIsIncrementalSave = incremental;
+    }
+
     /**
      * @return the headerV3
      */
     private PwsFileHeaderV3 getHeaderV3()
     {
+        byte[] bytes = getMemorySealer().unseal(sealedHeaderV3);
         try {
-            return (PwsFileHeaderV3)sealedHeaderV3.getObject(getReadCipher());
-        } catch (IllegalBlockSizeException | IOException |
-                ClassNotFoundException | BadPaddingException e) {
-            throw new MemoryKeyException(e);
+            return new PwsFileHeaderV3(bytes);
+        } finally {
+            Util.clearArray(bytes);
         }
     }
 
@@ -426,10 +1031,82 @@ public final class PwsFileV3 extends PwsFile
      */
     private void setHeaderV3(PwsFileHeaderV3 headerV3)
     {
+        byte[] bytes = headerV3.getBytes();
         try {
-            sealedHeaderV3 = new SealedObject(headerV3, getWriteCipher());
-        } catch (IllegalBlockSizeException | IOException e) {
-            throw new MemoryKeyException(e);
+            sealedHeaderV3 = getMemorySealer().seal(bytes);
+        } finally {
+            Util.clearArray(bytes);
+        }
+    }
+
+    /**
+     * The state of the file written by a save at the start of a record
+     */
+    private final class SaveState
+    {
+        final PwsRecord itsRecord;
+        final int itsChangeCount;
+        final long itsOffset;
+        final byte[] itsIV;
+        final HmacPws itsHmac;
+
+        /**
+         * Constructor capturing the current encryption and HMAC state
+         *
+         * @param rec    the record written at the offset; null for the end
+         *               of file marker
+         * @param offset the offset of the record in the file
+         */
+        SaveState(PwsRecord rec, long offset)
+        {
+            itsRecord = rec;
+            itsChangeCount = (rec != null) ? rec.getChangeCount() : 0;
+            itsOffset = offset;
+            itsIV = Util.cloneByteArray(itsLastCipherBlock);
+            itsHmac = hasher.copy();
+        }
+    }
+
+    /**
+     * Output stream which counts the bytes written through it
+     */
+    private static final class CountingOutputStream extends FilterOutputStream
+    {
+        private long itsCount;
+
+        /**
+         * Constructor
+         *
+         * @param out   the stream to write to
+         * @param count the initial count
+         */
+        CountingOutputStream(OutputStream out, long count)
+        {
+            super(out);
+            itsCount = count;
+        }
+
+        /**
+         * Get the count of bytes written
+         */
+        long getCount()
+        {
+            return itsCount;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+            ++itsCount;
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len)
+                throws IOException
+        {
+            out.write(b, off, len);
+            itsCount += len;
         }
     }
 }
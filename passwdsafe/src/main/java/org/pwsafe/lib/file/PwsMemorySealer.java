@@ -0,0 +1,123 @@
+/*
+ * Copyright (©) 2017 Jeff Harris <jefftharris@gmail.com>
+ * All rights reserved. Use of the code is allowed under the
+ * Artistic License 2.0 terms, as specified in the LICENSE file
+ * distributed with this code, or available from
+ * http://www.opensource.org/licenses/artistic-license-2.0.php
+ */
+package org.pwsafe.lib.file;
+
+import org.pwsafe.lib.exception.MemoryKeyException;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Seals sensitive values in memory.  The bytes are encrypted with AES in
+ * counter mode using a unique nonce for each sealed value.  The cipher is
+ * keyed once and its counter and key stream buffers are reused, so sealing
+ * and unsealing a value needs no serialization or cipher initialization.
+ */
+final class PwsMemorySealer
+{
+    private static final String CIPHER_SPEC = "AES/ECB/NoPadding";
+    private static final String CIPHER_KEY_SPEC = "AES";
+    private static final int BLOCK_LEN = 16;
+
+    /**
+     * Length of the key stream generated by each cipher call
+     */
+    private static final int CHUNK_LEN = 64 * BLOCK_LEN;
+
+    private final Cipher itsCipher;
+    private final byte[] itsCounters = new byte[CHUNK_LEN];
+    private final byte[] itsKeyStream = new byte[CHUNK_LEN];
+    private long itsNextNonce = 0;
+
+    /**
+     * Constructor
+     *
+     * @param key the key for sealing values; cleared by the caller
+     */
+    PwsMemorySealer(byte[] key)
+    {
+        try {
+            itsCipher = Cipher.getInstance(CIPHER_SPEC);
+            itsCipher.init(Cipher.ENCRYPT_MODE,
+                           new SecretKeySpec(key, CIPHER_KEY_SPEC));
+        } catch (GeneralSecurityException e) {
+            throw new MemoryKeyException("memory key generation failed", e);
+        }
+    }
+
+    /**
+     * Seal bytes.  The bytes are not cleared.
+     */
+    PwsSealedBytes seal(byte[] data)
+    {
+        return seal(data, 0, data.length);
+    }
+
+    /**
+     * Seal a range of bytes.  The bytes are not cleared.
+     */
+    synchronized PwsSealedBytes seal(byte[] data, int offset, int len)
+    {
+        long nonce = itsNextNonce++;
+        byte[] sealed = new byte[len];
+        crypt(nonce, data, offset, len, sealed);
+        return new PwsSealedBytes(nonce, sealed);
+    }
+
+    /**
+     * Unseal bytes.  The caller should clear the returned bytes when done.
+     */
+    synchronized byte[] unseal(PwsSealedBytes sealed)
+    {
+        byte[] data = new byte[sealed.itsData.length];
+        crypt(sealed.itsNonce, sealed.itsData, 0, data.length, data);
+        return data;
+    }
+
+    /**
+     * XOR the data with the key stream for the nonce
+     */
+    private void crypt(long nonce, byte[] in, int inOffset, int len,
+                       byte[] out)
+    {
+        long block = 0;
+        for (int pos = 0; pos < len; pos += CHUNK_LEN) {
+            int chunkLen = Math.min(CHUNK_LEN, len - pos);
+            int streamLen = ((chunkLen + BLOCK_LEN - 1) / BLOCK_LEN) *
+                            BLOCK_LEN;
+            for (int i = 0; i < streamLen; i += BLOCK_LEN) {
+                putLong(itsCounters, i, nonce);
+                putLong(itsCounters, i + 8, block++);
+            }
+            try {
+                itsCipher.doFinal(itsCounters, 0, streamLen, itsKeyStream, 0);
+            } catch (GeneralSecurityException e) {
+                throw new MemoryKeyException(e);
+            }
+            for (int i = 0; i < chunkLen; ++i) {
+                out[pos + i] = (byte)(in[inOffset + pos + i] ^
+                                      itsKeyStream[i]);
+            }
+            Arrays.fill(itsKeyStream, 0, streamLen, (byte)0);
+        }
+    }
+
+    /**
+     * Store a long value in big-endian order
+     */
+    private static void putLong(byte[] buf, int offset, long value)
+    {
+        for (int i = 7; i >= 0; --i) {
+            buf[offset + i] = (byte)value;
+            value >>>= 8;
+        }
+    }
+}
@@ -10,7 +10,6 @@ package org.pwsafe.lib.file;
 import org.pwsafe.lib.Util;
 
 import java.io.Closeable;
-import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
@@ -19,11 +18,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.SealedObject;
-
 /**
  * Password wrapper which will clear its contents when closed
  */
@@ -74,23 +68,39 @@ public class PwsPassword implements Closeable
     }
 
     /**
-     * Seal the password
+     * Seal the password.  The characters are sealed as two bytes each so
+     * they are restored exactly.
      */
-    public SealedObject seal(Cipher cipher)
-            throws IOException, IllegalBlockSizeException
+    PwsSealedBytes seal(PwsMemorySealer sealer)
     {
-        return new SealedObject(itsPasswd, cipher);
+        byte[] bytes = new byte[itsPasswd.length * 2];
+        try {
+            for (int i = 0; i < itsPasswd.length; ++i) {
+                bytes[2 * i] = (byte)(itsPasswd[i] >> 8);
+                bytes[2 * i + 1] = (byte)itsPasswd[i];
+            }
+            return sealer.seal(bytes);
+        } finally {
+            Util.clearArray(bytes);
+        }
     }
 
     /**
      * Unseal a password
      */
-    public static PwsPassword unseal(SealedObject obj, Cipher cipher)
-            throws ClassNotFoundException, BadPaddingException,
-                   IllegalBlockSizeException, IOException
+    static PwsPassword unseal(PwsSealedBytes sealed, PwsMemorySealer sealer)
     {
-        char[] chars = (char[])obj.getObject(cipher);
-        return new PwsPassword(chars);
+        byte[] bytes = sealer.unseal(sealed);
+        try {
+            char[] chars = new char[bytes.length / 2];
+            for (int i = 0; i < chars.length; ++i) {
+                chars[i] = (char)(((bytes[2 * i] & 0xff) << 8) |
+                                  (bytes[2 * i + 1] & 0xff));
+            }
+            return new PwsPassword(chars);
+        } finally {
+            Util.clearArray(bytes);
+        }
     }
 
     /**
@@ -0,0 +1,201 @@
+/*
+ * Copyright (©) 2017 Jeff Harris <jefftharris@gmail.com>
+ * All rights reserved. Use of the code is allowed under the
+ * Artistic License 2.0 terms, as specified in the LICENSE file
+ * distributed with this code, or available from
+ * http://www.opensource.org/licenses/artistic-license-2.0.php
+ */
+package org.pwsafe.lib.file;
+
+import org.pwsafe.lib.Util;
+
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks a file's password using each of a list of candidate encodings.
+ * Encodings which produce the same password bytes are only checked once.
+ * The candidates are checked in order, or concurrently with the first match
+ * cancelling the rest if multiple probe threads are configured.  A cancelled
+ * check stops only if it checks for the interrupt of its thread.  The
+ * password bytes of every candidate are cleared once all checks finish.
+ *
+ * @param <T> the type of the result of a successful check
+ */
+abstract class PwsPasswordCheck<T>
+{
+    /**
+     * The result of a successful check
+     */
+    static final class Result<T>
+    {
+        final String itsEncoding;
+        final T itsValue;
+
+        private Result(String encoding, T value)
+        {
+            itsEncoding = encoding;
+            itsValue = value;
+        }
+    }
+
+    /**
+     * Check the password bytes for a candidate encoding
+     *
+     * @param passwd the password bytes
+     * @return the result if the password matches; null otherwise
+     * @throws InterruptedIOException if the check is interrupted
+     */
+    protected abstract T check(byte[] passwd) throws InterruptedIOException;
+
+    /**
+     * Check the password using the candidate encodings
+     *
+     * @param passwdParam the password
+     * @param encodings   the candidate encodings in order of preference.  A
+     *                    null encoding uses the default charset.
+     * @return the result for the matching encoding; null if none match
+     * @throws InterruptedIOException if the check is interrupted
+     */
+    final Result<T> run(Owner<PwsPassword>.Param passwdParam,
+                        List<String> encodings)
+            throws InterruptedIOException
+    {
+        Owner<PwsPassword> passwd = passwdParam.use();
+        List<byte[]> candidates = new ArrayList<>();
+        try {
+            List<String> candidateEncodings = new ArrayList<>();
+            for (String encoding: encodings) {
+                byte[] bytes;
+                try {
+                    bytes = passwd.get().getBytes(encoding);
+                } catch (UnsupportedEncodingException e) {
+                    // Skip this charset
+                    continue;
+                }
+
+                boolean isDup = false;
+                for (byte[] candidate: candidates) {
+                    if (Arrays.equals(candidate, bytes)) {
+                        isDup = true;
+                        break;
+                    }
+                }
+                if (isDup) {
+                    Util.clearArray(bytes);
+                } else {
+                    candidateEncodings.add(
+                            (encoding != null) ? encoding :
+                            Charset.defaultCharset().name());
+                    candidates.add(bytes);
+                }
+            }
+
+            int numThreads = Math.min(PwsFile.getPasswordProbeThreads(),
+                                      candidates.size());
+            if (numThreads > 1) {
+                return runConcurrent(candidateEncodings, candidates,
+                                     numThreads);
+            }
+
+            for (int i = 0; i < candidates.size(); ++i) {
+                T value = check(candidates.get(i));
+                if (value != null) {
+                    return new Result<>(candidateEncodings.get(i), value);
+                }
+            }
+            return null;
+        } finally {
+            for (byte[] candidate: candidates) {
+                Util.clearArray(candidate);
+            }
+            passwd.close();
+        }
+    }
+
+    /**
+     * Check the candidates concurrently, returning the first match.  The
+     * checks still running are cancelled and waited for before returning so
+     * none use the candidates after they are cleared.
+     */
+    private Result<T> runConcurrent(List<String> encodings,
+                                    List<byte[]> candidates,
+                                    int numThreads)
+            throws InterruptedIOException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        CompletionService<Result<T>> completion =
+                new ExecutorCompletionService<>(executor);
+        List<Future<Result<T>>> futures = new ArrayList<>(candidates.size());
+        try {
+            for (int i = 0; i < candidates.size(); ++i) {
+                final String encoding = encodings.get(i);
+                final byte[] candidate = candidates.get(i);
+                futures.add(completion.submit(new Callable<Result<T>>()
+                {
+                    @Override
+                    public Result<T> call() throws InterruptedIOException
+                    {
+                        T value = check(candidate);
+                        return (value != null) ?
+                               new Result<>(encoding, value) : null;
+                    }
+                }));
+            }
+
+            for (int i = 0; i < candidates.size(); ++i) {
+                Result<T> result = completion.take().get();
+                if (result != null) {
+                    return result;
+                }
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Password check interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof InterruptedIOException) {
+                throw (InterruptedIOException)e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (Future<Result<T>> future: futures) {
+                future.cancel(true);
+            }
+            executor.shutdownNow();
+            awaitTermination(executor);
+        }
+    }
+
+    /**
+     * Wait for the tasks of a shut down executor to finish.  An interrupt
+     * while waiting is kept for the caller.
+     */
+    private static void awaitTermination(ExecutorService executor)
+    {
+        boolean interrupted = false;
+        while (!executor.isTerminated()) {
+            try {
+                executor.awaitTermination(Long.MAX_VALUE,
+                                          TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (©) 2017 Jeff Harris <jefftharris@gmail.com>
+ * All rights reserved. Use of the code is allowed under the
+ * Artistic License 2.0 terms, as specified in the LICENSE file
+ * distributed with this code, or available from
+ * http://www.opensource.org/licenses/artistic-license-2.0.php
+ */
+package org.pwsafe.lib.file;
+
+import org.pwsafe.lib.Util;
+import org.pwsafe.lib.crypto.HmacPws;
+import org.pwsafe.lib.crypto.TwofishPws;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Pipeline for reading the records of a V3 file.  One thread decrypts the
+ * record data in chunks while a second walks the decrypted fields and updates
+ * the HMAC.  The records themselves are parsed on the caller's thread, which
+ * waits for the data it needs to be decrypted.
+ */
+final class PwsReadPipeline
+{
+    /**
+     * Length of data decrypted before it is handed to the other stages
+     */
+    private static final int CHUNK_LEN = 64 * 1024;
+
+    private static final int BLOCK_LEN = 16;
+
+    private final ByteBuffer itsEncData;
+    private final int itsEncOffset;
+    private final byte[] itsData;
+    private final TwofishPws itsCipher;
+    private final HmacPws itsHasher;
+    private final Thread itsDecryptThread;
+    private final Thread itsHmacThread;
+
+    /**
+     * Length of the data decrypted so far
+     */
+    private int itsDecryptedLen = 0;
+
+    /**
+     * Error from one of the pipeline threads
+     */
+    private Exception itsError;
+
+    /**
+     * Whether the pipeline has been cancelled
+     */
+    private boolean itsIsCancelled = false;
+
+    /**
+     * Constructor
+     *
+     * @param encData   the encrypted file data
+     * @param encOffset the offset of the record data in encData
+     * @param data      the buffer for the decrypted record data
+     * @param cipher    the cipher for decrypting the record data
+     * @param hasher    the HMAC for the record fields
+     */
+    PwsReadPipeline(ByteBuffer encData, int encOffset, byte[] data,
+                    TwofishPws cipher, HmacPws hasher)
+    {
+        itsEncData = encData;
+        itsEncOffset = encOffset;
+        itsData = data;
+        itsCipher = cipher;
+        itsHasher = hasher;
+        itsDecryptThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runDecrypt();
+            }
+        }, "PwsReadPipeline-decrypt");
+        itsHmacThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runHmac();
+            }
+        }, "PwsReadPipeline-hmac");
+    }
+
+    /**
+     * Start the pipeline threads
+     */
+    void start()
+    {
+        itsDecryptThread.start();
+        itsHmacThread.start();
+    }
+
+    /**
+     * Wait until the data up to the given length has been decrypted
+     *
+     * @return false if the data is not available; true otherwise
+     * @throws IOException if the pipeline failed or was interrupted
+     */
+    synchronized boolean waitForData(int len) throws IOException
+    {
+        if (len > itsData.length) {
+            return false;
+        }
+        try {
+            while ((itsDecryptedLen < len) && (itsError == null) &&
+                   !itsIsCancelled) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted reading records");
+        }
+        checkError();
+        return !itsIsCancelled;
+    }
+
+    /**
+     * Finish the HMAC of the record fields once all of the records have
+     * been read
+     *
+     * @return the HMAC value
+     * @throws IOException if the pipeline failed or was interrupted
+     */
+    byte[] finishHmac() throws IOException
+    {
+        try {
+            itsHmacThread.join();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted reading records");
+        }
+        synchronized (this) {
+            checkError();
+        }
+        return itsHasher.doFinal();
+    }
+
+    /**
+     * Cancel the pipeline and wait for its threads to finish
+     */
+    void cancel()
+    {
+        synchronized (this) {
+            itsIsCancelled = true;
+            notifyAll();
+        }
+        boolean interrupted = false;
+        for (Thread thread: new Thread[] { itsDecryptThread, itsHmacThread }) {
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Decrypt the record data and publish the progress to the other stages
+     */
+    private void runDecrypt()
+    {
+        try {
+            int pos = 0;
+            while (pos < itsData.length) {
+                int len = Math.min(CHUNK_LEN, itsData.length - pos);
+                itsCipher.processCBC(itsEncData, itsEncOffset + pos, len,
+                                     itsData, pos);
+                pos += len;
+                synchronized (this) {
+                    if (itsIsCancelled) {
+                        return;
+                    }
+                    itsDecryptedLen = pos;
+                    notifyAll();
+                }
+            }
+        } catch (Exception e) {
+            setError(e);
+        }
+    }
+
+    /**
+     * Walk the decrypted fields and update the HMAC with their data
+     */
+    private void runHmac()
+    {
+        try {
+            int pos = 0;
+            while (waitForData(pos + BLOCK_LEN)) {
+                int length = Util.getIntFromByteArray(itsData, pos);
+                if (length < 0) {
+                    break;
+                }
+                int bytesToRead = Math.max(
+                        length - PwsRecordV3.FIRST_BLOCK_DATA_LEN, 0);
+                int blocksToRead = (bytesToRead + BLOCK_LEN - 1) / BLOCK_LEN;
+                long end = pos + BLOCK_LEN + ((long)blocksToRead * BLOCK_LEN);
+                if ((end > itsData.length) || !waitForData((int)end)) {
+                    break;
+                }
+                itsHasher.digest(itsData, pos + PwsRecordV3.FIELD_HDR_LEN,
+                                 length);
+                pos = (int)end;
+            }
+        } catch (Exception e) {
+            setError(e);
+        }
+    }
+
+    /**
+     * Set an error from a pipeline thread
+     */
+    private synchronized void setError(Exception e)
+    {
+        if (itsError == null) {
+            itsError = e;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Check for an error from a pipeline thread
+     */
+    private void checkError() throws IOException
+    {
+        if (itsError != null) {
+            if (itsError instanceof IOException) {
+                throw (IOException)itsError;
+            }
+            throw new IOException("Error reading records", itsError);
+        }
+    }
+}
@@ -19,8 +19,6 @@ import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.TreeMap;
 
 /**
  * This abstract class implements the common features of PasswordSafe records.
@@ -47,8 +45,9 @@ public abstract class PwsRecord implements Comparable<Object>, Serializable
 
     private boolean modified = false;
     private boolean isLoaded = false;
-    protected final Map<Integer, PwsField> attributes = new TreeMap<>();
-    private final Object ValidTypes[];
+    private int itsChangeCount = 0;
+    protected final PwsFieldMap attributes = new PwsFieldMap();
+    private final Class<?>[] itsValidClasses;
 
     protected boolean ignoreFieldTypes = false;
 
@@ -183,13 +182,13 @@ public abstract class PwsRecord implements Comparable<Object>, Serializable
     /**
      * Simple constructor. Used when creating a new record to add to a file.
      *
-     * @param validTypes an array of valid field types.
+     * @param validClasses the valid field classes indexed by type.
      */
-    PwsRecord(Object[] validTypes)
+    PwsRecord(Class<?>[] validClasses)
     {
         super();
 
-        ValidTypes = validTypes;
+        itsValidClasses = validClasses;
     }
 
     /**
@@ -198,17 +197,17 @@ public abstract class PwsRecord implements Comparable<Object>, Serializable
      *
      * @param owner      the file that data is to be read from and which
      *                   "owns" this record.
-     * @param validTypes an array of valid field types.
+     * @param validClasses the valid field classes indexed by type.
      * @throws EndOfFileException
      * @throws IOException
      */
-    PwsRecord(PwsFile owner, Object[] validTypes) throws
-                                                  EndOfFileException,
-                                                  IOException
+    PwsRecord(PwsFile owner, Class<?>[] validClasses) throws
+                                                      EndOfFileException,
+                                                      IOException
     {
         super();
 
-        ValidTypes = validTypes;
+        itsValidClasses = validClasses;
 
         loadRecord(owner);
 
@@ -220,7 +219,7 @@ public abstract class PwsRecord implements Comparable<Object>, Serializable
      *
      * @param owner            the file that data is to be read from and
      *                         which "owns" this record.
-     * @param validTypes       an array of valid field types.
+     * @param validClasses     the valid field classes indexed by type.
      * @param ignoreFieldTypes true if all fields types should be ignored,
      *                                false otherwise
      * @throws EndOfFileException
@@ -228,13 +227,13 @@ public abstract class PwsRecord implements Comparable<Object>, Serializable
      */
     protected PwsRecord(
             PwsFile owner,
-            @SuppressWarnings("SameParameterValue") Object[] validTypes,
+            @SuppressWarnings("SameParameterValue") Class<?>[] validClasses,
             boolean ignoreFieldTypes)
             throws EndOfFileException, IOException
     {
         super();
 
-        ValidTypes = validTypes;
+        itsValidClasses = validClasses;
         this.ignoreFieldTypes = ignoreFieldTypes;
 
         loadRecord(owner);
@@ -246,17 +245,17 @@ public abstract class PwsRecord implements Comparable<Object>, Serializable
     /**
      * Special constructor for use when ignoring field types.
      *
-     * @param validTypes       an array of valid field types.
+     * @param validClasses     the valid field classes indexed by type.
      * @param ignoreFieldTypes true if all fields types should be ignored,
      *                         false otherwise
      */
     protected PwsRecord(
-            @SuppressWarnings("SameParameterValue") Object[] validTypes,
+            @SuppressWarnings("SameParameterValue") Class<?>[] validClasses,
             @SuppressWarnings("SameParameterValue") boolean ignoreFieldTypes)
     {
         super();
 
-        ValidTypes = validTypes;
+        itsValidClasses = validClasses;
         this.ignoreFieldTypes = ignoreFieldTypes;
     }
 
@@ -317,6 +316,29 @@ public abstract class PwsRecord implements Comparable<Object>, Serializable
      */
     protected abstract void saveRecord(PwsFile file) throws IOException;
 
+    /**
+     * Get the valid field classes indexed by type from an array of valid
+     * field types.  Each entry of the types array is an array of the type,
+     * its name, and its field class.
+     *
+     * @param validTypes an array of valid field types.
+     * @return The field classes indexed by type; null for unknown types.
+     */
+    static Class<?>[] getValidClasses(Object[] validTypes)
+    {
+        int maxType = -1;
+        for (Object validType : validTypes) {
+            maxType = Math.max(maxType,
+                               (Integer)((Object[])validType)[0]);
+        }
+        Class<?>[] classes = new Class<?>[maxType + 1];
+        for (Object validType : validTypes) {
+            Object[] typeInfo = (Object[])validType;
+            classes[(Integer)typeInfo[0]] = (Class<?>)typeInfo[2];
+        }
+        return classes;
+    }
+
     /**
      * Provide subclasses a means to handle unknown field values not
      * included in ValidTypes. Used by PWSRecordV3. Defaults to false.
@@ -341,7 +363,7 @@ public abstract class PwsRecord implements Comparable<Object>, Serializable
      */
     public final PwsField getField(int aType)
     {
-        return getField(Integer.valueOf(aType));
+        return attributes.get(aType);
     }
 
     /**
@@ -353,7 +375,7 @@ public abstract class PwsRecord implements Comparable<Object>, Serializable
      */
     protected final PwsField getField(Integer aType)
     {
-        return attributes.get(aType);
+        return attributes.get(aType.intValue());
     }
 
     /**
@@ -366,7 +388,7 @@ public abstract class PwsRecord implements Comparable<Object>, Serializable
      */
     protected Iterator<Integer> getFields()
     {
-        return attributes.keySet().iterator();
+        return attributes.typeIterator();
     }
 
     /**
@@ -381,6 +403,16 @@ public abstract class PwsRecord implements Comparable<Object>, Serializable
         return modified;
     }
 
+    /**
+     * Get the count of changes to the fields of the record.  Unlike the
+     * modified flag, the count also increases for records which were not
+     * loaded from a file, such as new records added to it.
+     */
+    final int getChangeCount()
+    {
+        return itsChangeCount;
+    }
+
     /**
      * Read a record from the given file.
      *
@@ -442,33 +474,11 @@ public abstract class PwsRecord implements Comparable<Object>, Serializable
             return;
         }
 
-        // try a shortcut first
-        if (theType < ValidTypes.length) {
-            if ((Integer)((Object[])ValidTypes[theType])[0] == theType) {
-                Class<? extends PwsField> cl = value.getClass();
-
-                if (cl == (((Object[])ValidTypes[theType])[2])) {
-                    attributes.put(theType, value);
-                    setModified();
-                    return;
-                }
-            }
-        }
-        // no chance, iterate over all values
-        for (Object ValidType : ValidTypes) {
-            int vType;
-
-            vType = (Integer)((Object[])ValidType)[0];
-
-            if (vType == theType) {
-                Class<? extends PwsField> cl = value.getClass();
-
-                if (cl == (((Object[])ValidType)[2])) {
-                    attributes.put(theType, value);
-                    setModified();
-                    return;
-                }
-            }
+        if ((theType >= 0) && (theType < itsValidClasses.length) &&
+            (itsValidClasses[theType] == value.getClass())) {
+            attributes.put(theType, value);
+            setModified();
+            return;
         }
         // before giving up, check if unknown fields are allowed
         if (allowUnknownFieldTypes()) {
@@ -502,6 +512,7 @@ public abstract class PwsRecord implements Comparable<Object>, Serializable
      */
     private void setModified()
     {
+        ++itsChangeCount;
         if (isLoaded) {
             modified = true;
         }
@@ -519,21 +530,19 @@ public abstract class PwsRecord implements Comparable<Object>, Serializable
     protected void writeField(PwsFile file, PwsField field, int aType)
             throws IOException
     {
-        byte lenBlock[];
-        byte dataBlock[];
-
-        lenBlock = new byte[PwsFile.calcBlockLength(8)];
-        dataBlock = field.getBytes();
-
-        Util.putIntToByteArray(lenBlock, dataBlock.length, 0);
-        Util.putIntToByteArray(lenBlock, aType, 4);
+        byte dataBlock[] = field.getBytes();
+        int lenBlockLen = PwsFile.calcBlockLength(8);
+
+        // The length and data blocks are encrypted as one run
+        byte fieldBlocks[] = new byte[
+                lenBlockLen + PwsFile.calcBlockLength(dataBlock.length)];
+        Util.putIntToByteArray(fieldBlocks, dataBlock.length, 0);
+        Util.putIntToByteArray(fieldBlocks, aType, 4);
         // TODOlib put random bytes here
 
-        dataBlock = Util.cloneByteArray(dataBlock, PwsFile
-                .calcBlockLength(dataBlock.length));
-
-        file.writeEncryptedBytes(lenBlock);
-        file.writeEncryptedBytes(dataBlock);
+        System.arraycopy(dataBlock, 0, fieldBlocks, lenBlockLen,
+                         dataBlock.length);
+        file.writeEncryptedBytes(fieldBlocks);
     }
 
     /**
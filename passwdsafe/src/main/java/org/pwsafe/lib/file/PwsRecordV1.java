@@ -86,6 +86,12 @@ public class PwsRecordV1 extends PwsRecord implements Comparable<Object>
                                  PwsStringField.class}
             };
 
+    /**
+     * The valid field classes indexed by type.
+     */
+    private static final Class<?>[] VALID_CLASSES =
+            getValidClasses(VALID_TYPES);
+
     static {
         // Must be done here as they could theoretically throw an
         // exception, though in practice they won't unless the JVM
@@ -101,7 +107,7 @@ public class PwsRecordV1 extends PwsRecord implements Comparable<Object>
      */
     PwsRecordV1()
     {
-        super(VALID_TYPES);
+        super(VALID_CLASSES);
 
         // Set default values
         setField(new PwsStringField(PwsFieldTypeV1.TITLE, ""));
@@ -121,7 +127,7 @@ public class PwsRecordV1 extends PwsRecord implements Comparable<Object>
     PwsRecordV1(PwsFile file)
             throws EndOfFileException, IOException
     {
-        super(file, VALID_TYPES);
+        super(file, VALID_CLASSES);
     }
 
     /**
@@ -133,12 +133,18 @@ public class PwsRecordV2 extends PwsRecord
                          PwsStringField.class},
             };
 
+    /**
+     * The valid field classes indexed by type.
+     */
+    private static final Class<?>[] VALID_CLASSES =
+            getValidClasses(VALID_TYPES);
+
     /**
      * Create a new record with all mandatory fields given their default value.
      */
     PwsRecordV2()
     {
-        super(VALID_TYPES);
+        super(VALID_CLASSES);
 
         setField(new PwsUUIDField(PwsFieldTypeV2.UUID, new UUID()));
         setField(new PwsStringField(PwsFieldTypeV2.TITLE, ""));
@@ -154,7 +160,7 @@ public class PwsRecordV2 extends PwsRecord
      */
     PwsRecordV2(PwsFile file) throws EndOfFileException, IOException
     {
-        super(file, VALID_TYPES);
+        super(file, VALID_CLASSES);
     }
 
     /**
@@ -15,6 +15,7 @@ import org.pwsafe.lib.Util;
 import org.pwsafe.lib.exception.EndOfFileException;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.Date;
 import java.util.Iterator;
 
@@ -291,12 +292,18 @@ public class PwsRecordV3 extends PwsRecord
                          "ENTRY_KEYBOARD_SHORTCUT", PwsIntegerField.class},
             };
 
+    /**
+     * The valid field classes indexed by type.
+     */
+    private static final Class<?>[] VALID_CLASSES =
+            getValidClasses(VALID_TYPES);
+
     /**
      * Create a new record with all mandatory fields given their default value.
      */
     PwsRecordV3()
     {
-        super(VALID_TYPES);
+        super(VALID_CLASSES);
 
         setField(new PwsUUIDField(PwsFieldTypeV3.UUID, new UUID()));
         setField(new PwsStringUnicodeField(PwsFieldTypeV3.TITLE, ""));
@@ -312,7 +319,7 @@ public class PwsRecordV3 extends PwsRecord
     PwsRecordV3(@SuppressWarnings({"UnusedParameters",
                                    "SameParameterValue"}) boolean isHeader)
     {
-        super(VALID_TYPES, true);
+        super(VALID_CLASSES, true);
         setField(new PwsVersionField(HEADER_VERSION,
                                      new byte[]{DB_FMT_MINOR_VERSION, 3}));
         setField(new PwsUUIDField(HEADER_UUID, new UUID()));
@@ -327,7 +334,7 @@ public class PwsRecordV3 extends PwsRecord
      */
     PwsRecordV3(PwsFile file) throws EndOfFileException, IOException
     {
-        super(file, VALID_TYPES);
+        super(file, VALID_CLASSES);
     }
 
     /**
@@ -345,7 +352,7 @@ public class PwsRecordV3 extends PwsRecord
             @SuppressWarnings("SameParameterValue") boolean ignoreFieldTypes)
             throws EndOfFileException, IOException
     {
-        super(file, VALID_TYPES, ignoreFieldTypes);
+        super(file, VALID_CLASSES, ignoreFieldTypes);
     }
 
     /**
@@ -423,6 +430,16 @@ public class PwsRecordV3 extends PwsRecord
 
     static final byte[] EOF_BYTES_RAW = "PWS3-EOFPWS3-EOF".getBytes();
 
+    /**
+     * Length of the field length and type at the start of the first block
+     */
+    static final int FIELD_HDR_LEN = 5;
+
+    /**
+     * Number of field data bytes held in the first block
+     */
+    static final int FIRST_BLOCK_DATA_LEN = 16 - FIELD_HDR_LEN;
+
     protected class ItemV3 extends Item
     {
         public ItemV3(PwsFileV3 file) throws EndOfFileException, IOException
@@ -433,7 +450,7 @@ public class PwsRecordV3 extends PwsRecord
             } catch (EndOfFileException eofe) {
                 data = new byte[32]; // to hold closing HMAC
                 file.readBytes(data);
-                byte[] hash = file.hasher.doFinal();
+                byte[] hash = file.finishReadHmac();
                 if (!Util.bytesAreEqual(data, hash)) {
                     LOG.error("HMAC record did not match. File may have been " +
                               "tampered");
@@ -445,42 +462,36 @@ public class PwsRecordV3 extends PwsRecord
 
             length = Util.getIntFromByteArray(rawData, 0);
             type = rawData[4] & 0x000000ff; // rest of header is now random data
+            if (length < 0) {
+                throw new IOException("Invalid record length: " + length);
+            }
+
+            // The first block holds up to FIRST_BLOCK_DATA_LEN bytes of the
+            // field.  The whole remaining blocks are read directly into the
+            // data buffer which is sized to the field, and the final partial
+            // block is read through the first block's buffer.
             try {
                 data = new byte[length];
             } catch (OutOfMemoryError e) {
                 throw new IOException(
                         "Out of memory.  Record length too long: " + length);
             }
-            byte[] remainingDataInRecord = Util.getBytes(rawData, 5, 11);
-            if (length <= 11) {
-                Util.copyBytes(Util.getBytes(remainingDataInRecord, 0, length),
-                               data);
-            } else if (length > 11) {
-                int bytesToRead = length - 11;
-                int blocksToRead = bytesToRead / file.getBlockSize();
-
-                // if blocksToRead doesn't fit neatly into current block
-                // size, add an extra block for the remaining bytes
-                if (bytesToRead % file.getBlockSize() != 0)
-                    blocksToRead++;
-
-                byte[] remainingRecords = new byte[0];
-                for (int i = 0; i < blocksToRead; i++) {
-                    byte[] nextBlock = new byte[file.getBlockSize()];
-                    file.readDecryptedBytes(nextBlock);
-                    if (i == blocksToRead - 1) {
-                        // last block, do magic
-                        nextBlock = Util.getBytes(
-                                nextBlock, 0,
-                                bytesToRead - remainingRecords.length);
-                    }
-                    remainingRecords =
-                            Util.mergeBytes(remainingRecords, nextBlock);
-                }
-                data = Util.mergeBytes(remainingDataInRecord, remainingRecords);
+            int firstLen = Math.min(length, FIRST_BLOCK_DATA_LEN);
+            System.arraycopy(rawData, FIELD_HDR_LEN, data, 0, firstLen);
+
+            int blockSize = file.getBlockSize();
+            int bytesToRead = length - firstLen;
+            int wholeLen = (bytesToRead / blockSize) * blockSize;
+            if (wholeLen > 0) {
+                file.readDecryptedBytes(data, firstLen, wholeLen);
+            }
+            int partialLen = bytesToRead - wholeLen;
+            if (partialLen > 0) {
+                file.readDecryptedBytes(rawData, 0, blockSize);
+                System.arraycopy(rawData, 0, data, firstLen + wholeLen,
+                                 partialLen);
             }
-            byte[] dataToHash = data;
-            file.hasher.digest(dataToHash);
+            file.digestReadField(data, length);
         }
     }
 
@@ -606,9 +617,6 @@ public class PwsRecordV3 extends PwsRecord
             value = getField(type);
 
             writeField(file, value);
-
-            PwsFileV3 fileV3 = (PwsFileV3)file;
-            fileV3.hasher.digest(value.getBytes());
         }
         writeField(file, new PwsStringField(END_OF_RECORD, ""));
     }
@@ -626,33 +634,7 @@ public class PwsRecordV3 extends PwsRecord
     protected void writeField(PwsFile file, PwsField field, int type)
             throws IOException
     {
-        byte lenBlock[];
-        byte dataBlock[];
-
-        lenBlock = new byte[5];
-        dataBlock = field.getBytes();
-
-        Util.putIntToByteArray(lenBlock, dataBlock.length, 0);
-        lenBlock[4] = (byte)type;
-
-        // ensure encryption payload is equal blocks of 16
-        int bytesToPad = 0;
-        int calcWriteLen = lenBlock.length + dataBlock.length;
-        if (calcWriteLen % 16 != 0) {
-            bytesToPad = 16 - (calcWriteLen % 16);
-        }
-
-        dataBlock =
-                Util.cloneByteArray(dataBlock, dataBlock.length + bytesToPad);
-
-        // file.writeBytes(lenBlock);
-        byte[] dataToWrite = Util.mergeBytes(lenBlock, dataBlock);
-
-        for (int i = 0; i < (dataToWrite.length / 16); i++) {
-            byte[] nextBlock = Util.getBytes(dataToWrite, i * 16, 16);
-            file.writeEncryptedBytes(nextBlock);
-        }
-
+        ((PwsFileV3)file).writeField(type, field.getBytes());
     }
 
     /**
@@ -699,4 +681,54 @@ public class PwsRecordV3 extends PwsRecord
         return sb.toString();
     }
 
+    /**
+     * Get the time of the last save from the data of its header field, which
+     * is either the seconds as a binary value or, in older files, as eight
+     * hex digits
+     *
+     * @return the time; null if the data is not valid
+     */
+    public static Date getHeaderLastSaveTime(byte[] bytes)
+    {
+        if (bytes.length == 4) {
+            return new Date(Util.getMillisFromByteArray(bytes, 0));
+        } else if (bytes.length == 8) {
+            try {
+                return new Date(Long.parseLong(
+                        new String(bytes, Charset.forName("US-ASCII")), 16) *
+                                1000L);
+            } catch (NumberFormatException e) {
+                LOG.error("Invalid last save time");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Split the last save who header field of older files, which combines
+     * the user and host with the length of the user as four hex digits
+     *
+     * @return the user and host; null if the field is not valid
+     */
+    public static String[] splitHeaderLastSaveWho(String who)
+    {
+        if (who.length() < 4) {
+            LOG.error("Invalid who length: " + who.length());
+            return null;
+        }
+        int len;
+        try {
+            len = Integer.parseInt(who.substring(0, 4), 16);
+        } catch (NumberFormatException e) {
+            LOG.error("Invalid last save who: " + who);
+            return null;
+        }
+        if ((len + 4) > who.length()) {
+            LOG.error("Invalid user length: " + (len + 4));
+            return null;
+        }
+        return new String[] { who.substring(4, len + 4),
+                              who.substring(len + 4) };
+    }
+
 }
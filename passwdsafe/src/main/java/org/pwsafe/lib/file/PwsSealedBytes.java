@@ -0,0 +1,36 @@
+/*
+ * Copyright (©) 2017 Jeff Harris <jefftharris@gmail.com>
+ * All rights reserved. Use of the code is allowed under the
+ * Artistic License 2.0 terms, as specified in the LICENSE file
+ * distributed with this code, or available from
+ * http://www.opensource.org/licenses/artistic-license-2.0.php
+ */
+package org.pwsafe.lib.file;
+
+/**
+ * Bytes sealed in memory by a {@link PwsMemorySealer}.  The sealed data is
+ * the same length as the original bytes and is stored with the nonce used to
+ * seal it.
+ */
+final class PwsSealedBytes
+{
+    final long itsNonce;
+    final byte[] itsData;
+
+    /**
+     * Constructor
+     */
+    PwsSealedBytes(long nonce, byte[] data)
+    {
+        itsNonce = nonce;
+        itsData = data;
+    }
+
+    /**
+     * Get the length of the sealed bytes
+     */
+    int length()
+    {
+        return itsData.length;
+    }
+}
@@ -9,6 +9,8 @@ package org.pwsafe.lib.file;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Date;
 
 /**
@@ -35,6 +37,17 @@ public interface PwsStorage
                 throws IOException;
     }
 
+    /**
+     * Writer of the file contents for a streaming save
+     */
+    interface SaveWriter
+    {
+        /**
+         * Write the contents of the file to the stream
+         */
+        void write(OutputStream out) throws IOException;
+    }
+
     /**
      * Open the file for loading
      *
@@ -52,6 +65,16 @@ public interface PwsStorage
      */
     byte[] load() throws IOException;
 
+    /**
+     * Grab all the bytes in the file as a buffer.  The buffer may be backed
+     * by the file itself rather than a copy in memory, so it should only be
+     * used until the file is closed after being loaded.
+     *
+     * @return The bytes in the file
+     * @throws IOException
+     */
+    ByteBuffer loadBuffer() throws IOException;
+
     /**
      * Close the file after being loaded
      *
@@ -74,6 +97,18 @@ public interface PwsStorage
      */
     boolean save(byte[] data, boolean isV3);
 
+    /**
+     * Save the file by streaming its contents from the writer to the
+     * underlying storage provider.  Implementations which can not stream
+     * may buffer the contents and save them as bytes.
+     *
+     * @param writer The writer of the bytes making up the PasswordSafe file
+     * @param isV3   Is the file version 3
+     * @return true if save was successful; false if not supported
+     * @throws IOException if the contents could not be written
+     */
+    boolean save(SaveWriter writer, boolean isV3) throws IOException;
+
     /**
      * Returns a human readable identifier of this storage that might be
      * presented to the user.
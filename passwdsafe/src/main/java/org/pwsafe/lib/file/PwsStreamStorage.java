@@ -11,6 +11,7 @@ import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Date;
 
 /**
@@ -69,6 +70,11 @@ public class PwsStreamStorage implements PwsStorage
         return itsLoadBytes;
     }
 
+    public ByteBuffer loadBuffer() throws IOException
+    {
+        return ByteBuffer.wrap(load());
+    }
+
     public void closeAfterLoad() throws IOException
     {
         itsLoadBytes = null;
@@ -87,6 +93,13 @@ public class PwsStreamStorage implements PwsStorage
         return false;
     }
 
+    public boolean save(SaveWriter writer, boolean isV3) throws IOException
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        writer.write(bos);
+        return save(bos.toByteArray(), isV3);
+    }
+
     public String getIdentifier()
     {
         return itsIdentifier;
@@ -0,0 +1,175 @@
+/*
+ * Copyright (©) 2017 Jeff Harris <jefftharris@gmail.com>
+ * All rights reserved. Use of the code is allowed under the
+ * Artistic License 2.0 terms, as specified in the LICENSE file
+ * distributed with this code, or available from
+ * http://www.opensource.org/licenses/artistic-license-2.0.php
+ */
+package org.pwsafe.lib.file;
+
+import org.pwsafe.lib.Util;
+
+/**
+ * Calibration of the number of iterations used to stretch the passphrase of
+ * a V3 file so unlocking the file takes about a time budget on the current
+ * device.  The throughput of the stretch is measured with a short benchmark
+ * and updated from the stretches done when saving files, so later saves
+ * follow changes in the speed of the device.
+ */
+public final class PwsStretchCalibration
+{
+    /** The minimum number of iterations for a V3 file */
+    public static final int MIN_ITER = 2048;
+
+    /** The maximum number of iterations chosen by the calibration */
+    public static final int MAX_ITER = 1 << 22;
+
+    /** The minimum time of a stretch used to measure the throughput */
+    private static final long MIN_MEASURE_NANOS = 20 * 1000000L;
+
+    /** The time after which the throughput is measured again */
+    private static final long MAX_MEASURE_AGE_MS = 24 * 60 * 60 * 1000L;
+
+    private static long itsTimeBudget = 0;
+    private static long itsItersPerSec = 0;
+    private static long itsMeasureTime = 0;
+
+    /**
+     * Private constructor
+     */
+    private PwsStretchCalibration()
+    {
+    }
+
+    /**
+     * Get the time budget in milliseconds for stretching the passphrase;
+     * zero if the iterations are not calibrated
+     */
+    public static synchronized long getTimeBudget()
+    {
+        return itsTimeBudget;
+    }
+
+    /**
+     * Set the time budget in milliseconds for stretching the passphrase,
+     * such as 250.  Saves which write the file header raise the iterations
+     * of the file to meet the budget on the current device.  Zero disables
+     * the calibration.
+     */
+    public static synchronized void setTimeBudget(long budgetMs)
+    {
+        itsTimeBudget = Math.max(budgetMs, 0);
+    }
+
+    /**
+     * Get the measured throughput of the stretch in iterations per second;
+     * zero if not measured
+     */
+    public static synchronized long getThroughput()
+    {
+        return itsItersPerSec;
+    }
+
+    /**
+     * Get the time in milliseconds when the throughput was measured; zero if
+     * not measured
+     */
+    public static synchronized long getMeasureTime()
+    {
+        return itsMeasureTime;
+    }
+
+    /**
+     * Set the throughput of the stretch in iterations per second as measured
+     * now
+     */
+    public static synchronized void setThroughput(long itersPerSec)
+    {
+        setThroughput(itersPerSec, System.currentTimeMillis());
+    }
+
+    /**
+     * Set the throughput of the stretch in iterations per second and the
+     * time it was measured, such as values saved from an earlier run.  The
+     * throughput is measured again once it is older than a day.
+     */
+    public static synchronized void setThroughput(long itersPerSec,
+                                                  long measureTime)
+    {
+        itsItersPerSec = Math.max(itersPerSec, 0);
+        itsMeasureTime = (itsItersPerSec != 0) ? measureTime : 0;
+    }
+
+    /**
+     * Get the number of iterations which meets the time budget on the
+     * current device, measuring the throughput if needed
+     *
+     * @return the iterations; zero if the calibration is disabled
+     */
+    public static synchronized int getCalibratedIter()
+    {
+        if (itsTimeBudget == 0) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        if ((itsItersPerSec == 0) || (now < itsMeasureTime) ||
+            (now - itsMeasureTime > MAX_MEASURE_AGE_MS)) {
+            measureThroughput();
+        }
+        long iter = (itsItersPerSec * itsTimeBudget) / 1000;
+        return (int)Math.max(MIN_ITER, Math.min(iter, MAX_ITER));
+    }
+
+    /**
+     * Get the number of iterations to use when saving a file.  The
+     * iterations are raised when the calibrated value is more than a quarter
+     * higher, so small variations in the measured throughput do not change
+     * the file.  The iterations of a file are never lowered as they may have
+     * been chosen by the user.
+     *
+     * @param iter the current iterations of the file
+     * @return the iterations for the saved file
+     */
+    static int getSaveIter(int iter)
+    {
+        int calibrated = getCalibratedIter();
+        if (calibrated > iter + (iter / 4)) {
+            return calibrated;
+        }
+        return iter;
+    }
+
+    /**
+     * Record the time of a stretch to update the measured throughput
+     *
+     * @param iter  the number of iterations
+     * @param nanos the time of the stretch
+     */
+    static synchronized void recordStretch(int iter, long nanos)
+    {
+        if (nanos >= MIN_MEASURE_NANOS) {
+            setThroughput((iter * 1000000000L) / nanos);
+        }
+    }
+
+    /**
+     * Measure the throughput of the stretch, doubling the iterations until
+     * a stretch takes long enough to time accurately
+     */
+    private static void measureThroughput()
+    {
+        byte[] passwd = new byte[16];
+        byte[] salt = new byte[32];
+        int iter = MIN_ITER;
+        while (true) {
+            long start = System.nanoTime();
+            Util.clearArray(Util.stretchPassphrase(passwd, salt, iter));
+            long nanos = Math.max(System.nanoTime() - start, 1);
+            if ((nanos >= MIN_MEASURE_NANOS) || (iter >= MAX_ITER)) {
+                setThroughput((iter * 1000000000L) / nanos);
+                return;
+            }
+            iter *= 2;
+        }
+    }
+}